@@ -0,0 +1,145 @@
+package httpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark of the whole server over loopback: every benchmark thread is a client that sends GETs of a
+ * cached 4 KB file one after the other over a persistent connection, so it reports the throughput and the latency
+ * percentiles. The server is started in the benchmark's JVM, with its startup options given as 'httpServer.*'
+ * system properties (ex: -jvmArgsAppend -DhttpServer.engine=nio), unless the 'httpServer.target' property names
+ * a running one ('host:port'). With '-prof gc' the allocation rate includes the in-process server's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class EndToEndBenchmark {
+
+	/**
+	 * A client's persistent connection (reconnected when the server closes it).
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		// Fields
+		private Socket meSocket;
+		private OutputStream meOut;
+		private InputStream meIn;
+		private byte meBuf[] = new byte[64 * 1024];
+
+		private void connect(InetSocketAddress theAddr) throws IOException {
+			this.close();
+			this.meSocket = new Socket();
+			this.meSocket.setTcpNoDelay(true);
+			this.meSocket.connect(theAddr);
+			this.meOut = this.meSocket.getOutputStream();
+			this.meIn = this.meSocket.getInputStream();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			if (this.meSocket != null)
+				this.meSocket.close();
+			this.meSocket = null;
+		}
+	}
+
+	// Constants
+	private static final String me_DIR = "www/bench/";
+	// Fields
+	private InetSocketAddress meAddr;
+	private byte meRequest[];
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String tmpTarget = ServerConfig.getString("target", null);
+		if (tmpTarget == null) { // The server in this JVM
+			Files.createDirectories(Paths.get(me_DIR));
+			byte tmpBytes[] = new byte[4 * 1024];
+			for (int i = 0; i < tmpBytes.length; i++)
+				tmpBytes[i] = (byte) ('a' + i % 26);
+			Files.write(Paths.get(me_DIR, "small.htm"), tmpBytes);
+			HttpServerMain tmpSrv = new HttpServerMain();
+			Thread tmpTh = new Thread(tmpSrv::startListen, "bench-server");
+			tmpTh.setDaemon(true);
+			tmpTh.start();
+			tmpTarget = "localhost:" + ServerConfig.getInt("port", 8888); // Its own port option
+		}
+		int tmpInd = tmpTarget.lastIndexOf(':');
+		this.meAddr = new InetSocketAddress(tmpTarget.substring(0, tmpInd), Integer.parseInt(tmpTarget.substring(tmpInd + 1)));
+		this.meRequest = ("GET /bench/small.htm HTTP/1.1\r\nHost: " + tmpTarget + "\r\nAccept-Encoding: identity\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if (ServerConfig.getString("target", null) != null)
+			return;
+		Files.deleteIfExists(Paths.get(me_DIR, "small.htm"));
+		Files.deleteIfExists(Paths.get(me_DIR));
+	}
+
+	@Benchmark
+	public int getCached(Client theClient) throws IOException {
+		if (theClient.meSocket == null)
+			theClient.connect(this.meAddr);
+		theClient.meOut.write(this.meRequest);
+		int outLen = readResponse(theClient.meIn, theClient.meBuf);
+		if (outLen < 0) // The server closes the connection after it
+			theClient.close();
+		return outLen;
+	}
+
+	// Reads one response (its headers, and as many body bytes as its 'Content-Length'), and returns its length
+	// (negative if the server closes the connection after it)
+	private static int readResponse(InputStream in, byte[] buf) throws IOException {
+		int tmpLen = 0;
+		int tmpHeadEnd = -1;
+		while (tmpHeadEnd < 0) {
+			int tmpNum = in.read(buf, tmpLen, buf.length - tmpLen);
+			if (tmpNum < 0)
+				throw new IOException("The connection was closed before the response's end.");
+			tmpLen += tmpNum;
+			for (int i = Math.max(0, tmpLen - tmpNum - 3); i + 3 < tmpLen && tmpHeadEnd < 0; i++) {
+				if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n')
+					tmpHeadEnd = i + 4;
+			}
+		}
+		String tmpHead = new String(buf, 0, tmpHeadEnd, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+		int tmpInd = tmpHead.indexOf("content-length:");
+		long tmpBodyLen = tmpInd < 0 ? 0 : Long.parseLong(tmpHead.substring(tmpInd + 15, tmpHead.indexOf('\r', tmpInd)).trim());
+		long tmpLeft = tmpBodyLen - (tmpLen - tmpHeadEnd);
+		while (tmpLeft > 0) {
+			int tmpNum = in.read(buf, 0, (int) Math.min(buf.length, tmpLeft));
+			if (tmpNum < 0)
+				throw new IOException("The connection was closed before the response's end.");
+			tmpLeft -= tmpNum;
+		}
+		int outLen = (int) (tmpHeadEnd + tmpBodyLen);
+		return tmpHead.contains("connection: close") ? -outLen : outLen;
+	}
+}
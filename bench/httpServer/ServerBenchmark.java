@@ -0,0 +1,216 @@
+package httpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the server's hot paths: parsing the requests (GET, bodies of several sizes with
+ * 'Content-Length' or chunked, multipart) and creating the responses (cached and uncached files, '404').
+ * They run from the server's directory (they create their files in 'www/bench/'), ex: with the allocation rates
+ * <pre>  gradle jmh -PjmhArgs="-prof gc ServerBenchmark"</pre>
+ * where 'gc.alloc.rate.norm' is the heap bytes allocated per operation (so an allocation regression in the hot
+ * path shows next to a time one).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ServerBenchmark {
+
+	/**
+	 * A request with a body (the body's framing is what 'checkReceiveEnded' used to do).
+	 */
+	@State(Scope.Thread)
+	public static class BodyRequest {
+		// Fields
+		@Param({"1024", "65536", "1048576"})
+		public int bodySize;
+		@Param({"length", "chunked"})
+		public String framing;
+		private ByteBuffer meRequest;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			if ("chunked".equals(this.framing)) {
+				this.meRequest = toBuffer("PUT /put/a.bin HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n", createChunked(this.bodySize, 8192));
+			} else {
+				this.meRequest = toBuffer("PUT /put/a.bin HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + this.bodySize + "\r\n\r\n", new byte[this.bodySize]);
+			}
+		}
+	}
+
+	// Constants
+	private static final String me_DIR = "www/bench/";
+	private static final String me_BOUNDARY = "----bench7d1f";
+	private static final RequestParser.BodySink me_DROP = tmpData -> tmpData.position(tmpData.limit());
+	private static final WritableByteChannel me_NULL_CHANNEL = new WritableByteChannel() { // Takes all the bytes (a fast client)
+		@Override
+		public int write(ByteBuffer src) {
+			int outNum = src.remaining();
+			src.position(src.limit());
+			return outNum;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	};
+	// Fields
+	private RequestParser meParser = new RequestParser(); // Reused, the way the connections reuse theirs
+	private ByteBuffer meGet = toBuffer("GET /bench/small.htm HTTP/1.1\r\nHost: localhost:8888\r\nUser-Agent: bench\r\nAccept: */*\r\nAccept-Encoding: identity\r\n\r\n");
+	private ByteBuffer meBigGet = toBuffer("GET /bench/big.txt HTTP/1.1\r\nHost: localhost:8888\r\nUser-Agent: bench\r\nAccept: */*\r\nAccept-Encoding: identity\r\n\r\n");
+	private ByteBuffer meMissing = toBuffer("GET /bench/none.htm HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	private ByteBuffer meMultipart;
+	private ByteBuffer mePartOut = ByteBuffer.allocate(HttpServerMain.BUFSIZE * 32);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Files.createDirectories(Paths.get(me_DIR));
+		createFile("small.htm", 4 * 1024); // Cached
+		createFile("big.txt", 2 * 1024 * 1024); // Bigger than 'cache.maxfile' (so sent from the file)
+		ByteBuffer tmpPart = toBuffer("--" + me_BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a.bin\"\r\n\r\n", new byte[64 * 1024],
+				("\r\n--" + me_BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		this.meMultipart = toBuffer("POST /post/a.bin HTTP/1.1\r\nHost: localhost\r\nContent-Type: multipart/form-data; boundary=" + me_BOUNDARY
+				+ "\r\nContent-Length: " + tmpPart.remaining() + "\r\n\r\n", tmpPart.array());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		deleteFiles();
+	}
+
+	@Benchmark
+	public Object parseGet() {
+		return parse(this.meParser, this.meGet).getHeaders();
+	}
+
+	@Benchmark
+	public Object parseBody(BodyRequest theReq) {
+		parseBody(this.meParser, theReq.meRequest, me_DROP);
+		return this.meParser;
+	}
+
+	@Benchmark
+	public Object parseMultipart() {
+		MultipartScanner tmpScanner = new MultipartScanner(me_BOUNDARY);
+		parseBody(this.meParser, this.meMultipart, tmpData -> {
+			while (tmpData.hasRemaining()) {
+				this.mePartOut.clear();
+				tmpScanner.scan(tmpData, this.mePartOut);
+			}
+		});
+		return tmpScanner;
+	}
+
+	@Benchmark
+	public Object createRequest() {
+		return new MyRequest(parse(this.meParser, this.meGet)); // A cached target
+	}
+
+	@Benchmark
+	public Object respondCached() throws IOException {
+		return respond(this.meParser, this.meGet);
+	}
+
+	@Benchmark
+	public Object respondUncached() throws IOException {
+		return respond(this.meParser, this.meBigGet);
+	}
+
+	@Benchmark
+	public Object respondNotFound() {
+		MyResponse outResp = new MyResponse(new MyRequest(parse(this.meParser, this.meMissing)), true);
+		outResp.getResponseBuffer();
+		return outResp;
+	}
+
+	// Parses a whole request without a body (the way the connections reuse their parser)
+	private static RequestParser parse(RequestParser theParser, ByteBuffer theReq) {
+		theParser.reset();
+		theParser.parse(theReq.rewind());
+		return theParser;
+	}
+
+	// Parses a whole request with its body going to a sink
+	private static void parseBody(RequestParser theParser, ByteBuffer theReq, RequestParser.BodySink theSink) {
+		parse(theParser, theReq);
+		theParser.setBodySink(theSink);
+		theParser.parse(theReq);
+		if (theParser.getState() != RequestParser.State.DONE)
+			throw new IllegalStateException("The benchmark's request is not parsed completely.");
+	}
+
+	// Creates the response of a GET, sends it to a fast client, and closes it (as the connections do)
+	private static MyResponse respond(RequestParser theParser, ByteBuffer theReq) throws IOException {
+		MyResponse outResp = new MyResponse(new MyRequest(parse(theParser, theReq)), true);
+		me_NULL_CHANNEL.write(outResp.getResponseBuffer());
+		if (outResp.hasBody())
+			outResp.sendBody(me_NULL_CHANNEL);
+		outResp.closeBody();
+		return outResp;
+	}
+
+	private static void createFile(String name, int size) throws IOException {
+		byte tmpBytes[] = new byte[size];
+		for (int i = 0; i < size; i++)
+			tmpBytes[i] = (byte) ('a' + i % 26);
+		Files.write(Paths.get(me_DIR, name), tmpBytes);
+	}
+
+	private static void deleteFiles() throws IOException {
+		try (java.util.stream.Stream<Path> tmpFiles = Files.list(Paths.get(me_DIR))) {
+			for (Path tmpFile : (Iterable<Path>) tmpFiles::iterator)
+				Files.deleteIfExists(tmpFile);
+		}
+		Files.deleteIfExists(Paths.get(me_DIR));
+	}
+
+	// Concatenates the parts of a request into one buffer
+	private static ByteBuffer toBuffer(String head, byte[]... bodyParts) {
+		byte tmpHead[] = head.getBytes(StandardCharsets.ISO_8859_1);
+		int tmpLen = tmpHead.length;
+		for (byte tmpPart[] : bodyParts)
+			tmpLen += tmpPart.length;
+		ByteBuffer outBuf = ByteBuffer.allocate(tmpLen).put(tmpHead);
+		for (byte tmpPart[] : bodyParts)
+			outBuf.put(tmpPart);
+		return outBuf.flip();
+	}
+
+	// A chunked body of the given size (with the last chunk)
+	private static byte[] createChunked(int size, int chunkSize) {
+		StringBuilder tmpStr = new StringBuilder();
+		for (int tmpLeft = size; tmpLeft > 0; tmpLeft -= chunkSize) {
+			int tmpNum = Math.min(chunkSize, tmpLeft);
+			tmpStr.append(Integer.toHexString(tmpNum)).append("\r\n");
+			tmpStr.append(new String(new char[tmpNum]).replace('\0', 'a')).append("\r\n");
+		}
+		return tmpStr.append("0\r\n\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,250 @@
+package httpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The access log: one line per response in the Combined (or Common) Log Format, written to a file that is rotated
+ * by size. The connections' threads only put a small entry (references to the request and the response, never a
+ * copy of the body) in a lock-free ring, and a single writer thread formats the entries in batches and writes
+ * them, so logging takes no lock and does no I/O on the request path. When the ring is full, an entry is either
+ * dropped (and counted) or its thread waits for the writer (backpressure), according to the policy.
+ * Startup options: 'accesslog' (the file, 'off' disables the log), 'accesslog.format' ('combined' or 'common'),
+ * 'accesslog.ring' (the entries the ring holds), 'accesslog.policy' ('drop' or 'block'), 'accesslog.rotate' (the
+ * file's size in bytes before it is rotated), 'accesslog.files' (the rotated files kept).
+ */
+public class AccessLog {
+
+	// An entry waiting in the ring (the line is formatted by the writer)
+	private static class Entry {
+		private InetAddress meClient;
+		private long meTime; // When the response was sent (ms)
+		private MyRequest meRequest;
+		private MyResponse meResponse;
+
+		Entry(InetAddress theClient, MyRequest theRequest, MyResponse theResponse) {
+			this.meClient = theClient;
+			this.meTime = System.currentTimeMillis();
+			this.meRequest = theRequest;
+			this.meResponse = theResponse;
+		}
+	}
+
+	// Constants
+	private static final String me_FILE = ServerConfig.getString("accesslog", "access.log");
+	public static final boolean ENABLED = !"off".equalsIgnoreCase(me_FILE);
+	private static final boolean me_IS_COMBINED = !"common".equalsIgnoreCase(ServerConfig.getString("accesslog.format", "combined"));
+	private static final boolean me_IS_BLOCKING = "block".equalsIgnoreCase(ServerConfig.getString("accesslog.policy", "drop"));
+	private static final long me_ROTATE_SIZE = ServerConfig.getLong("accesslog.rotate", 10L * 1024 * 1024);
+	private static final int me_FILES = Math.max(ServerConfig.getInt("accesslog.files", 5), 0);
+	private static final int me_BATCH = 256; // The most entries written before flushing
+	private static final long me_IDLE_WAIT = 20_000_000L; // The writer's sleep (ns) when the ring is empty
+	private static final DateTimeFormatter me_CLF_DATE = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+	private static final AtomicReferenceArray<Entry> me_RING = new AtomicReferenceArray<>(Math.max(ServerConfig.getInt("accesslog.ring", 8192), 1));
+	private static final AtomicLong me_TAIL = new AtomicLong(); // The next sequence to be claimed by a producer
+	private static final AtomicLong me_HEAD = new AtomicLong(); // The next sequence to be written (only the writer advances it)
+	private static final LongAdder me_DROPPED = new LongAdder();
+	private static final AtomicBoolean me_IS_WOKEN = new AtomicBoolean(); // The writer was unparked since it last went to sleep (so it is unparked once)
+	private static final Thread me_WRITER;
+	// Fields (of the writer thread only)
+	private static volatile boolean meIsStopping;
+	private static OutputStream meOut;
+	private static long meFileSize;
+	private static long meLastSecond = -1; // The second that 'meLastDate' formats
+	private static String meLastDate;
+
+	static {
+		if (ENABLED) {
+			me_WRITER = new Thread(AccessLog::writeLoop, "access-log");
+			me_WRITER.setDaemon(true);
+			me_WRITER.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(AccessLog::stop)); // What is still in the ring is written on exit
+		} else {
+			me_WRITER = null;
+		}
+	}
+
+	private AccessLog() {} // Static holder only
+
+	/**
+	 * Logs a response that is sent (or failed to be sent).
+	 * @param client	the client's address (null if unknown)
+	 * @param request	the request (an imaginary one is logged with no request line)
+	 * @param response	the response
+	 */
+	public static void log(InetAddress client, MyRequest request, MyResponse response) {
+		if (!ENABLED)
+			return;
+		int tmpLen = me_RING.length();
+		long tmpSeq;
+		while (true) { // Claim a sequence whose slot is already written out
+			tmpSeq = me_TAIL.get();
+			if (tmpSeq - me_HEAD.get() >= tmpLen) { // Full
+				if (!me_IS_BLOCKING) {
+					me_DROPPED.increment();
+					return;
+				}
+				LockSupport.unpark(me_WRITER);
+				LockSupport.parkNanos(100_000L); // Backpressure: wait for the writer
+				continue;
+			}
+			if (me_TAIL.compareAndSet(tmpSeq, tmpSeq + 1))
+				break;
+		}
+		me_RING.set((int) (tmpSeq % tmpLen), new Entry(client, request, response)); // Published (the writer waits for it if it is not set yet)
+		if (tmpSeq - me_HEAD.get() >= tmpLen / 2 && !me_IS_WOKEN.get() && me_IS_WOKEN.compareAndSet(false, true)) // Half full, so the writer should not sleep on it
+			LockSupport.unpark(me_WRITER);
+	}
+
+	/**
+	 * Returns the number of the entries dropped because the ring was full.
+	 * @return	the dropped entries
+	 */
+	public static long getDropped() {
+		return me_DROPPED.sum();
+	}
+
+	// The writer thread: writes the published entries in order, flushing after every batch
+	private static void writeLoop() {
+		StringBuilder tmpLine = new StringBuilder(256);
+		int tmpLen = me_RING.length();
+		while (true) {
+			int tmpNum = 0;
+			long tmpHead = me_HEAD.get();
+			Entry tmpEntry;
+			try {
+				while (tmpNum < me_BATCH && (tmpEntry = me_RING.get((int) (tmpHead % tmpLen))) != null) {
+					me_RING.set((int) (tmpHead % tmpLen), null);
+					me_HEAD.lazySet(++tmpHead); // The slot can be claimed again
+					tmpLine.setLength(0);
+					write(format(tmpLine, tmpEntry));
+					tmpNum++;
+				}
+				if (tmpNum > 0 && meOut != null)
+					meOut.flush();
+			} catch (IOException e) {
+				HttpServerMain.printErrWarning("Cannot write the access log '" + me_FILE + "'.", false);
+				closeFile(); // Reopened by the next line
+			}
+			if (tmpNum == 0) {
+				if (meIsStopping && me_TAIL.get() == tmpHead) {
+					closeFile();
+					return;
+				}
+				me_IS_WOKEN.set(false);
+				if (me_RING.get((int) (tmpHead % tmpLen)) == null) // Not published meanwhile (then its producer may not have unparked it)
+					LockSupport.parkNanos(me_IDLE_WAIT);
+			}
+		}
+	}
+
+	// Formats an entry's line: host - - [date] "request line" status bytes ["referer" "user-agent"]
+	private static StringBuilder format(StringBuilder theLine, Entry theEntry) {
+		theLine.append(theEntry.meClient == null ? "-" : theEntry.meClient.getHostAddress()).append(" - - [");
+		if (theEntry.meTime / 1000 != meLastSecond) { // The date changes only every second
+			meLastSecond = theEntry.meTime / 1000;
+			meLastDate = me_CLF_DATE.format(Instant.ofEpochMilli(theEntry.meTime));
+		}
+		theLine.append(meLastDate).append("] ");
+		appendQuoted(theLine, theEntry.meRequest.getRequestLine());
+		long tmpBytes = theEntry.meResponse.getBodySent();
+		theLine.append(' ').append(theEntry.meResponse.getStatus()).append(' ');
+		if (tmpBytes == 0) {
+			theLine.append('-');
+		} else {
+			theLine.append(tmpBytes);
+		}
+		if (me_IS_COMBINED) {
+			theLine.append(' ');
+			appendQuoted(theLine, theEntry.meRequest.getHeader("Referer"));
+			theLine.append(' ');
+			appendQuoted(theLine, theEntry.meRequest.getHeader("User-Agent"));
+		}
+		return theLine.append('\n');
+	}
+
+	// A quoted field ('-' if missing), with the quotes, backslashes and control characters escaped
+	private static void appendQuoted(StringBuilder theLine, String value) {
+		if (value == null) {
+			theLine.append("\"-\"");
+			return;
+		}
+		theLine.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char tmpCh = value.charAt(i);
+			if (tmpCh == '"' || tmpCh == '\\') {
+				theLine.append('\\').append(tmpCh);
+			} else if (tmpCh < 0x20 || tmpCh == 0x7f) {
+				theLine.append(String.format("\\x%02x", (int) tmpCh));
+			} else {
+				theLine.append(tmpCh);
+			}
+		}
+		theLine.append('"');
+	}
+
+	private static void write(StringBuilder theLine) throws IOException {
+		if (meOut == null) {
+			Path tmpPath = Paths.get(me_FILE);
+			meOut = new BufferedOutputStream(Files.newOutputStream(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+			meFileSize = Files.size(tmpPath);
+		}
+		byte tmpBytes[] = theLine.toString().getBytes(StandardCharsets.UTF_8);
+		meOut.write(tmpBytes);
+		meFileSize += tmpBytes.length;
+		if (meFileSize >= me_ROTATE_SIZE)
+			rotate();
+	}
+
+	// Renames the file to '.1' (and the older ones one number up, dropping the oldest), so the next line starts a new file
+	private static void rotate() throws IOException {
+		closeFile();
+		Path tmpPath = Paths.get(me_FILE);
+		if (me_FILES == 0) {
+			Files.deleteIfExists(tmpPath);
+			return;
+		}
+		Files.deleteIfExists(Paths.get(me_FILE + "." + me_FILES));
+		for (int i = me_FILES - 1; i > 0; i--) {
+			Path tmpOld = Paths.get(me_FILE + "." + i);
+			if (Files.exists(tmpOld))
+				Files.move(tmpOld, Paths.get(me_FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(tmpPath, Paths.get(me_FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void closeFile() {
+		if (meOut == null)
+			return;
+		try {
+			meOut.close();
+		} catch (IOException e) {/* Can be safely ignored */}
+		meOut = null;
+	}
+
+	// Lets the writer write what is in the ring and end (on exit)
+	private static void stop() {
+		meIsStopping = true;
+		LockSupport.unpark(me_WRITER);
+		try {
+			me_WRITER.join(1000);
+		} catch (InterruptedException e) {/* Exiting anyway */}
+	}
+}
@@ -0,0 +1,61 @@
+package httpServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of the connections' receive buffers, so a new connection (or a new burst of requests on an idle NIO
+ * connection) takes a buffer that was used before instead of allocating one. It is lock-free: a fixed array of
+ * slots that are taken and given back by atomic swaps, probed from a place that depends on the calling thread (so
+ * a thread usually finds the buffer it gave back, and threads rarely meet on the same slot). Once warmed up it
+ * allocates nothing, and when it is empty (or full) it just allocates (or drops) a buffer instead of waiting.
+ * The buffers are heap buffers, since the blocking engine reads through the socket's stream into their arrays.
+ * Startup option: 'pool.buffers' (the max number of idle buffers kept, 0 disables pooling).
+ */
+public class BufferPool {
+	// Constants
+	public static final int SIZE = HttpServerMain.BUFSIZE * 16; // The size of the pooled buffers
+	private static final int me_PROBES = 16; // The most slots looked at by one call
+	private static final AtomicReferenceArray<ByteBuffer> me_SLOTS = new AtomicReferenceArray<>(Math.max(ServerConfig.getInt("pool.buffers", 256), 0));
+
+	private BufferPool() {} // Static holder only
+
+	/**
+	 * Takes a buffer from the pool (or allocates one if the pool has none at hand).
+	 * @return	a cleared buffer of 'SIZE' bytes
+	 */
+	public static ByteBuffer acquire() {
+		int tmpLen = me_SLOTS.length();
+		if (tmpLen > 0) {
+			int tmpStart = startSlot(tmpLen);
+			for (int i = 0; i < Math.min(me_PROBES, tmpLen); i++) {
+				ByteBuffer outBuf = me_SLOTS.getAndSet((tmpStart + i) % tmpLen, null);
+				if (outBuf != null)
+					return outBuf;
+			}
+		}
+		return ByteBuffer.allocate(SIZE);
+	}
+
+	/**
+	 * Gives a buffer back to the pool (to be called once it is not used anymore, ex: when its connection is closed).
+	 * Buffers that were not taken from the pool (ex: grown ones) are left to the garbage collector.
+	 * @param theBuf	the buffer to give back (null is ignored)
+	 */
+	public static void release(ByteBuffer theBuf) {
+		int tmpLen = me_SLOTS.length();
+		if (theBuf == null || tmpLen == 0 || theBuf.capacity() != SIZE || theBuf.isDirect() || theBuf.isReadOnly())
+			return;
+		theBuf.clear();
+		int tmpStart = startSlot(tmpLen);
+		for (int i = 0; i < Math.min(me_PROBES, tmpLen); i++) {
+			if (me_SLOTS.compareAndSet((tmpStart + i) % tmpLen, null, theBuf))
+				return;
+		}
+	}
+
+	// The first slot probed by the calling thread
+	private static int startSlot(int slotsNum) {
+		return (Thread.currentThread().hashCode() & Integer.MAX_VALUE) % slotsNum;
+	}
+}
@@ -0,0 +1,73 @@
+package httpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The canned status responses (the errors, and '204 No Content'), built once at startup as read-only direct
+ * buffers with their 'Content-Length' computed from their bodies, in both 'Connection' variants. A canned response
+ * is sent from a view of the shared buffer, so answering an error encodes and copies nothing (ex: a storm of
+ * '404 Not Found', or '503 Service Unavailable' during maintenance). The rejections (sent before a request is
+ * created, see 'ClientLimits' and 'OverloadControl') always close the connection, and ask to retry later if it helps.
+ */
+public class CannedResponses {
+	// Constants
+	private static final ByteBuffer me_CLOSE[] = new ByteBuffer[600]; // By status code ('Connection: close')
+	private static final ByteBuffer me_KEEP_ALIVE[] = new ByteBuffer[600]; // By status code ('Connection: keep-alive')
+	private static final ByteBuffer me_REJECTIONS[] = new ByteBuffer[600]; // By status code ('Connection: close')
+
+	static {
+		add(204, "No Content", null);
+		add(400, "Bad Request", "400 Bad request");
+		add(403, "Forbidden", "403 Forbidden");
+		add(404, "Not Found", "404 Not found");
+		add(405, "Method Not Allowed", "405 Method Not Allowed");
+		add(415, "Unsupported Media Type", "415 Unsupported Media Type");
+		add(500, "Internal Server Error", "500 Internal Server Error");
+		add(501, "Not Implemented", "501 Not Implemented");
+		add(503, "Service Unavailable", "503 Service Unavailable");
+		add(505, "HTTP Version Not Supported", "505 HTTP Version Not Supported");
+		me_REJECTIONS[408] = toBuffer(build(408, "Request Timeout", "408 Request Timeout", "Connection: close\r\n"));
+		me_REJECTIONS[429] = toBuffer(build(429, "Too Many Requests", "429 Too Many Requests", "Retry-After: 1\r\nConnection: close\r\n"));
+		me_REJECTIONS[503] = toBuffer(build(503, "Service Unavailable", "503 Service Unavailable", "Retry-After: 1\r\nConnection: close\r\n"));
+	}
+
+	private CannedResponses() {} // Static holder only
+
+	/**
+	 * Returns a canned response (a new view every time, so every response has its own position).
+	 * @param status	the response's status code
+	 * @param keepAlive	true if the connection stays open after the response
+	 * @return			a read-only view of the whole response's bytes
+	 */
+	public static ByteBuffer get(int status, boolean keepAlive) {
+		return (keepAlive ? me_KEEP_ALIVE : me_CLOSE)[status].duplicate();
+	}
+
+	/**
+	 * Returns a canned rejection (a new view every time), sent to a client over its limits or while shedding load.
+	 * @param status	the response's status code (408, 429 or 503)
+	 * @return			a read-only view of the whole response's bytes
+	 */
+	public static ByteBuffer getRejection(int status) {
+		return me_REJECTIONS[status].duplicate();
+	}
+
+	// Builds both variants of a canned response (a null title means no body)
+	private static void add(int status, String reason, String title) {
+		me_CLOSE[status] = toBuffer(build(status, reason, title, "Connection: close\r\n"));
+		me_KEEP_ALIVE[status] = toBuffer(build(status, reason, title, "Connection: keep-alive\r\n"));
+	}
+
+	private static String build(int status, String reason, String title, String lastHeaders) {
+		String tmpBody = title == null ? "" : "<html><body><h1>" + title + "</h1></body></html>";
+		return "HTTP/1.1 " + status + " " + reason + "\r\nServer: AmazingServer\r\n"
+				+ (title == null ? "" : "Content-Length: " + tmpBody.length() + "\r\nContent-Type: text/html\r\n")
+				+ lastHeaders + "\r\n" + tmpBody;
+	}
+
+	private static ByteBuffer toBuffer(String theResp) {
+		byte tmpBytes[] = theResp.getBytes(StandardCharsets.ISO_8859_1);
+		return ByteBuffer.allocateDirect(tmpBytes.length).put(tmpBytes).flip().asReadOnlyBuffer();
+	}
+}
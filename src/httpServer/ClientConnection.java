@@ -1,93 +1,247 @@
 package httpServer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A runnable that takes an accepted connection socket to take over the communication with client
  */
-public class ClientConnection implements Runnable {
+public class ClientConnection implements Runnable, OverloadControl.Queued {
+	// Constants
+	protected static final int KEEP_ALIVE_TIMEOUT = ServerConfig.getInt("keepalive.timeout", 5000); // Idle time (ms) before closing a persistent connection
+	protected static final int KEEP_ALIVE_MAX = ServerConfig.getInt("keepalive.max", 100); // Max requests served on one connection
 	// Fields
 	private Socket meAccSock;
+	private ByteBuffer meInBuf; // The received bytes that are not parsed yet (pipelined requests), taken from the pool while the connection is served
+	private RequestParser meParser = new RequestParser(); // Parses the requests of this connection incrementally
+	private long meAcceptedAt = System.nanoTime(); // The time it was accepted (its wait in the executor's queue drives 'OverloadControl')
+	private boolean meIsRejected; // A rejection was sent (then the socket is closed by 'LingeringClose')
 
 	public ClientConnection(Socket acceptSocket) {
 		if (acceptSocket != null)
 			this.meAccSock = acceptSocket;
 	}
 
+	@Override
+	public long getQueuedAt() {
+		return this.meAcceptedAt;
+	}
+
 	@Override
 	public void run() {
 		if (this.meAccSock == null)
 			return;
-		System.out.println("Client connection accepted..");
+		ServerMetrics.connectionOpened(this.meAcceptedAt);
+		OverloadControl.sample(System.nanoTime() - this.meAcceptedAt);
 		MyRequest req;
 		MyResponse resp;
+		long tmpStart; // The time the request was complete
+		int tmpCount = 0; // Requests served on this connection
+		this.meInBuf = BufferPool.acquire(); // Not before, so the queued connections hold no buffer
+		this.meInBuf.limit(0); // Nothing received yet
 
-		try { // A try-catch just to anticipate '500 Internal Server Error'
-			if (HttpServerMain.getIsPause()) {
-				req = new MyRequest("PAUSE / HTTP/1.1"); // Imaginary request
+		do { // A loop to serve the requests of a persistent connection
+			tmpStart = ServerMetrics.now();
+			try { // A try-catch just to anticipate '500 Internal Server Error'
+				if (HttpServerMain.getIsPause()) {
+					req = MyRequest.PAUSE; // Imaginary request
+					resp = new MyResponse(req);
+				} else {
+					req = this.receiveRequest();
+					if (req == null) // Closed by the client or idle for too long
+						break;
+					if (Http2Connection.isHttp2Start(req)) { // The rest of the connection is HTTP/2
+						this.serveHttp2(new Http2Connection(this.meAccSock.getInetAddress(), req));
+						break;
+					}
+					tmpStart = ServerMetrics.now();
+					resp = new MyResponse(req, ++tmpCount < KEEP_ALIVE_MAX);
+				}
+			} catch (Exception e) {
+				req = MyRequest.ERROR; // Imaginary request
 				resp = new MyResponse(req);
-				this.sendResponse(resp.getResponseBytes());
-			} else {
-				req = this.receiveRequest();
-				resp = new MyResponse(req);
-				this.sendResponse(resp.getResponseBytes());
 			}
-		} catch (Exception e) {
-			req = new MyRequest("ERROR / HTTP/1.1"); // Imaginary request
-			resp = new MyResponse(req);
-			this.sendResponse(resp.getResponseBytes());
-		}
-		if (this.meAccSock != null && !this.meAccSock.isClosed()) {
+			this.sendResponse(resp);
+			ServerMetrics.recordResponse(tmpStart);
+			AccessLog.log(this.meAccSock.getInetAddress(), req, resp);
+		} while (resp.isKeepAlive() && !this.meAccSock.isClosed());
+		if (!this.meAccSock.isClosed() && !this.meIsRejected) {
 			try {
 				this.meAccSock.close();
 			} catch (IOException e) {}
 		}
-		if (HttpServerMain.SHOW_REQ_RES) {
-			System.out.println("----------------- Start Response String -----------------");	//
-			System.out.println(new String(resp.getResponseBytes()));							// Printout the request string if required
-			System.out.println("-----------------  End Response String  -----------------");	//
+		BufferPool.release(this.meInBuf);
+		this.meInBuf = null;
+		ServerMetrics.connectionClosed();
+	}
+
+	/**
+	 * Answers the client with '503 Service Unavailable' and closes the connection without receiving the
+	 * request (used when the server is too busy to take over this connection).
+	 */
+	public void rejectBusy() {
+		if (this.meAccSock == null)
+			return;
+		MyResponse tmpResp = new MyResponse(MyRequest.PAUSE); // Imaginary request
+		this.sendResponse(tmpResp);
+		AccessLog.log(this.meAccSock.getInetAddress(), MyRequest.PAUSE, tmpResp);
+		if (!this.meAccSock.isClosed())
+			close(this.meAccSock);
+	}
+
+	/**
+	 * Answers a client with a canned rejection and closes the connection without receiving its request (used for the
+	 * clients over their limits, see 'ClientLimits', and to shed load, see 'OverloadControl').
+	 * @param theSock	the client's socket
+	 * @param status	the canned rejection's status (see 'CannedResponses.getRejection()')
+	 */
+	public static void reject(Socket theSock, int status) {
+		try {
+			WritableByteChannel tmpCh = theSock.getChannel() != null ? theSock.getChannel() : Channels.newChannel(theSock.getOutputStream());
+			ByteBuffer tmpResp = CannedResponses.getRejection(status);
+			while (tmpResp.hasRemaining())
+				ServerMetrics.addBytesOut(tmpCh.write(tmpResp));
+		} catch (IOException e) {/* Can be safely ignored (it is closed anyway) */}
+		ServerMetrics.countRejected(status);
+		close(theSock);
+	}
+
+	// Closes a socket after a response that was sent without reading the request (a lingering close if it has a
+	// channel, so the unread request does not reset the connection before the client reads the response)
+	private static void close(Socket theSock) {
+		if (theSock.getChannel() != null) {
+			LingeringClose.close(theSock.getChannel());
+			return;
 		}
+		try {
+			theSock.shutdownOutput(); // The response goes before the close
+		} catch (IOException e) {/* Can be safely ignored (it is closed anyway) */}
+		try {
+			theSock.close();
+		} catch (IOException e) {/* Can be safely ignored */}
+	}
 
-		System.out.println("Client connection closed..");
+	// Rejects the client of this connection (see 'reject(Socket, int)')
+	private void reject(int status) {
+		this.meIsRejected = true;
+		reject(this.meAccSock, status);
 	}
 
+	// Receives the next request (already received pipelined bytes are parsed before reading again), or returns
+	// null if the connection was closed, stayed idle for too long, or was rejected (see 'ClientLimits')
 	private MyRequest receiveRequest() {
-		if (this.meAccSock == null)
-			return null;
-		byte tmpBuf[] = null;
 		int tmpNum = 0; // To get the number of bytes read
-		ByteArrayOutputStream tmpMsg = new ByteArrayOutputStream(HttpServerMain.BUFSIZE); // To push the received buffer in if message is big.
+		MyRequest outReq = null; // Created as soon as the headers are received (then it takes over the body)
+		long tmpParse = 0; // The time spent parsing (for the metrics)
+		long tmpPhaseStart = this.meInBuf.hasRemaining() ? System.currentTimeMillis() : 0; // The time the head's (then the body's) first bytes were received (0 if none yet)
+		long tmpPhaseBytes = 0; // The bytes received since then
+		this.meParser.reset();
 		try {
-			do { // A loop to receive
-				tmpBuf = new byte[HttpServerMain.BUFSIZE];
-				tmpNum = this.meAccSock.getInputStream().read(tmpBuf); // The actual receiving
-				if (tmpNum > 0)
-					tmpMsg.write(tmpBuf, 0, tmpNum); // Accumulate message
-			//} while (!tmpMsg.toString().endsWith("\r\n\r\n") && tmpNum > -1); // In case of HTTP request end-chars or received '-1' (EOF) then the other side has closed the connection (according to: http://stackoverflow.com/questions/10240694/ )
-			} while (!this.checkReceiveEnded(tmpMsg) && tmpNum > -1); // In case of HTTP request end-chars or received '-1' (EOF) then the other side has closed the connection (according to: http://stackoverflow.com/questions/10240694/ )
+			while (true) { // A loop to receive (the parser consumes all the bytes until the request is complete)
+				long tmpStart = ServerMetrics.now();
+				boolean tmpIsDone = this.meParser.parse(this.meInBuf);
+				tmpParse += ServerMetrics.now() - tmpStart;
+				if (tmpIsDone) {
+					if (outReq == null) {
+						if (!ClientLimits.admitRequest(this.meAccSock.getInetAddress())) {
+							this.reject(429);
+							return null;
+						}
+						if (!OverloadControl.admit(this.meParser.getMethod())) {
+							this.reject(503);
+							return null;
+						}
+						outReq = new MyRequest(this.meParser);
+						tmpPhaseStart = System.currentTimeMillis(); // The body's deadline (if any) starts now
+						tmpPhaseBytes = 0;
+					}
+					if (this.meParser.getState() != RequestParser.State.BODY)
+						break;
+					continue; // The body goes to the request's sink now
+				}
+				int tmpTimeout = KEEP_ALIVE_TIMEOUT; // While idle (and between the bytes of a request)
+				if (tmpPhaseStart != 0) {
+					long tmpLeft = ClientLimits.getDeadline(tmpPhaseStart, tmpPhaseBytes, outReq != null) - System.currentTimeMillis();
+					if (tmpLeft <= 0)
+						throw new SocketTimeoutException();
+					tmpTimeout = (int) Math.min(tmpLeft, KEEP_ALIVE_TIMEOUT);
+				}
+				this.meAccSock.setSoTimeout(tmpTimeout);
+				tmpNum = this.meAccSock.getInputStream().read(this.meInBuf.array(), 0, this.meInBuf.capacity()); // The actual receiving
+				if (tmpNum < 0) { // Received '-1' (EOF) then the other side has closed the connection (according to: http://stackoverflow.com/questions/10240694/ )
+					if (outReq != null)
+						outReq.releasePayload();
+					return null;
+				}
+				if (tmpPhaseStart == 0)
+					tmpPhaseStart = System.currentTimeMillis();
+				tmpPhaseBytes += tmpNum;
+				this.meInBuf.position(0).limit(tmpNum);
+				ServerMetrics.addBytesIn(tmpNum);
+			}
+		} catch (SocketTimeoutException e) {
+			if (tmpPhaseStart != 0) // A request was received too slowly (idle keep-alive connections time out normally)
+				this.reject(408);
+			if (outReq != null)
+				outReq.releasePayload();
+			return null;
 		} catch (IOException e) {
 			HttpServerMain.printErrWarning("Connection timed out or terminated.", false);
-			if (this.meAccSock != null && !this.meAccSock.isClosed()) {
-				try {
-					this.meAccSock.close();
-				} catch (IOException e1) {/* Can be safely ignored */}
-			}
+			if (outReq != null)
+				outReq.releasePayload();
+			return null;
 		}
-		if (HttpServerMain.SHOW_REQ_RES) {
-			System.out.println("----------------- Start Request String -----------------");	//
-			System.out.println(tmpMsg.toString());											// Printout the request string if required
-			System.out.println("-----------------  End Request String  -----------------");	//
+		outReq.finishBody();
+		ServerMetrics.recordParse(tmpParse);
+		return outReq;
+	}
+
+	// Serves the connection as HTTP/2 until it is over: the frames are written while there are any to send (and
+	// nothing was received meanwhile), otherwise it waits for the client's next bytes
+	private void serveHttp2(Http2Connection theConn) {
+		try {
+			WritableByteChannel tmpCh = this.meAccSock.getChannel() != null ? this.meAccSock.getChannel() : Channels.newChannel(this.meAccSock.getOutputStream());
+			InputStream tmpIn = this.meAccSock.getInputStream();
+			this.meAccSock.setSoTimeout(KEEP_ALIVE_TIMEOUT); // Idle streams are not slow requests
+			theConn.receive(this.meInBuf); // What was received after the request that started it
+			while (!theConn.isClosed()) {
+				if (theConn.canSend()) {
+					theConn.send(tmpCh); // Blocking, so it returns when the round is all sent
+					if (tmpIn.available() == 0 || !theConn.canReceive())
+						continue;
+				}
+				int tmpNum = tmpIn.read(this.meInBuf.array(), 0, this.meInBuf.capacity());
+				if (tmpNum < 0) // Closed by the client
+					break;
+				this.meInBuf.position(0).limit(tmpNum);
+				ServerMetrics.addBytesIn(tmpNum);
+				theConn.receive(this.meInBuf);
+			}
+		} catch (SocketTimeoutException e) {
+			// Idle for too long (like a keep-alive connection)
+		} catch (IOException e) {
+			HttpServerMain.printErrWarning("Connection timed out or terminated.", false);
 		}
-		return new MyRequest(tmpMsg.toString());
+		theConn.close();
 	}
 
-	private void sendResponse(byte[] respBytes) {
+	// Sends the response's bytes, then its body file (if any) straight from the file to the socket's channel
+	private void sendResponse(MyResponse theResp) {
 		try {
 			//this.meAccSock.getOutputStream().write(HttpServerMain.TEST_200.getBytes());
-			this.meAccSock.getOutputStream().write(respBytes);
+			WritableByteChannel tmpCh = this.meAccSock.getChannel() != null ? this.meAccSock.getChannel() : Channels.newChannel(this.meAccSock.getOutputStream());
+			ByteBuffer tmpResp = theResp.getResponseBuffer(); // A canned response is written from its shared buffer
+			while (tmpResp.hasRemaining())
+				ServerMetrics.addBytesOut(tmpCh.write(tmpResp));
+			if (theResp.hasBody()) // Blocking, so it returns when all is sent
+				theResp.sendBody(tmpCh);
 		} catch (IOException e) {
+			theResp.closeBody();
 			HttpServerMain.printErrWarning("Connection timed out or terminated.", false);
 			if (this.meAccSock != null && !this.meAccSock.isClosed()) {
 				try {
@@ -96,24 +250,4 @@ public class ClientConnection implements Runnable {
 			}
 		}
 	}
-
-	// Checks if the received data is empty (it fails when uploading files big enough to be multi-part but this
-	// assignment supposed to use small files)
-	private boolean checkReceiveEnded(ByteArrayOutputStream byteStream) {
-		String tmpStr = byteStream.toString();
-		if (!tmpStr.contains("\r\n\r\n")) // If does not contain double CRLF then there is still data (but not the opposite)
-			return false;
-		if (tmpStr.contains("Content-Length:")) { // If there is a content-length then check if all content is there
-			try {
-				tmpStr = tmpStr.substring(tmpStr.indexOf("Content-Length:") + 15); // Cut the unnecessary part (15 is the length of "Content-Length:")
-				int tmpLen = Integer.parseInt(tmpStr.substring(0, tmpStr.indexOf('\n')).trim()); // Get content-length
-				tmpStr = tmpStr.substring(tmpStr.indexOf("\r\n\r\n") + 4); // Get only the content
-				if (tmpStr.length() < tmpLen)
-					return false; // In case not all content received
-			} catch (IndexOutOfBoundsException | NumberFormatException e) { // These 2 exceptions will happen if not everything is received
-				return false;
-			}
-		}
-		return true;
-	}
 }
@@ -0,0 +1,126 @@
+package httpServer;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client admission control (by the client's address): token buckets for the new connections and for the
+ * requests, and the deadlines that a request's head and body must be received by (so a client that sends a byte
+ * now and then cannot hold a connection, and its thread, for ever). A bucket is a single 'AtomicLong' (the time it
+ * is full again, as in GCRA), so taking a token is one compare-and-set, and the clients' entries are in a
+ * 'ConcurrentHashMap', so the connections' threads never lock each other out. The entries of the clients whose
+ * buckets are full again are dropped every few seconds (they are the same as new ones).
+ * A client over its limits is answered from the canned responses ('429 Too Many Requests' or '408 Request
+ * Timeout') and closed, before a 'MyRequest' is created for it. The rejections are counted in the metrics, but not
+ * in the access log (a flood would flood the log too).
+ * The rate limits are off by default: many clients can share an address (behind a NAT, a proxy or a CDN, or a
+ * remote load test), so a limit has to be chosen for the expected clients. They are enabled by giving a rate, ex:
+ * 'limit.requests=100 limit.requests.burst=200 limit.connections=20' (the bursts default to 200 and 50).
+ * Startup options: 'limit.requests' and 'limit.requests.burst' (requests per second per client, 0 disables),
+ * 'limit.connections' and 'limit.connections.burst' (new connections per second per client, 0 disables),
+ * 'limit.header.timeout' and 'limit.body.timeout' (ms to receive a request's head and body, 0 disables),
+ * 'limit.minrate' (the bytes per second that extend these timeouts, so big bodies are fine if they keep coming),
+ * 'limit.loopback' ('on' also limits the rates of the local clients, ex: for testing).
+ */
+public class ClientLimits {
+
+	/**
+	 * The buckets of one client.
+	 */
+	private static class Client {
+		// Fields
+		private final AtomicLong meRequests = new AtomicLong(); // The time (ns) the bucket is full again
+		private final AtomicLong meConnections = new AtomicLong();
+
+		// Are the buckets full (then the entry is the same as a new one)
+		private boolean isIdle(long now) {
+			return this.meRequests.get() - now <= 0 && this.meConnections.get() - now <= 0;
+		}
+	}
+
+	// Constants
+	private static final long me_REQUEST_INTERVAL = toInterval(ServerConfig.getInt("limit.requests", 0)); // The time (ns) for one token, 0 if not limited
+	private static final long me_REQUEST_TOLERANCE = me_REQUEST_INTERVAL * Math.max(ServerConfig.getInt("limit.requests.burst", 200), 1);
+	private static final long me_CONNECTION_INTERVAL = toInterval(ServerConfig.getInt("limit.connections", 0));
+	private static final long me_CONNECTION_TOLERANCE = me_CONNECTION_INTERVAL * Math.max(ServerConfig.getInt("limit.connections.burst", 50), 1);
+	private static final long me_HEADER_TIMEOUT = Math.max(ServerConfig.getLong("limit.header.timeout", 10000), 0);
+	private static final long me_BODY_TIMEOUT = Math.max(ServerConfig.getLong("limit.body.timeout", 20000), 0);
+	private static final long me_MIN_RATE = Math.max(ServerConfig.getLong("limit.minrate", 500), 1);
+	private static final boolean me_IS_LOOPBACK = ServerConfig.getBoolean("limit.loopback", false);
+	private static final long me_SWEEP_INTERVAL = 10_000_000_000L; // 10 s
+	// Fields
+	private static final ConcurrentHashMap<InetAddress, Client> meClients = new ConcurrentHashMap<>();
+	private static final AtomicLong meNextSweep = new AtomicLong(System.nanoTime() + me_SWEEP_INTERVAL);
+
+	private ClientLimits() {} // Static holder only
+
+	/**
+	 * Takes a token from a client's connections bucket (to be called when a connection is accepted).
+	 * @param client	the client's address
+	 * @return			true if the connection is admitted, false if it should be answered '429 Too Many Requests'
+	 */
+	public static boolean admitConnection(InetAddress client) {
+		if (me_CONNECTION_INTERVAL == 0 || !isLimited(client))
+			return true;
+		long tmpNow = System.nanoTime();
+		return take(getClient(client, tmpNow).meConnections, tmpNow, me_CONNECTION_INTERVAL, me_CONNECTION_TOLERANCE);
+	}
+
+	/**
+	 * Takes a token from a client's requests bucket (to be called when a request's head is received).
+	 * @param client	the client's address
+	 * @return			true if the request is admitted, false if it should be answered '429 Too Many Requests'
+	 */
+	public static boolean admitRequest(InetAddress client) {
+		if (me_REQUEST_INTERVAL == 0 || !isLimited(client))
+			return true;
+		long tmpNow = System.nanoTime();
+		return take(getClient(client, tmpNow).meRequests, tmpNow, me_REQUEST_INTERVAL, me_REQUEST_TOLERANCE);
+	}
+
+	/**
+	 * Returns the time by which a request's head (or body) must be received: its timeout after its first bytes,
+	 * extended by the time the received bytes would take at the minimum rate.
+	 * @param startedAt		the time (ms) its first bytes were received
+	 * @param receivedBytes	the bytes received since then
+	 * @param isBody		true for the body, false for the head
+	 * @return				the deadline (ms), Long.MAX_VALUE if there is none
+	 */
+	public static long getDeadline(long startedAt, long receivedBytes, boolean isBody) {
+		long tmpTimeout = isBody ? me_BODY_TIMEOUT : me_HEADER_TIMEOUT;
+		if (tmpTimeout == 0)
+			return Long.MAX_VALUE;
+		return startedAt + tmpTimeout + receivedBytes * 1000 / me_MIN_RATE;
+	}
+
+	// Are the rates of a client limited (the local clients are not, unless asked for)
+	private static boolean isLimited(InetAddress client) {
+		return client != null && (me_IS_LOOPBACK || !client.isLoopbackAddress());
+	}
+
+	// Returns a client's entry (created if needed), and drops the idle entries now and then
+	private static Client getClient(InetAddress client, long now) {
+		long tmpNext = meNextSweep.get();
+		if (now - tmpNext >= 0 && meNextSweep.compareAndSet(tmpNext, now + me_SWEEP_INTERVAL)) // A single thread sweeps
+			meClients.values().removeIf(tmpClient -> tmpClient.isIdle(now)); // A token taken meanwhile from a dropped entry is just forgiven
+		return meClients.computeIfAbsent(client, tmpAddr -> new Client());
+	}
+
+	// Takes a token from a bucket (the time it is full again moves by a token's interval), or returns false if the
+	// bucket is empty (that time would be further than the burst's tolerance)
+	private static boolean take(AtomicLong theBucket, long now, long interval, long tolerance) {
+		while (true) {
+			long tmpFull = theBucket.get();
+			long tmpNext = (tmpFull - now > 0 ? tmpFull : now) + interval;
+			if (tmpNext - now > tolerance)
+				return false;
+			if (theBucket.compareAndSet(tmpFull, tmpNext))
+				return true;
+		}
+	}
+
+	private static long toInterval(int perSecond) {
+		return perSecond > 0 ? 1_000_000_000L / perSecond : 0;
+	}
+}
@@ -0,0 +1,204 @@
+package httpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of the content-encoded variants of files ('gzip' or 'br'). A precompressed sibling file (ex: 'a.htm.gz'
+ * or 'a.htm.br') is preferred when it is not older than the file, otherwise compressible files are compressed with
+ * gzip once (brotli is only served from siblings). The variants are kept (up to a total byte budget, the least
+ * recently used are evicted first) until the file's modification time changes, and so is the knowledge that a file
+ * has no variant, so a cached lookup needs no file system call. A variant is created by a single thread at a time:
+ * the concurrent first requests for it are answered with the file as it is meanwhile. Startup options: 'compress.min' (smaller files are
+ * not compressed, 0 disables compression), 'compress.max' (the biggest file that is compressed or held in memory,
+ * bigger compressible files are compressed while they are sent) and 'compress.cache' (the total bytes of the held
+ * variants).
+ */
+public class CompressedVariants {
+
+	/**
+	 * An encoded variant of a file.
+	 */
+	public static class Variant {
+		// Fields
+		private ByteBuffer meData; // The encoded bytes (off-heap), or null if they are sent from 'meFile'
+		private Path meFile; // The precompressed sibling file (only if it is too big to be held)
+		private long meSize; // The encoded size
+		private long meModified; // The original file's modification time that this variant belongs to
+		private boolean meIsNone; // Remembers that the file has no variant in this encoding
+
+		private Variant(ByteBuffer theData, Path theFile, long theSize, long modified) {
+			this.meData = theData;
+			this.meFile = theFile;
+			this.meSize = theSize;
+			this.meModified = modified;
+			this.meIsNone = theData == null && theFile == null;
+		}
+
+		/**
+		 * Returns the encoded bytes (a new view every time, so every response has its own position).
+		 * @return	a read-only view of the encoded bytes, or null if they are sent from a file (see 'getFile()')
+		 */
+		public ByteBuffer getBody() {
+			return this.meData == null ? null : this.meData.asReadOnlyBuffer();
+		}
+
+		/**
+		 * Returns the precompressed file to send (if the variant is too big to be held in memory).
+		 * @return	the precompressed file, or null if the variant is held in memory
+		 */
+		public Path getFile() {
+			return this.meFile;
+		}
+
+		/**
+		 * Returns the encoded size.
+		 * @return	the number of the encoded bytes
+		 */
+		public long getSize() {
+			return this.meSize;
+		}
+
+		// The bytes counted against the cache's budget (even knowing there is no variant costs a little)
+		private long getCost() {
+			return this.meData == null ? 64 : this.meData.capacity() + 64;
+		}
+	}
+
+	// Constants
+	private static final long me_MIN_SIZE = ServerConfig.getLong("compress.min", 1024L); // Smaller files are sent as they are
+	private static final long me_MAX_SIZE = ServerConfig.getLong("compress.max", 4L * 1024 * 1024); // Bigger files are not compressed here (nor their siblings held)
+	private static final long me_MAX_BYTES = ServerConfig.getLong("compress.cache", 16L * 1024 * 1024); // The total budget of the held variants
+	// Fields
+	private static final LinkedHashMap<String, Variant> meVariants = new LinkedHashMap<>(64, 0.75f, true); // By path and encoding (in access order)
+	private static final Set<String> meCreating = new HashSet<>(); // The variants being created (guarded by 'meVariants')
+	private static long meBytes; // The bytes held by the variants
+
+	private CompressedVariants() {} // Static holder only
+
+	/**
+	 * Checks if a file with the given size is worth to be sent encoded.
+	 * @param fileSize	the file's size
+	 * @return			true if compression is enabled and the file is big enough
+	 */
+	public static boolean isWorthEncoding(long fileSize) {
+		return me_MIN_SIZE > 0 && fileSize >= me_MIN_SIZE;
+	}
+
+	/**
+	 * Checks if a file is too big to have its compressed variant held (then it can only be compressed while it is sent).
+	 * @param fileSize	the file's size
+	 * @return			true if the file is compressed while it is sent
+	 */
+	public static boolean isStreamed(long fileSize) {
+		return isWorthEncoding(fileSize) && fileSize > me_MAX_SIZE;
+	}
+
+	/**
+	 * Returns the variant of a file in an encoding (finding its precompressed sibling, or compressing it, if it
+	 * is not known yet for the file's current modification time).
+	 * @param absPath		the file's canonical absolute path
+	 * @param coding		the content coding ('gzip' or 'br')
+	 * @param fileSize		the file's size
+	 * @param modified		the file's modification time
+	 * @param compressible	true if the file can be compressed here (if there is no precompressed sibling)
+	 * @return				the variant, or null if the file has none in this encoding (or it is being created by another thread)
+	 */
+	public static Variant get(String absPath, String coding, long fileSize, long modified, boolean compressible) {
+		String tmpKey = coding + ":" + absPath;
+		Variant outVar;
+		synchronized (meVariants) {
+			outVar = meVariants.get(tmpKey);
+			if (outVar != null && outVar.meModified == modified)
+				return outVar.meIsNone ? null : outVar;
+			if (!meCreating.add(tmpKey)) // Another thread is creating it, so this response goes without it
+				return null;
+		}
+		outVar = null;
+		try {
+			outVar = createVariant(absPath, coding, fileSize, modified, compressible);
+		} finally {
+			synchronized (meVariants) {
+				meCreating.remove(tmpKey);
+				if (outVar != null) {
+					Variant tmpOld = meVariants.put(tmpKey, outVar);
+					if (tmpOld != null)
+						meBytes -= tmpOld.getCost();
+					meBytes += outVar.getCost();
+					Iterator<Variant> tmpIter = meVariants.values().iterator(); // The least recently used first
+					while (meBytes > me_MAX_BYTES && tmpIter.hasNext()) {
+						meBytes -= tmpIter.next().getCost();
+						tmpIter.remove();
+					}
+				}
+			}
+		}
+		return outVar.meIsNone ? null : outVar;
+	}
+
+	/**
+	 * Drops the variants of a file (to be called when the file, or one of its precompressed siblings, is written).
+	 * @param absPath	the written file's canonical absolute path
+	 */
+	public static void invalidate(String absPath) {
+		if (absPath.endsWith(".gz") || absPath.endsWith(".br"))
+			absPath = absPath.substring(0, absPath.length() - 3);
+		synchronized (meVariants) {
+			for (String tmpCoding : new String[] {"gzip", "br"}) {
+				Variant tmpVar = meVariants.remove(tmpCoding + ":" + absPath);
+				if (tmpVar != null)
+					meBytes -= tmpVar.getCost();
+			}
+		}
+	}
+
+	// Creates the variant of a file: its precompressed sibling if there is a fresh one, otherwise it is compressed
+	// with gzip (if compressible and not too big), or a variant that remembers there is none
+	private static Variant createVariant(String absPath, String coding, long fileSize, long modified, boolean compressible) {
+		Path tmpSibling = Paths.get(absPath + ("br".equals(coding) ? ".br" : ".gz"));
+		try {
+			BasicFileAttributes tmpAttr = Files.readAttributes(tmpSibling, BasicFileAttributes.class);
+			if (tmpAttr.isRegularFile() && tmpAttr.lastModifiedTime().toMillis() >= modified) { // An older sibling is outdated
+				if (tmpAttr.size() > me_MAX_SIZE || tmpAttr.size() > me_MAX_BYTES)
+					return new Variant(null, tmpSibling, tmpAttr.size(), modified);
+				ByteBuffer tmpData = ByteBuffer.allocateDirect((int) tmpAttr.size());
+				try (FileChannel tmpCh = FileChannel.open(tmpSibling, StandardOpenOption.READ)) {
+					while (tmpData.hasRemaining() && tmpCh.read(tmpData) >= 0);
+				}
+				if (!tmpData.hasRemaining()) // Not truncated meanwhile
+					return new Variant(tmpData.flip(), null, tmpData.limit(), modified);
+			}
+		} catch (IOException | SecurityException e) {/* No (readable) sibling */}
+		if ("gzip".equals(coding) && compressible && fileSize <= me_MAX_SIZE) {
+			ByteArrayOutputStream tmpOut = new ByteArrayOutputStream((int) Math.max(fileSize / 3, 64));
+			try (InputStream tmpIn = Files.newInputStream(Paths.get(absPath)); OutputStream tmpGzip = new GZIPOutputStream(tmpOut, HttpServerMain.BUFSIZE * 16)) {
+				byte tmpBuf[] = new byte[HttpServerMain.BUFSIZE * 16];
+				int tmpNum;
+				while ((tmpNum = tmpIn.read(tmpBuf)) >= 0)
+					tmpGzip.write(tmpBuf, 0, tmpNum);
+			} catch (IOException | SecurityException e) {
+				return new Variant(null, null, 0, modified);
+			}
+			if (tmpOut.size() < fileSize) { // Otherwise not worth it
+				ByteBuffer tmpData = ByteBuffer.allocateDirect(tmpOut.size());
+				tmpData.put(tmpOut.toByteArray()).flip();
+				return new Variant(tmpData, null, tmpData.limit(), modified);
+			}
+		}
+		return new Variant(null, null, 0, modified);
+	}
+}
@@ -0,0 +1,361 @@
+package httpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The listings of the browsable directories (by default the upload folders 'put' and 'post'), as HTML or JSON
+ * pages sorted by name, size or modification time. A directory is read once (streamed by a 'DirectoryStream', so
+ * a folder of tens of thousands of files is never held as a whole array of paths), then its listing is kept with
+ * a sorted view per sort order and its rendered pages. A file that is added, replaced or deleted (by an upload,
+ * or outside the server, as seen by 'PathCache''s watcher) is patched into the sorted views by a binary search
+ * instead of reading the directory again, and only the rendered pages are dropped.
+ * Startup options: 'autoindex' (the browsable directories under the root, comma separated, 'off' disables
+ * listings), 'autoindex.cache' (the most directories whose listings are kept).
+ */
+public class DirectoryListings {
+
+	/**
+	 * The orders a listing can be sorted by.
+	 */
+	public static enum Sort {
+		NAME(Comparator.comparing((Item tmpItem) -> tmpItem.meName)),
+		SIZE(Comparator.comparingLong((Item tmpItem) -> tmpItem.meSize).thenComparing(tmpItem -> tmpItem.meName)),
+		MODIFIED(Comparator.comparingLong((Item tmpItem) -> tmpItem.meModified).thenComparing(tmpItem -> tmpItem.meName));
+
+		private final Comparator<Item> meOrder; // Ties are ordered by name, so every item has one exact place
+
+		private Sort(Comparator<Item> theOrder) {
+			this.meOrder = theOrder;
+		}
+
+		/**
+		 * Returns the sort order named by a query parameter.
+		 * @param name	the name ('name', 'size' or 'modified'/'mtime')
+		 * @return		the sort order ('NAME' if the name is unknown or null)
+		 */
+		public static Sort fromName(String name) {
+			if ("size".equalsIgnoreCase(name))
+				return SIZE;
+			if ("modified".equalsIgnoreCase(name) || "mtime".equalsIgnoreCase(name))
+				return MODIFIED;
+			return NAME;
+		}
+	}
+
+	// A file (or subdirectory) of a listed directory
+	private static class Item {
+		private String meName;
+		private boolean meIsDir;
+		private long meSize;
+		private long meModified;
+	}
+
+	// The listing of one directory (its methods are called holding its lock)
+	private static class Listing {
+		private Path meDir;
+		private boolean meIsRead; // The directory was read (it is patched from then on)
+		private Map<String, Item> meItems = new HashMap<>(); // By name
+		private EnumMap<Sort, ArrayList<Item>> meSorted = new EnumMap<>(Sort.class); // Ascending (made when first asked for)
+		private Map<String, byte[]> mePages = new HashMap<>(); // The rendered pages by their parameters
+		private long meVersion; // Changes with every patch (so a page rendered meanwhile is not kept)
+
+		Listing(Path theDir) {
+			this.meDir = theDir;
+		}
+
+		// Reads the whole directory (the only time it is read)
+		void read() throws IOException {
+			try (DirectoryStream<Path> tmpStream = Files.newDirectoryStream(this.meDir)) {
+				for (Path tmpPath : tmpStream) {
+					Item tmpItem = createItem(tmpPath);
+					if (tmpItem != null)
+						this.meItems.put(tmpItem.meName, tmpItem);
+				}
+			}
+			this.meIsRead = true;
+		}
+
+		ArrayList<Item> getSorted(Sort theSort) {
+			ArrayList<Item> outList = this.meSorted.get(theSort);
+			if (outList == null) {
+				outList = new ArrayList<>(this.meItems.values());
+				outList.sort(theSort.meOrder);
+				this.meSorted.put(theSort, outList);
+			}
+			return outList;
+		}
+
+		// Replaces (or removes, if the new item is null) an item in the sorted views
+		void patch(String name, Item newItem) {
+			Item tmpOld = newItem == null ? this.meItems.remove(name) : this.meItems.put(name, newItem);
+			for (Map.Entry<Sort, ArrayList<Item>> tmpView : this.meSorted.entrySet()) {
+				ArrayList<Item> tmpList = tmpView.getValue();
+				if (tmpOld != null) {
+					int tmpInd = Collections.binarySearch(tmpList, tmpOld, tmpView.getKey().meOrder);
+					if (tmpInd >= 0)
+						tmpList.remove(tmpInd);
+				}
+				if (newItem != null) {
+					int tmpInd = Collections.binarySearch(tmpList, newItem, tmpView.getKey().meOrder);
+					tmpList.add(tmpInd < 0 ? -tmpInd - 1 : tmpInd, newItem);
+				}
+			}
+			this.mePages.clear();
+			this.meVersion++;
+		}
+	}
+
+	// Constants
+	private static final String me_LISTED[] = findListed(); // The browsable directories' canonical paths (URL paths ending with '/')
+	private static final int me_MAX_LISTINGS = Math.max(ServerConfig.getInt("autoindex.cache", 16), 1);
+	private static final int me_MAX_PAGES = 32; // The most rendered pages kept for one directory
+	public static final int MAX_PAGE_SIZE = 1000;
+	// Fields
+	private static final LinkedHashMap<String, Listing> meListings = new LinkedHashMap<>(16, 0.75f, true); // By canonical path (in access order)
+
+	private DirectoryListings() {} // Static holder only
+
+	/**
+	 * Checks if a directory can be listed.
+	 * @param absPath	the directory's canonical path (a URL path)
+	 * @return			true if it is one of the browsable directories (or under one)
+	 */
+	public static boolean isListable(String absPath) {
+		String tmpPath = absPath.endsWith("/") ? absPath : absPath + "/";
+		for (String tmpListed : me_LISTED) {
+			if (tmpPath.startsWith(tmpListed))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a page of a directory's listing (rendered once, then kept until the directory changes).
+	 * @param absPath		the directory's canonical path (a URL path)
+	 * @param target		the directory's path as requested (the links are made from it)
+	 * @param isJson		true for JSON, false for HTML
+	 * @param theSort		the sort order
+	 * @param isDescending	true to reverse the sort order
+	 * @param page			the page's number (from 1)
+	 * @param pageSize		the items per page (from 1 to 'MAX_PAGE_SIZE')
+	 * @return				the page's bytes (shared, not to be changed)
+	 * @throws IOException	if the directory cannot be read
+	 */
+	public static byte[] getPage(String absPath, String target, boolean isJson, Sort theSort, boolean isDescending, int page, int pageSize) throws IOException {
+		Listing tmpListing = getListing(absPath);
+		String tmpKey = (isJson ? "json|" : "html|") + target + "|" + theSort + "|" + isDescending + "|" + page + "|" + pageSize;
+		List<Item> tmpItems;
+		int tmpTotal;
+		long tmpVersion;
+		synchronized (tmpListing) {
+			if (!tmpListing.meIsRead)
+				tmpListing.read();
+			byte outPage[] = tmpListing.mePages.get(tmpKey);
+			if (outPage != null)
+				return outPage;
+			tmpVersion = tmpListing.meVersion;
+			ArrayList<Item> tmpSorted = tmpListing.getSorted(theSort);
+			tmpTotal = tmpSorted.size();
+			tmpItems = new ArrayList<>(pageSize);
+			for (long i = (long) (page - 1) * pageSize; i < Math.min((long) page * pageSize, tmpTotal); i++)
+				tmpItems.add(tmpSorted.get((int) (isDescending ? tmpTotal - 1 - i : i))); // Only the page is copied
+		}
+		String tmpDir = target.endsWith("/") ? target : target + "/";
+		String tmpText = isJson ? renderJson(tmpDir, tmpItems, tmpTotal, theSort, isDescending, page, pageSize)
+				: renderHtml(tmpDir, tmpItems, tmpTotal, theSort, isDescending, page, pageSize);
+		byte outPage[] = tmpText.getBytes(StandardCharsets.UTF_8);
+		synchronized (tmpListing) { // Rendered without the lock, so it is kept only if nothing was patched meanwhile
+			if (tmpListing.meVersion == tmpVersion) {
+				if (tmpListing.mePages.size() >= me_MAX_PAGES)
+					tmpListing.mePages.clear();
+				tmpListing.mePages.put(tmpKey, outPage);
+			}
+		}
+		return outPage;
+	}
+
+	/**
+	 * Patches a file's item into its directory's listing (to be called when a file is created, replaced or deleted).
+	 * Nothing is done if the directory's listing is not kept.
+	 * @param absPath	the file's canonical path (a URL path)
+	 */
+	public static void update(String absPath) {
+		String tmpPath = absPath.endsWith("/") ? absPath.substring(0, absPath.length() - 1) : absPath;
+		String tmpDir = tmpPath.substring(0, tmpPath.lastIndexOf('/') + 1);
+		String tmpName = tmpPath.substring(tmpPath.lastIndexOf('/') + 1);
+		Listing tmpListing;
+		synchronized (meListings) {
+			tmpListing = meListings.get(tmpDir);
+		}
+		if (tmpListing == null || tmpName.isEmpty() || tmpName.startsWith("."))
+			return;
+		synchronized (tmpListing) {
+			if (tmpListing.meIsRead)
+				tmpListing.patch(tmpName, createItem(tmpListing.meDir.resolve(tmpName)));
+		}
+	}
+
+	/**
+	 * Drops all the kept listings (ex: when changes could have been missed).
+	 */
+	public static void clear() {
+		synchronized (meListings) {
+			meListings.clear();
+		}
+	}
+
+	// Returns the directory's listing (a new empty one if it is not kept), evicting the least recently used listings
+	private static Listing getListing(String absPath) {
+		String tmpPath = absPath.endsWith("/") ? absPath : absPath + "/";
+		synchronized (meListings) {
+			Listing outListing = meListings.get(tmpPath);
+			if (outListing == null) {
+				outListing = new Listing(Paths.get(new File(tmpPath).getAbsolutePath()));
+				meListings.put(tmpPath, outListing);
+				Iterator<Listing> tmpIter = meListings.values().iterator(); // The least recently used first
+				while (meListings.size() > me_MAX_LISTINGS && tmpIter.hasNext()) {
+					tmpIter.next();
+					tmpIter.remove();
+				}
+			}
+			return outListing;
+		}
+	}
+
+	// The item of a file, or null if it is hidden (ex: an upload's temporary file) or does not exist (anymore)
+	private static Item createItem(Path thePath) {
+		String tmpName = thePath.getFileName().toString();
+		if (tmpName.startsWith("."))
+			return null;
+		try {
+			BasicFileAttributes tmpAttrs = Files.readAttributes(thePath, BasicFileAttributes.class);
+			Item outItem = new Item();
+			outItem.meName = tmpName;
+			outItem.meIsDir = tmpAttrs.isDirectory();
+			outItem.meSize = tmpAttrs.isDirectory() ? 0 : tmpAttrs.size();
+			outItem.meModified = tmpAttrs.lastModifiedTime().toMillis();
+			return outItem;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | SecurityException e) { // Listed without its details
+			Item outItem = new Item();
+			outItem.meName = tmpName;
+			return outItem;
+		}
+	}
+
+	private static String renderJson(String dirTarget, List<Item> theItems, int total, Sort theSort, boolean isDescending, int page, int pageSize) {
+		StringBuilder outText = new StringBuilder(128 + theItems.size() * 96);
+		outText.append("{\"path\":");
+		appendJsonString(outText, dirTarget);
+		outText.append(",\"total\":").append(total).append(",\"page\":").append(page).append(",\"pages\":").append(getPages(total, pageSize))
+				.append(",\"size\":").append(pageSize).append(",\"sort\":\"").append(theSort.name().toLowerCase()).append("\",\"order\":\"")
+				.append(isDescending ? "desc" : "asc").append("\",\"entries\":[");
+		for (int i = 0; i < theItems.size(); i++) {
+			Item tmpItem = theItems.get(i);
+			outText.append(i == 0 ? "{\"name\":" : ",{\"name\":");
+			appendJsonString(outText, tmpItem.meName);
+			outText.append(",\"type\":\"").append(tmpItem.meIsDir ? "directory" : "file").append("\",\"size\":").append(tmpItem.meSize)
+					.append(",\"modified\":\"").append(Instant.ofEpochMilli(tmpItem.meModified)).append("\"}");
+		}
+		return outText.append("]}").toString();
+	}
+
+	private static String renderHtml(String dirTarget, List<Item> theItems, int total, Sort theSort, boolean isDescending, int page, int pageSize) {
+		StringBuilder outText = new StringBuilder(512 + theItems.size() * 160);
+		String tmpDir = escapeHtml(dirTarget);
+		outText.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Index of ").append(tmpDir).append("</title></head><body>\n<h1>Index of ")
+				.append(tmpDir).append("</h1>\n<table>\n<tr>");
+		for (Sort tmpSort : Sort.values()) { // The headers sort by their column (again to reverse it)
+			boolean tmpIsDesc = tmpSort == theSort && !isDescending;
+			outText.append("<th><a href=\"?sort=").append(tmpSort.name().toLowerCase()).append("&amp;order=").append(tmpIsDesc ? "desc" : "asc")
+					.append("&amp;size=").append(pageSize).append("\">").append(tmpSort == Sort.NAME ? "Name" : tmpSort == Sort.SIZE ? "Size" : "Last modified")
+					.append("</a></th>");
+		}
+		outText.append("</tr>\n");
+		for (Item tmpItem : theItems) {
+			String tmpName = escapeHtml(tmpItem.meName) + (tmpItem.meIsDir ? "/" : "");
+			outText.append("<tr><td><a href=\"").append(escapeHtml(dirTarget + tmpItem.meName) + (tmpItem.meIsDir ? "/" : "")).append("\">") // Not percent-encoded, since the targets are not decoded either
+					.append(tmpName).append("</a></td><td>").append(tmpItem.meIsDir ? "-" : String.valueOf(tmpItem.meSize)).append("</td><td>")
+					.append(Instant.ofEpochMilli(tmpItem.meModified)).append("</td></tr>\n");
+		}
+		outText.append("</table>\n<p>");
+		String tmpParams = "&amp;sort=" + theSort.name().toLowerCase() + "&amp;order=" + (isDescending ? "desc" : "asc") + "&amp;size=" + pageSize;
+		if (page > 1)
+			outText.append("<a href=\"?page=").append(page - 1).append(tmpParams).append("\">Previous</a> ");
+		outText.append("Page ").append(page).append(" of ").append(getPages(total, pageSize)).append(" (").append(total).append(" entries)");
+		if (page < getPages(total, pageSize))
+			outText.append(" <a href=\"?page=").append(page + 1).append(tmpParams).append("\">Next</a>");
+		return outText.append("</p>\n</body></html>\n").toString();
+	}
+
+	private static int getPages(int total, int pageSize) {
+		return Math.max((total + pageSize - 1) / pageSize, 1);
+	}
+
+	private static String escapeHtml(String text) {
+		StringBuilder outText = new StringBuilder(text.length() + 16);
+		for (int i = 0; i < text.length(); i++) {
+			char tmpCh = text.charAt(i);
+			switch (tmpCh) {
+				case '<': outText.append("&lt;"); break;
+				case '>': outText.append("&gt;"); break;
+				case '&': outText.append("&amp;"); break;
+				case '"': outText.append("&quot;"); break;
+				case '\'': outText.append("&#39;"); break;
+				default: outText.append(tmpCh);
+			}
+		}
+		return outText.toString();
+	}
+
+	private static void appendJsonString(StringBuilder theText, String value) {
+		theText.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char tmpCh = value.charAt(i);
+			if (tmpCh == '"' || tmpCh == '\\') {
+				theText.append('\\').append(tmpCh);
+			} else if (tmpCh < 0x20) {
+				theText.append(String.format("\\u%04x", (int) tmpCh));
+			} else {
+				theText.append(tmpCh);
+			}
+		}
+		theText.append('"');
+	}
+
+	// The browsable directories from the 'autoindex' option (relative to the root)
+	private static String[] findListed() {
+		String tmpOption = ServerConfig.getString("autoindex", "put,post");
+		if ("off".equalsIgnoreCase(tmpOption) || PathCache.getRoot() == null)
+			return new String[0];
+		ArrayList<String> outDirs = new ArrayList<>();
+		for (String tmpName : tmpOption.split(",")) {
+			String tmpDir = tmpName.trim();
+			while (tmpDir.startsWith("/"))
+				tmpDir = tmpDir.substring(1);
+			while (tmpDir.endsWith("/"))
+				tmpDir = tmpDir.substring(0, tmpDir.length() - 1);
+			outDirs.add(PathCache.getRoot() + (tmpDir.isEmpty() ? "" : tmpDir + "/"));
+		}
+		return outDirs.toArray(new String[0]);
+	}
+}
@@ -0,0 +1,179 @@
+package httpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Coordinates the writes to the server's files (the POST appends and the PUT overwrites), with a lock per stripe of
+ * paths. An append is queued on its stripe, then whichever thread holds the stripe's lock writes all the queued
+ * appends (group commit): the appends to a file are one gather write on a single channel (and a single 'force()'
+ * if asked for), so concurrent appends cost one open and close per batch instead of one per request, and a batch
+ * grows with the concurrency. An appended body is never interleaved with another one, and an append fails only if
+ * its own body could not be written whole (then the ones queued after it fail too). An overwrite moves the
+ * already received upload in place at once (an atomic rename, so the readers see either the whole old file or the
+ * whole new one), after the appends queued before it.
+ * Startup option: 'writes.sync' ('on' forces the appended bytes to the disk before answering).
+ */
+public class FileWrites {
+
+	/**
+	 * A queued append.
+	 */
+	private static class Append {
+		// Fields
+		private Path meTarget;
+		private Path mePayload; // The received body (a temporary file)
+		private boolean meIsDone; // Written (or failed), set under the stripe's lock
+		private boolean meIsWritten; // All its bytes are in the file
+		private ByteBuffer meBuf; // Its body read in memory (a small one, until it is gathered into a write)
+		private IOException meError;
+	}
+
+	/**
+	 * A stripe of paths: its lock (the stripe itself) and its queued appends.
+	 */
+	private static class Stripe {
+		// Fields
+		private final Queue<Append> meQueue = new ConcurrentLinkedQueue<>(); // The appends waiting for the lock
+	}
+
+	// Constants
+	private static final int me_STRIPES = 64; // A power of 2
+	private static final int me_MAX_GATHERED = 64 * 1024; // Bigger bodies are transferred from their file instead of read first
+	private static final int me_MAX_GATHER_WRITE = 256 * 1024; // Read in memory at most for a single gather write
+	private static final boolean me_IS_SYNC = ServerConfig.getBoolean("writes.sync", false);
+	// Fields
+	private static final Stripe meStripes[] = new Stripe[me_STRIPES];
+
+	static {
+		for (int i = 0; i < me_STRIPES; i++)
+			meStripes[i] = new Stripe();
+	}
+
+	private FileWrites() {} // Static holder only
+
+	/**
+	 * Appends a received body to a file (with the other appends queued meanwhile), and returns when it is written.
+	 * @param target		the file to append to (it must exist)
+	 * @param payload		the received body (a temporary file, it is left in place)
+	 * @throws IOException	if writing failed
+	 */
+	public static void append(Path target, Path payload) throws IOException {
+		Append tmpAppend = new Append();
+		tmpAppend.meTarget = target;
+		tmpAppend.mePayload = payload;
+		Stripe tmpStripe = getStripe(target);
+		tmpStripe.meQueue.add(tmpAppend);
+		synchronized (tmpStripe) {
+			if (!tmpAppend.meIsDone) // Not written by the previous holder of the lock, so this thread writes the batch
+				commit(tmpStripe);
+		}
+		if (tmpAppend.meError != null)
+			throw tmpAppend.meError;
+	}
+
+	/**
+	 * Replaces a file (or creates it) with a received body at once.
+	 * @param target		the file to replace
+	 * @param payload		the received body (a temporary file in the same directory, it is moved)
+	 * @throws IOException	if the move failed
+	 */
+	public static void replace(Path target, Path payload) throws IOException {
+		Stripe tmpStripe = getStripe(target);
+		synchronized (tmpStripe) {
+			commit(tmpStripe); // The appends that came first go to the old file
+			Files.move(payload, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	// Writes all the queued appends of a stripe (to be called with its lock), grouped by file in their order
+	private static void commit(Stripe theStripe) {
+		Map<Path, List<Append>> tmpBatch = new LinkedHashMap<>();
+		Append tmpAppend;
+		while ((tmpAppend = theStripe.meQueue.poll()) != null)
+			tmpBatch.computeIfAbsent(tmpAppend.meTarget, tmpPath -> new ArrayList<>()).add(tmpAppend);
+		for (Map.Entry<Path, List<Append>> tmpEntry : tmpBatch.entrySet()) {
+			write(tmpEntry.getKey(), tmpEntry.getValue());
+			for (Append tmpDone : tmpEntry.getValue())
+				tmpDone.meIsDone = true;
+		}
+	}
+
+	// Appends the bodies to a file: the small ones gathered into single writes, the big ones transferred from their
+	// files. If writing fails, the appends not written yet get the error (the one that failed may be partly written,
+	// so the ones after it are not written at all)
+	private static void write(Path target, List<Append> appends) {
+		try (FileChannel tmpOut = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			List<Append> tmpGathered = new ArrayList<>(appends.size());
+			long tmpGatheredSize = 0;
+			for (Append tmpAppend : appends) {
+				try (FileChannel tmpIn = FileChannel.open(tmpAppend.mePayload, StandardOpenOption.READ)) {
+					long tmpSize = tmpIn.size();
+					if (tmpSize > me_MAX_GATHERED || tmpGatheredSize + tmpSize > me_MAX_GATHER_WRITE) {
+						flush(tmpOut, tmpGathered); // The bodies before it go first
+						tmpGatheredSize = 0;
+					}
+					if (tmpSize <= me_MAX_GATHERED) {
+						tmpAppend.meBuf = ByteBuffer.allocate((int) tmpSize);
+						while (tmpAppend.meBuf.hasRemaining() && tmpIn.read(tmpAppend.meBuf) >= 0);
+						tmpAppend.meBuf.flip();
+						tmpGathered.add(tmpAppend);
+						tmpGatheredSize += tmpSize;
+						continue;
+					}
+					long tmpPos = 0;
+					while (tmpPos < tmpSize)
+						tmpPos += tmpIn.transferTo(tmpPos, tmpSize - tmpPos, tmpOut);
+					tmpAppend.meIsWritten = true;
+				}
+			}
+			flush(tmpOut, tmpGathered);
+			if (me_IS_SYNC) {
+				try {
+					tmpOut.force(false); // Once for the whole batch
+				} catch (IOException e) {
+					for (Append tmpAppend : appends)
+						tmpAppend.meError = e; // None is known to be on the disk
+				}
+			}
+		} catch (IOException e) {
+			for (Append tmpAppend : appends) {
+				if (!tmpAppend.meIsWritten)
+					tmpAppend.meError = e;
+			}
+		}
+	}
+
+	// Writes the gathered bodies (a gather write, continued from the first body with bytes left), and marks each one
+	// written as soon as its last byte is
+	private static void flush(FileChannel theOut, List<Append> theAppends) throws IOException {
+		ByteBuffer tmpBufs[] = new ByteBuffer[theAppends.size()];
+		for (int i = 0; i < tmpBufs.length; i++)
+			tmpBufs[i] = theAppends.get(i).meBuf;
+		int tmpFirst = 0;
+		while (tmpFirst < tmpBufs.length) {
+			theOut.write(tmpBufs, tmpFirst, tmpBufs.length - tmpFirst);
+			for (; tmpFirst < tmpBufs.length && !tmpBufs[tmpFirst].hasRemaining(); tmpFirst++) {
+				theAppends.get(tmpFirst).meIsWritten = true;
+				theAppends.get(tmpFirst).meBuf = null;
+			}
+		}
+		theAppends.clear();
+	}
+
+	private static Stripe getStripe(Path target) {
+		int tmpHash = target.toAbsolutePath().normalize().hashCode();
+		return meStripes[(tmpHash ^ (tmpHash >>> 16)) & (me_STRIPES - 1)];
+	}
+}
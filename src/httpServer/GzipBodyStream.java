@@ -0,0 +1,61 @@
+package httpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response body that gzip-compresses a file while it is being sent (for files too big to be compressed in
+ * memory at once). Only one block of the file and its compressed bytes are held at a time, so the memory used
+ * stays the same whatever the file's size, and the first bytes go out before the whole file is compressed.
+ */
+public class GzipBodyStream implements MyResponse.BodyStream {
+	// Fields
+	private FileChannel meFile;
+	private ByteBuffer meBlock = ByteBuffer.allocate(HttpServerMain.BUFSIZE * 32); // The file's current block
+	private ByteArrayOutputStream meOut = new ByteArrayOutputStream(HttpServerMain.BUFSIZE * 32); // The compressed bytes of the current block
+	private GZIPOutputStream meGzip;
+	private boolean meIsEnded;
+
+	/**
+	 * Constructor (the file is opened immediately).
+	 * @param theFile		the file to send compressed
+	 * @throws IOException	if the file cannot be opened
+	 */
+	public GzipBodyStream(Path theFile) throws IOException {
+		this.meFile = FileChannel.open(theFile, StandardOpenOption.READ);
+		this.meGzip = new GZIPOutputStream(this.meOut, HttpServerMain.BUFSIZE * 32);
+	}
+
+	@Override
+	public ByteBuffer next() throws IOException {
+		while (this.meOut.size() == 0 && !this.meIsEnded) { // A block can compress to nothing yet (kept by the deflater)
+			this.meBlock.clear();
+			if (this.meFile.read(this.meBlock) < 0) {
+				this.meGzip.finish(); // The rest and the gzip trailer
+				this.meIsEnded = true;
+			} else {
+				this.meGzip.write(this.meBlock.array(), 0, this.meBlock.position());
+			}
+		}
+		if (this.meOut.size() == 0)
+			return null;
+		ByteBuffer outChunk = ByteBuffer.wrap(this.meOut.toByteArray()); // With the gzip header the first time
+		this.meOut.reset();
+		return outChunk;
+	}
+
+	@Override
+	public void close() {
+		try {
+			this.meGzip.close(); // Ends its deflater (its native memory is not left to the garbage collector)
+		} catch (IOException e) {/* Can be safely ignored (only writes to memory) */}
+		try {
+			this.meFile.close();
+		} catch (IOException e) {/* Can be safely ignored */}
+	}
+}
@@ -0,0 +1,352 @@
+package httpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The HPACK header compression of HTTP/2 (RFC 7541): one side of a connection's header table. A connection has
+ * one for decoding the client's header blocks and one for encoding its own, since each direction has its own
+ * dynamic table. The encoder indexes the header fields that repeat from response to response (ex: 'server',
+ * 'content-type'), so they cost a byte or two after their first response, and sends the ones that change every
+ * time (ex: 'etag', 'content-length') without indexing them. A string is Huffman coded when that is shorter.
+ * The fields are {name, value} pairs of ISO-8859-1 strings (one char per byte, like 'RequestParser').
+ */
+public class Hpack {
+	// Constants
+	private static final String me_STATIC[][] = { // RFC 7541, Appendix A (index 1 is the first one)
+			{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+			{":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+			{":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+			{"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+			{"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+			{"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+			{"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""},
+			{"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""},
+			{"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""},
+			{"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+			{"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""},
+			{"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+			{"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}};
+	private static final int me_HUFFMAN_LENGTHS[] = { // RFC 7541, Appendix B: the code lengths of the 256 bytes and EOS (the code is canonical, so the codes follow from them)
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30};
+	private static final int me_EOS = 256;
+	private static final int me_HUFFMAN_CODES[] = new int[me_HUFFMAN_LENGTHS.length];
+	private static final int me_HUFFMAN_TREE[] = new int[2 * me_HUFFMAN_LENGTHS.length]; // The decoding tree: the two children of every node (node * 2 + bit), a leaf is '-1 - symbol'
+	private static final Map<String, Integer> me_STATIC_NAMES = new HashMap<>(); // The first static index of every name
+	private static final Set<String> me_UNINDEXED = new HashSet<>(Arrays.asList("content-length", "content-range", "etag", "last-modified",
+			"location", "date", "set-cookie")); // The fields that change from response to response (indexing them would only evict the useful ones)
+	private static final int me_ENTRY_OVERHEAD = 32; // Added to the length of every dynamic table entry (RFC 7541, 4.1)
+	private static final int me_MAX_STRING = 64 * 1024; // The longest decoded string
+	// Fields
+	private ArrayDeque<String[]> meTable = new ArrayDeque<>(); // The dynamic table (the newest entry first, it is index 62)
+	private int meSize; // The dynamic table's size (RFC 7541, 4.1)
+	private int meMaxSize; // The dynamic table's current max size
+	private int meSizeLimit; // The most that the max size can be set to
+	private boolean meIsSizeChanged; // The encoder's max size was changed, and the next header block has to tell it
+
+	static {
+		int tmpCode = -1;
+		int tmpPrevLen = 0;
+		int tmpNodes = 1; // The root is node 0
+		for (int tmpLen = 1; tmpLen <= 30; tmpLen++) {
+			for (int tmpSym = 0; tmpSym < me_HUFFMAN_LENGTHS.length; tmpSym++) {
+				if (me_HUFFMAN_LENGTHS[tmpSym] != tmpLen)
+					continue;
+				tmpCode = (tmpCode + 1) << (tmpLen - tmpPrevLen); // The canonical code: the next code of this length
+				tmpPrevLen = tmpLen;
+				me_HUFFMAN_CODES[tmpSym] = tmpCode;
+				int tmpNode = 0;
+				for (int i = tmpLen - 1; i > 0; i--) {
+					int tmpChild = tmpNode * 2 + ((tmpCode >>> i) & 1);
+					if (me_HUFFMAN_TREE[tmpChild] == 0)
+						me_HUFFMAN_TREE[tmpChild] = tmpNodes++;
+					tmpNode = me_HUFFMAN_TREE[tmpChild];
+				}
+				me_HUFFMAN_TREE[tmpNode * 2 + (tmpCode & 1)] = -1 - tmpSym;
+			}
+		}
+		for (int i = me_STATIC.length - 1; i >= 0; i--)
+			me_STATIC_NAMES.put(me_STATIC[i][0], i + 1);
+	}
+
+	/**
+	 * Constructor.
+	 * @param maxSize	the dynamic table's max size (the default one of HTTP/2 is 4096)
+	 */
+	public Hpack(int maxSize) {
+		this.meMaxSize = maxSize;
+		this.meSizeLimit = maxSize;
+	}
+
+	/**
+	 * Decodes a header block (the dynamic table is updated by it, so the blocks must be decoded in the order they
+	 * are received, including the ones of refused streams).
+	 * @param block			the whole header block (from the buffer's position to its limit)
+	 * @param maxListSize	the biggest decoded header list (the names' and values' lengths plus 32 per field, as
+	 * 						'SETTINGS_MAX_HEADER_LIST_SIZE'), so a small block of references cannot expand without bound
+	 * @return				the header fields as {name, value} pairs in order, or null if the block is malformed or
+	 * 						its list is too big (the rest is not decoded: then the table cannot be trusted anymore,
+	 * 						it is a connection error)
+	 */
+	public List<String[]> decode(ByteBuffer block, int maxListSize) {
+		List<String[]> outFields = new ArrayList<>();
+		long tmpListSize = 0;
+		boolean tmpIsFirst = true; // Size updates are only allowed at the start of a block
+		while (block.hasRemaining()) {
+			int tmpFirst = block.get() & 0xFF;
+			String tmpField[];
+			if ((tmpFirst & 0x80) != 0) { // Indexed field
+				tmpField = this.getEntry(readInt(block, tmpFirst, 7));
+				if (tmpField == null)
+					return null;
+			} else if ((tmpFirst & 0x20) != 0 && (tmpFirst & 0x40) == 0) { // Dynamic table size update
+				int tmpSize = readInt(block, tmpFirst, 5);
+				if (!tmpIsFirst || tmpSize < 0 || tmpSize > this.meSizeLimit)
+					return null;
+				this.meMaxSize = tmpSize;
+				this.evict(0);
+				continue;
+			} else { // Literal (with incremental indexing, without indexing, or never indexed)
+				boolean tmpIsIndexed = (tmpFirst & 0x40) != 0;
+				int tmpIndex = readInt(block, tmpFirst, tmpIsIndexed ? 6 : 4);
+				String tmpName;
+				if (tmpIndex == 0) {
+					tmpName = readString(block);
+				} else {
+					String tmpEntry[] = this.getEntry(tmpIndex);
+					tmpName = tmpEntry == null ? null : tmpEntry[0];
+				}
+				String tmpValue = tmpName == null ? null : readString(block);
+				if (tmpValue == null)
+					return null;
+				tmpField = new String[] {tmpName, tmpValue};
+				if (tmpIsIndexed)
+					this.add(tmpField);
+			}
+			tmpIsFirst = false;
+			tmpListSize += tmpField[0].length() + tmpField[1].length() + me_ENTRY_OVERHEAD;
+			if (tmpListSize > maxListSize)
+				return null;
+			outFields.add(tmpField);
+		}
+		return outFields;
+	}
+
+	/**
+	 * Encodes a header block (the dynamic table is updated by it, so the blocks must be sent in the order they are
+	 * encoded).
+	 * @param fields	the header fields as {name, value} pairs (lower-cased names, the pseudo-headers first)
+	 * @return			the header block
+	 */
+	public byte[] encode(List<String[]> fields) {
+		ByteArrayOutputStream outBlock = new ByteArrayOutputStream(256);
+		if (this.meIsSizeChanged) {
+			writeInt(outBlock, 0x20, 5, this.meMaxSize);
+			this.meIsSizeChanged = false;
+		}
+		for (String tmpField[] : fields) {
+			int tmpIndex = this.indexOf(tmpField[0], tmpField[1]);
+			if (tmpIndex > 0) { // The whole field is in a table
+				writeInt(outBlock, 0x80, 7, tmpIndex);
+				continue;
+			}
+			boolean tmpIsIndexed = !me_UNINDEXED.contains(tmpField[0]) && tmpField[0].length() + tmpField[1].length() + me_ENTRY_OVERHEAD <= this.meMaxSize;
+			int tmpNameIndex = -tmpIndex; // The name only (or 0)
+			writeInt(outBlock, tmpIsIndexed ? 0x40 : 0x00, tmpIsIndexed ? 6 : 4, tmpNameIndex);
+			if (tmpNameIndex == 0)
+				writeString(outBlock, tmpField[0]);
+			writeString(outBlock, tmpField[1]);
+			if (tmpIsIndexed)
+				this.add(new String[] {tmpField[0], tmpField[1]});
+		}
+		return outBlock.toByteArray();
+	}
+
+	/**
+	 * Sets the encoder's max table size (when the client's 'SETTINGS_HEADER_TABLE_SIZE' changes), the next header
+	 * block tells the decoder about it.
+	 * @param maxSize	the most the client's decoder allows
+	 */
+	public void setMaxSize(int maxSize) {
+		int tmpSize = Math.min(maxSize, this.meSizeLimit); // A bigger table is allowed, but not needed
+		if (tmpSize == this.meMaxSize)
+			return;
+		this.meMaxSize = tmpSize;
+		this.meIsSizeChanged = true;
+		this.evict(0);
+	}
+
+	// Returns a table's entry by its index (the static table's first, then the dynamic one's), or null if there is none
+	private String[] getEntry(int index) {
+		if (index <= 0)
+			return null;
+		if (index <= me_STATIC.length)
+			return me_STATIC[index - 1];
+		index -= me_STATIC.length + 1;
+		if (index >= this.meTable.size())
+			return null;
+		for (String tmpEntry[] : this.meTable) {
+			if (index-- == 0)
+				return tmpEntry;
+		}
+		return null;
+	}
+
+	// Returns the index of the whole field (positive), or else of its name (negative), or 0 if neither is in a table
+	private int indexOf(String name, String value) {
+		Integer tmpStatic = me_STATIC_NAMES.get(name);
+		if (tmpStatic != null) {
+			for (int i = tmpStatic - 1; i < me_STATIC.length && me_STATIC[i][0].equals(name); i++) {
+				if (me_STATIC[i][1].equals(value))
+					return i + 1;
+			}
+		}
+		int outName = tmpStatic == null ? 0 : -tmpStatic;
+		int tmpIndex = me_STATIC.length + 1;
+		for (String tmpEntry[] : this.meTable) {
+			if (tmpEntry[0].equals(name)) {
+				if (tmpEntry[1].equals(value))
+					return tmpIndex;
+				if (outName == 0)
+					outName = -tmpIndex;
+			}
+			tmpIndex++;
+		}
+		return outName;
+	}
+
+	// Adds an entry to the dynamic table (the oldest ones are evicted to make room, an entry bigger than the table only empties it)
+	private void add(String[] theEntry) {
+		int tmpSize = theEntry[0].length() + theEntry[1].length() + me_ENTRY_OVERHEAD;
+		this.evict(tmpSize);
+		if (tmpSize > this.meMaxSize)
+			return;
+		this.meTable.addFirst(theEntry);
+		this.meSize += tmpSize;
+	}
+
+	// Evicts the oldest entries until there is room for an entry of the given size
+	private void evict(int roomSize) {
+		while (!this.meTable.isEmpty() && this.meSize + roomSize > this.meMaxSize) {
+			String tmpOld[] = this.meTable.removeLast();
+			this.meSize -= tmpOld[0].length() + tmpOld[1].length() + me_ENTRY_OVERHEAD;
+		}
+	}
+
+	// Reads an integer whose first byte (already read) holds its prefix (RFC 7541, 5.1), or returns -1 if it is
+	// truncated or too big
+	private static int readInt(ByteBuffer theBlock, int firstByte, int prefixBits) {
+		int tmpMax = (1 << prefixBits) - 1;
+		int outValue = firstByte & tmpMax;
+		if (outValue < tmpMax)
+			return outValue;
+		for (int tmpShift = 0; tmpShift <= 21; tmpShift += 7) { // Up to 2^28, way more than any size allowed here
+			if (!theBlock.hasRemaining())
+				return -1;
+			int tmpByte = theBlock.get() & 0xFF;
+			outValue += (tmpByte & 0x7F) << tmpShift;
+			if ((tmpByte & 0x80) == 0)
+				return outValue;
+		}
+		return -1;
+	}
+
+	private static void writeInt(ByteArrayOutputStream theOut, int firstBits, int prefixBits, int value) {
+		int tmpMax = (1 << prefixBits) - 1;
+		if (value < tmpMax) {
+			theOut.write(firstBits | value);
+			return;
+		}
+		theOut.write(firstBits | tmpMax);
+		value -= tmpMax;
+		while (value >= 0x80) {
+			theOut.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		theOut.write(value);
+	}
+
+	// Reads a string literal (RFC 7541, 5.2), or returns null if it is malformed
+	private static String readString(ByteBuffer theBlock) {
+		if (!theBlock.hasRemaining())
+			return null;
+		int tmpFirst = theBlock.get() & 0xFF;
+		int tmpLen = readInt(theBlock, tmpFirst, 7);
+		if (tmpLen < 0 || tmpLen > theBlock.remaining() || tmpLen > me_MAX_STRING)
+			return null;
+		if ((tmpFirst & 0x80) == 0) {
+			byte tmpBytes[] = new byte[tmpLen];
+			theBlock.get(tmpBytes);
+			return new String(tmpBytes, StandardCharsets.ISO_8859_1);
+		}
+		StringBuilder outStr = new StringBuilder(tmpLen * 8 / 5); // The shortest codes have 5 bits
+		int tmpNode = 0;
+		int tmpBits = 0; // The bits read since the last symbol
+		boolean tmpIsOnes = true; // Are all these bits ones (the padding has to be a prefix of EOS)
+		for (int i = 0; i < tmpLen; i++) {
+			int tmpByte = theBlock.get();
+			for (int tmpShift = 7; tmpShift >= 0; tmpShift--) {
+				int tmpBit = (tmpByte >>> tmpShift) & 1;
+				int tmpNext = me_HUFFMAN_TREE[tmpNode * 2 + tmpBit];
+				tmpBits++;
+				tmpIsOnes &= tmpBit == 1;
+				if (tmpNext < 0) {
+					if (-1 - tmpNext == me_EOS) // EOS must not be in a string
+						return null;
+					outStr.append((char) (-1 - tmpNext));
+					tmpNode = 0;
+					tmpBits = 0;
+					tmpIsOnes = true;
+				} else {
+					tmpNode = tmpNext;
+				}
+			}
+		}
+		return tmpBits < 8 && tmpIsOnes ? outStr.toString() : null;
+	}
+
+	// Writes a string literal, Huffman coded if that is shorter
+	private static void writeString(ByteArrayOutputStream theOut, String value) {
+		long tmpBits = 0;
+		for (int i = 0; i < value.length(); i++)
+			tmpBits += me_HUFFMAN_LENGTHS[value.charAt(i) & 0xFF];
+		int tmpLen = (int) ((tmpBits + 7) / 8);
+		if (tmpLen >= value.length()) {
+			writeInt(theOut, 0x00, 7, value.length());
+			byte tmpBytes[] = value.getBytes(StandardCharsets.ISO_8859_1);
+			theOut.write(tmpBytes, 0, tmpBytes.length);
+			return;
+		}
+		writeInt(theOut, 0x80, 7, tmpLen);
+		long tmpAcc = 0; // The bits not written yet (at most 7 plus one code of at most 30)
+		int tmpAccLen = 0;
+		for (int i = 0; i < value.length(); i++) {
+			int tmpSym = value.charAt(i) & 0xFF;
+			tmpAcc = (tmpAcc << me_HUFFMAN_LENGTHS[tmpSym]) | me_HUFFMAN_CODES[tmpSym];
+			tmpAccLen += me_HUFFMAN_LENGTHS[tmpSym];
+			while (tmpAccLen >= 8) {
+				tmpAccLen -= 8;
+				theOut.write((int) (tmpAcc >>> tmpAccLen));
+			}
+		}
+		if (tmpAccLen > 0) // Padded with the start of EOS (ones)
+			theOut.write((int) ((tmpAcc << (8 - tmpAccLen)) | (0xFF >>> tmpAccLen)));
+	}
+}
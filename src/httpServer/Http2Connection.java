@@ -0,0 +1,846 @@
+package httpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import httpServer.MyRequest.RequestType;
+
+/**
+ * An HTTP/2 connection over cleartext (h2c, RFC 7540), started either by the client's preface (prior knowledge)
+ * or by an 'Upgrade: h2c' request. The requests share the connection as concurrent streams: every stream's header
+ * fields are turned into the HTTP/1.1 request head that 'RequestParser' and 'MyRequest' already understand (its
+ * body follows chunked, from the DATA frames, into the request's sink), and its 'MyResponse' is sent as a HEADERS
+ * frame and DATA frames, so GET, PUT and POST behave exactly like over HTTP/1.1. The DATA frames are sent in turns,
+ * one frame per stream, within the flow-control windows, so a big download never holds up the small responses
+ * behind it. It does no I/O by itself: the engines pass it the received bytes, and let it write to the socket.
+ * Startup options: 'http2' ('off' disables HTTP/2), 'http2.streams' (the most concurrent streams of a connection),
+ * 'http2.window' (the flow-control window of the client's uploads).
+ */
+public class Http2Connection {
+
+	// The state of one stream (its request is received, then its response is sent)
+	private static class Stream {
+		private int meId;
+		private RequestParser meParser = new RequestParser(); // Parses the request's head and its chunked body
+		private MyRequest meRequest; // Created as soon as its head is parsed (then it takes over the body)
+		private boolean meIsChunked; // The request has a body (passed to the parser chunked)
+		private boolean meIsReceived; // The client ended the stream (END_STREAM)
+		private int meRecvWindow = me_WINDOW; // The body bytes the client can still send
+		private long meSendWindow; // The body bytes that can still be sent
+		private long meStart; // The time the request was complete
+		private MyResponse meResp;
+		private ByteBuffer meInline; // The response's body bytes that came with its head (ex: a canned error's page)
+		private boolean meIsDone; // Its response is all sent, or it was reset
+
+		Stream(int theId, long sendWindow) {
+			this.meId = theId;
+			this.meSendWindow = sendWindow;
+		}
+	}
+
+	// Lets 'MyResponse.sendBody()' fill a DATA frame like it fills a socket: it writes into the output buffer up to
+	// its limit (the frame's room)
+	private class FrameSink implements WritableByteChannel {
+		private long meWritten; // The body bytes written so far (they are counted by the response for the metrics)
+
+		@Override
+		public int write(ByteBuffer src) {
+			int outNum = copy(src, Http2Connection.this.meOut);
+			this.meWritten += outNum;
+			return outNum;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	// Constants
+	public static final boolean ENABLED = ServerConfig.getBoolean("http2", true);
+	private static final int me_MAX_STREAMS = Math.max(ServerConfig.getInt("http2.streams", 100), 1);
+	private static final int me_WINDOW = (int) Math.min(Math.max(ServerConfig.getLong("http2.window", 1024 * 1024), 65535), Integer.MAX_VALUE);
+	private static final int me_DEFAULT_WINDOW = 65535; // The initial windows of RFC 7540
+	private static final int me_MAX_FRAME = 16384; // The biggest frame received (the default one) and sent
+	private static final int me_MAX_HEADER_BLOCK = 64 * 1024; // The biggest header block received
+	private static final int me_MAX_HEADER_LIST = 64 * 1024; // The biggest decoded header list ('SETTINGS_MAX_HEADER_LIST_SIZE')
+	private static final int me_MAX_CONTROL = 64 * 1024; // The queued frames' bytes over which nothing more is received until they are sent
+	private static final byte me_PREFACE[] = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final String me_PREFACE_LINE = "PRI * HTTP/2.0"; // The preface's start, as 'RequestParser' parses it
+	private static final byte me_SWITCHING[] = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte me_CRLF[] = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte me_LAST_CHUNK[] = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final Set<String> me_CONNECTION_HEADERS = new HashSet<>(Arrays.asList("connection", "keep-alive", "proxy-connection",
+			"transfer-encoding", "upgrade")); // Not allowed in HTTP/2 (RFC 7540, 8.1.2.2)
+	// Frame types
+	private static final int me_DATA = 0x0;
+	private static final int me_HEADERS = 0x1;
+	private static final int me_PRIORITY = 0x2;
+	private static final int me_RST_STREAM = 0x3;
+	private static final int me_SETTINGS = 0x4;
+	private static final int me_PUSH_PROMISE = 0x5;
+	private static final int me_PING = 0x6;
+	private static final int me_GOAWAY = 0x7;
+	private static final int me_WINDOW_UPDATE = 0x8;
+	private static final int me_CONTINUATION = 0x9;
+	// Frame flags
+	private static final int me_END_STREAM = 0x1;
+	private static final int me_ACK = 0x1;
+	private static final int me_END_HEADERS = 0x4;
+	private static final int me_PADDED = 0x8;
+	private static final int me_PRIORITY_FLAG = 0x20;
+	// Error codes
+	private static final int me_PROTOCOL_ERROR = 0x1;
+	private static final int me_INTERNAL_ERROR = 0x2;
+	private static final int me_FLOW_CONTROL_ERROR = 0x3;
+	private static final int me_STREAM_CLOSED = 0x5;
+	private static final int me_FRAME_SIZE_ERROR = 0x6;
+	private static final int me_REFUSED_STREAM = 0x7;
+	private static final int me_COMPRESSION_ERROR = 0x9;
+	private static final int me_ENHANCE_YOUR_CALM = 0xb;
+	// Fields
+	private InetAddress meClient; // The client's address (for the access log)
+	private ByteBuffer mePreface; // The rest of the client's preface that is still expected
+	private boolean meIsSettingsAwaited = true; // The client's first frame has to be SETTINGS
+	private ByteBuffer meIn = ByteBuffer.allocate(9 + me_MAX_FRAME); // The frame being received
+	private ByteBuffer meOut = ByteBuffer.allocate(64 * 1024); // The frames being sent (drained by 'send()', then filled again)
+	private FrameSink meSink = new FrameSink();
+	private ArrayDeque<ByteBuffer> meControl = new ArrayDeque<>(); // The frames to send before any DATA (in order, since the header blocks share the encoder's table)
+	private int meControlBytes; // The bytes queued in 'meControl' (a client that does not read gets no more answers to its frames, see 'canReceive()')
+	private Map<Integer, Stream> meStreams = new HashMap<>(); // The open streams by id
+	private ArrayDeque<Stream> meSending = new ArrayDeque<>(); // The streams whose response body is being sent (in turns)
+	private Hpack meDecoder = new Hpack(4096); // The client's header table
+	private Hpack meEncoder = new Hpack(4096); // The server's header table
+	private ByteArrayOutputStream meHeaderBlock = new ByteArrayOutputStream(); // The header block being received (HEADERS and CONTINUATION frames)
+	private int meHeaderStream; // The stream whose header block is being received (0 if none)
+	private int meHeaderFlags; // The flags of the HEADERS frame that started it
+	private int meLastStreamId; // The highest stream id that the client opened
+	private long meSendWindow = me_DEFAULT_WINDOW; // The connection's window for sending
+	private int meRecvWindow = me_DEFAULT_WINDOW; // The connection's window for receiving
+	private long meInitialWindow = me_DEFAULT_WINDOW; // The new streams' window for sending ('SETTINGS_INITIAL_WINDOW_SIZE')
+	private int meMaxFrame = me_MAX_FRAME; // The biggest frame the client takes ('SETTINGS_MAX_FRAME_SIZE', no more than 'me_MAX_FRAME' is used)
+	private boolean meIsGoingAway; // The client sent GOAWAY (the open streams are completed, then the connection is closed)
+	private boolean meIsClosing; // The server sent GOAWAY after an error (the connection is closed once it is sent)
+
+	/**
+	 * Checks if a request starts HTTP/2 on its connection: it is the start of the client's preface (prior
+	 * knowledge, the rest of the preface follows it), or an 'Upgrade: h2c' request without a body.
+	 * @param theRequest	the received request
+	 * @return				true if the connection continues as HTTP/2 (see the constructor)
+	 */
+	public static boolean isHttp2Start(MyRequest theRequest) {
+		if (!ENABLED)
+			return false;
+		if (me_PREFACE_LINE.equals(theRequest.getRequestLine()))
+			return true;
+		String tmpUpgrade = theRequest.getHeader("Upgrade");
+		if (tmpUpgrade == null || theRequest.getRequestType() == RequestType.BAD || theRequest.getRequestType() == RequestType.WRONG_HTTP)
+			return false;
+		String tmpLen = theRequest.getHeader("Content-Length");
+		if (theRequest.getHeader("Transfer-Encoding") != null || tmpLen != null && !"0".equals(tmpLen.trim())) // A body would have to be received before switching
+			return false;
+		for (String tmpProtocol : tmpUpgrade.split(",")) {
+			if (tmpProtocol.trim().equalsIgnoreCase("h2c"))
+				return decodeSettings(theRequest.getHeader("HTTP2-Settings")) != null;
+		}
+		return false;
+	}
+
+	/**
+	 * Constructor (to be called when 'isHttp2Start()' is true). An upgrade request is answered on stream 1 after
+	 * '101 Switching Protocols'.
+	 * @param client		the client's address
+	 * @param firstRequest	the request that started HTTP/2 (the preface's start, or the upgrade request)
+	 */
+	public Http2Connection(InetAddress client, MyRequest firstRequest) {
+		this.meClient = client;
+		this.meOut.limit(0); // Nothing to send yet
+		if (me_PREFACE_LINE.equals(firstRequest.getRequestLine())) {
+			this.mePreface = ByteBuffer.wrap(me_PREFACE, me_PREFACE.length - 6, 6); // Only "SM\r\n\r\n" is left
+			this.queueSettings();
+			return;
+		}
+		this.mePreface = ByteBuffer.wrap(me_PREFACE); // The client sends the whole preface after the '101'
+		this.meControl.add(ByteBuffer.wrap(me_SWITCHING));
+		this.meControlBytes += me_SWITCHING.length;
+		this.queueSettings();
+		if (!this.applySettings(ByteBuffer.wrap(decodeSettings(firstRequest.getHeader("HTTP2-Settings")))))
+			return;
+		Stream tmpStream = new Stream(1, this.meInitialWindow); // The upgrade request is stream 1 (already ended by the client)
+		tmpStream.meRequest = firstRequest;
+		tmpStream.meIsReceived = true;
+		firstRequest.setReceivedVersion("HTTP/2.0");
+		this.meStreams.put(1, tmpStream);
+		this.meLastStreamId = 1;
+		this.respond(tmpStream);
+	}
+
+	/**
+	 * Takes the received bytes (all of them) and handles the complete frames: the requests that are complete are
+	 * answered (their responses wait to be sent by 'send()').
+	 * @param data	the received bytes
+	 */
+	public void receive(ByteBuffer data) {
+		while (data.hasRemaining() && !this.meIsClosing) {
+			if (this.mePreface.hasRemaining()) {
+				if (data.get() != this.mePreface.get())
+					this.fail(me_PROTOCOL_ERROR); // Not an HTTP/2 client
+				continue;
+			}
+			int tmpNeeded = this.meIn.position() < 9 ? 9 : 9 + getLength(this.meIn);
+			ByteBuffer tmpPart = data.duplicate();
+			tmpPart.limit(tmpPart.position() + Math.min(tmpNeeded - this.meIn.position(), data.remaining()));
+			data.position(tmpPart.limit());
+			this.meIn.put(tmpPart);
+			if (this.meIn.position() < tmpNeeded)
+				break;
+			if (tmpNeeded == 9) { // The frame's header is complete
+				if (getLength(this.meIn) > me_MAX_FRAME) {
+					this.fail(me_FRAME_SIZE_ERROR);
+					break;
+				}
+				if (getLength(this.meIn) > 0)
+					continue;
+			}
+			this.meIn.flip();
+			this.onFrame();
+			this.meIn.clear();
+		}
+		this.replenishWindows();
+	}
+
+	/**
+	 * Writes the frames that can be sent now (a round of up to 64 KB: the control frames and the header blocks
+	 * first, then the streams' DATA frames in turns) to the client's channel. On a non-blocking channel it
+	 * returns as soon as the socket cannot take more, and continues with the rest on the next call.
+	 * @param target		the client's channel
+	 * @return				true if the round is all written
+	 * @throws IOException	if writing failed
+	 */
+	public boolean send(WritableByteChannel target) throws IOException {
+		if (!this.meOut.hasRemaining()) {
+			this.meOut.clear();
+			this.fill();
+			this.meOut.flip();
+		}
+		while (this.meOut.hasRemaining() && target.write(this.meOut) > 0);
+		return !this.meOut.hasRemaining();
+	}
+
+	/**
+	 * Checks if there is something to send now (the DATA frames wait while their windows are closed).
+	 * @return	true if 'send()' has something to write
+	 */
+	public boolean canSend() {
+		if (this.meOut.hasRemaining() || !this.meControl.isEmpty())
+			return true;
+		if (this.meIsClosing || this.meSendWindow <= 0 || this.mePreface.hasRemaining())
+			return false;
+		for (Stream tmpStream : this.meSending) {
+			if (tmpStream.meSendWindow > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if more received bytes can be taken now: a client that sends frames (ex: PING, SETTINGS, or streams
+	 * that are refused) but does not read the answers is not read either, until the queued frames are sent.
+	 * @return	true if 'receive()' can be called
+	 */
+	public boolean canReceive() {
+		return this.meControlBytes < me_MAX_CONTROL;
+	}
+
+	/**
+	 * Checks if the connection is over: the server sent GOAWAY after an error, or the client sent GOAWAY and its
+	 * streams are completed (and everything is sent).
+	 * @return	true if the connection can be closed
+	 */
+	public boolean isClosed() {
+		return (this.meIsClosing || this.meIsGoingAway && this.meStreams.isEmpty()) && !this.canSend();
+	}
+
+	/**
+	 * Frees what the open streams hold (to be called when the connection is closed): the uploads being received
+	 * are deleted, and the responses being sent are closed (and logged).
+	 */
+	public void close() {
+		for (Stream tmpStream : new ArrayList<>(this.meStreams.values()))
+			this.drop(tmpStream);
+	}
+
+	// Handles a received frame (in 'meIn')
+	private void onFrame() {
+		int tmpLen = getLength(this.meIn);
+		int tmpType = this.meIn.get(3) & 0xFF;
+		int tmpFlags = this.meIn.get(4) & 0xFF;
+		int tmpId = this.meIn.getInt(5) & 0x7FFFFFFF;
+		ByteBuffer tmpPayload = this.meIn.position(9).slice();
+		if (this.meIsSettingsAwaited && tmpType != me_SETTINGS || this.meHeaderStream != 0 && (tmpType != me_CONTINUATION || tmpId != this.meHeaderStream)) {
+			this.fail(me_PROTOCOL_ERROR);
+			return;
+		}
+		switch (tmpType) {
+			case me_DATA:
+				this.onData(tmpId, tmpFlags, tmpLen, tmpPayload);
+				break;
+			case me_HEADERS:
+				if (tmpId == 0 || (tmpId & 1) == 0) { // Only the client's (odd) streams
+					this.fail(me_PROTOCOL_ERROR);
+					return;
+				}
+				ByteBuffer tmpBlock = unpad(tmpPayload, tmpFlags);
+				if (tmpBlock != null && (tmpFlags & me_PRIORITY_FLAG) != 0) // The priority is ignored
+					tmpBlock = tmpBlock.remaining() < 5 ? null : tmpBlock.position(tmpBlock.position() + 5);
+				if (tmpBlock == null) {
+					this.fail(me_PROTOCOL_ERROR);
+					return;
+				}
+				this.meHeaderBlock.reset();
+				this.meHeaderFlags = tmpFlags;
+				this.meHeaderStream = tmpId;
+				this.onHeaderFragment(tmpBlock, tmpFlags);
+				break;
+			case me_CONTINUATION:
+				if (this.meHeaderStream == 0) {
+					this.fail(me_PROTOCOL_ERROR);
+					return;
+				}
+				this.onHeaderFragment(tmpPayload, tmpFlags);
+				break;
+			case me_PRIORITY: // Ignored (the streams are served in turns)
+				if (tmpId == 0)
+					this.fail(me_PROTOCOL_ERROR);
+				else if (tmpLen != 5)
+					this.queueFrame(me_RST_STREAM, 0, tmpId, ByteBuffer.allocate(4).putInt(0, me_FRAME_SIZE_ERROR));
+				break;
+			case me_RST_STREAM:
+				if (tmpId == 0 || tmpLen != 4) {
+					this.fail(tmpId == 0 ? me_PROTOCOL_ERROR : me_FRAME_SIZE_ERROR);
+					return;
+				}
+				Stream tmpStream = this.meStreams.get(tmpId);
+				if (tmpStream != null) {
+					this.drop(tmpStream);
+				} else if (tmpId > this.meLastStreamId) { // Never opened
+					this.fail(me_PROTOCOL_ERROR);
+				}
+				break;
+			case me_SETTINGS:
+				if (tmpId != 0 || (tmpFlags & me_ACK) != 0 && tmpLen != 0 || tmpLen % 6 != 0) {
+					this.fail(tmpId != 0 ? me_PROTOCOL_ERROR : me_FRAME_SIZE_ERROR);
+					return;
+				}
+				this.meIsSettingsAwaited = false;
+				if ((tmpFlags & me_ACK) == 0 && this.applySettings(tmpPayload))
+					this.queueFrame(me_SETTINGS, me_ACK, 0, ByteBuffer.allocate(0));
+				break;
+			case me_PING:
+				if (tmpId != 0 || tmpLen != 8) {
+					this.fail(tmpId != 0 ? me_PROTOCOL_ERROR : me_FRAME_SIZE_ERROR);
+					return;
+				}
+				if ((tmpFlags & me_ACK) == 0)
+					this.queueFrame(me_PING, me_ACK, 0, tmpPayload);
+				break;
+			case me_GOAWAY: // No new streams, the open ones are completed
+				if (tmpId != 0)
+					this.fail(me_PROTOCOL_ERROR);
+				this.meIsGoingAway = true;
+				break;
+			case me_WINDOW_UPDATE:
+				if (tmpLen != 4) {
+					this.fail(me_FRAME_SIZE_ERROR);
+					return;
+				}
+				this.onWindowUpdate(tmpId, tmpPayload.getInt(0) & 0x7FFFFFFF);
+				break;
+			case me_PUSH_PROMISE: // Only servers push
+				this.fail(me_PROTOCOL_ERROR);
+				break;
+			default: // Unknown frame types are ignored
+		}
+	}
+
+	// Adds a fragment of a header block, and handles the block when it is complete
+	private void onHeaderFragment(ByteBuffer theFragment, int flags) {
+		if (this.meHeaderBlock.size() + theFragment.remaining() > me_MAX_HEADER_BLOCK) {
+			this.fail(me_ENHANCE_YOUR_CALM);
+			return;
+		}
+		this.meHeaderBlock.write(theFragment.array(), theFragment.arrayOffset() + theFragment.position(), theFragment.remaining());
+		if ((flags & me_END_HEADERS) == 0)
+			return; // CONTINUATION frames follow
+		int tmpId = this.meHeaderStream;
+		this.meHeaderStream = 0;
+		List<String[]> tmpFields = this.meDecoder.decode(ByteBuffer.wrap(this.meHeaderBlock.toByteArray()), me_MAX_HEADER_LIST); // Even for a refused stream, to keep the table
+		if (tmpFields == null) { // Malformed, or too big to be decoded whole (so the table is lost either way)
+			this.fail(me_COMPRESSION_ERROR);
+			return;
+		}
+		boolean tmpIsEnded = (this.meHeaderFlags & me_END_STREAM) != 0;
+		Stream tmpStream = this.meStreams.get(tmpId);
+		if (tmpId <= this.meLastStreamId) { // Trailers (they are ignored), or a stream that is closed already
+			if (tmpStream == null) {
+				return; // Reset already (its frames can still be on their way)
+			} else if (tmpStream.meIsReceived) {
+				this.reset(tmpStream, me_STREAM_CLOSED);
+			} else if (!tmpIsEnded) {
+				this.reset(tmpStream, me_PROTOCOL_ERROR);
+			} else {
+				this.endRequest(tmpStream);
+			}
+			return;
+		}
+		this.meLastStreamId = tmpId;
+		if (this.meIsGoingAway)
+			return;
+		String tmpHead = toRequestHead(tmpFields, !tmpIsEnded);
+		int tmpRefusal = tmpHead == null ? me_PROTOCOL_ERROR : this.meStreams.size() >= me_MAX_STREAMS ? me_REFUSED_STREAM
+				: !ClientLimits.admitRequest(this.meClient) ? me_ENHANCE_YOUR_CALM // Over the client's request rate (see 'ClientLimits')
+				: !OverloadControl.admit(tmpHead.substring(0, tmpHead.indexOf(' '))) ? me_REFUSED_STREAM : 0; // Shed (the client can retry it, nothing was done)
+		if (tmpRefusal != 0) {
+			this.queueFrame(me_RST_STREAM, 0, tmpId, ByteBuffer.allocate(4).putInt(0, tmpRefusal));
+			return;
+		}
+		tmpStream = new Stream(tmpId, this.meInitialWindow);
+		tmpStream.meIsChunked = !tmpIsEnded;
+		this.meStreams.put(tmpId, tmpStream);
+		this.parse(tmpStream, ByteBuffer.wrap(tmpHead.getBytes(StandardCharsets.ISO_8859_1)));
+		if (tmpIsEnded)
+			this.endRequest(tmpStream);
+	}
+
+	// Passes a DATA frame's bytes to its stream's request as a chunk
+	private void onData(int streamId, int flags, int length, ByteBuffer payload) {
+		if (streamId == 0) {
+			this.fail(me_PROTOCOL_ERROR);
+			return;
+		}
+		this.meRecvWindow -= length; // The whole frame counts (even for a stream that is closed)
+		if (this.meRecvWindow < 0) {
+			this.fail(me_FLOW_CONTROL_ERROR);
+			return;
+		}
+		Stream tmpStream = this.meStreams.get(streamId);
+		if (tmpStream == null || tmpStream.meIsReceived) {
+			if (streamId > this.meLastStreamId) {
+				this.fail(me_PROTOCOL_ERROR); // Never opened
+			} else if (tmpStream != null) {
+				this.reset(tmpStream, me_STREAM_CLOSED);
+			} // Otherwise reset already (its frames can still be on their way)
+			return;
+		}
+		tmpStream.meRecvWindow -= length;
+		ByteBuffer tmpData = unpad(payload, flags);
+		if (tmpStream.meRecvWindow < 0 || tmpData == null) {
+			this.reset(tmpStream, tmpData == null ? me_PROTOCOL_ERROR : me_FLOW_CONTROL_ERROR);
+			return;
+		}
+		if (tmpData.hasRemaining()) {
+			this.parse(tmpStream, ByteBuffer.wrap((Integer.toHexString(tmpData.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+			this.parse(tmpStream, tmpData);
+			this.parse(tmpStream, ByteBuffer.wrap(me_CRLF));
+		}
+		if ((flags & me_END_STREAM) != 0)
+			this.endRequest(tmpStream);
+	}
+
+	private void onWindowUpdate(int streamId, int increment) {
+		if (streamId == 0) {
+			this.meSendWindow += increment;
+			if (increment == 0 || this.meSendWindow > Integer.MAX_VALUE)
+				this.fail(increment == 0 ? me_PROTOCOL_ERROR : me_FLOW_CONTROL_ERROR);
+			return;
+		}
+		Stream tmpStream = this.meStreams.get(streamId);
+		if (tmpStream == null) {
+			if (streamId > this.meLastStreamId) // Never opened
+				this.fail(me_PROTOCOL_ERROR);
+			return;
+		}
+		tmpStream.meSendWindow += increment;
+		if (increment == 0 || tmpStream.meSendWindow > Integer.MAX_VALUE)
+			this.reset(tmpStream, increment == 0 ? me_PROTOCOL_ERROR : me_FLOW_CONTROL_ERROR);
+	}
+
+	// Applies the client's settings (from a SETTINGS frame, or from the 'HTTP2-Settings' header), and returns false
+	// if one of them is invalid (then the connection is failed)
+	private boolean applySettings(ByteBuffer theSettings) {
+		while (theSettings.remaining() >= 6) {
+			int tmpId = theSettings.getShort() & 0xFFFF;
+			long tmpValue = theSettings.getInt() & 0xFFFFFFFFL;
+			switch (tmpId) {
+				case 0x1: // SETTINGS_HEADER_TABLE_SIZE
+					this.meEncoder.setMaxSize((int) Math.min(tmpValue, Integer.MAX_VALUE));
+					break;
+				case 0x2: // SETTINGS_ENABLE_PUSH (nothing is pushed anyway)
+					if (tmpValue > 1) {
+						this.fail(me_PROTOCOL_ERROR);
+						return false;
+					}
+					break;
+				case 0x4: // SETTINGS_INITIAL_WINDOW_SIZE (changes the open streams' windows too)
+					if (tmpValue > Integer.MAX_VALUE) {
+						this.fail(me_FLOW_CONTROL_ERROR);
+						return false;
+					}
+					for (Stream tmpStream : this.meStreams.values())
+						tmpStream.meSendWindow += tmpValue - this.meInitialWindow;
+					this.meInitialWindow = tmpValue;
+					break;
+				case 0x5: // SETTINGS_MAX_FRAME_SIZE
+					if (tmpValue < me_MAX_FRAME || tmpValue > 0xFFFFFF) {
+						this.fail(me_PROTOCOL_ERROR);
+						return false;
+					}
+					this.meMaxFrame = (int) Math.min(tmpValue, me_MAX_FRAME);
+					break;
+				default: // The others do not matter here (and unknown ones are ignored)
+			}
+		}
+		return true;
+	}
+
+	// Parses the next bytes of a stream's request (its head, or a part of its chunked body)
+	private void parse(Stream theStream, ByteBuffer data) {
+		boolean tmpIsDone = theStream.meParser.parse(data);
+		if (tmpIsDone && theStream.meRequest == null) { // The head is parsed (then the request takes over the body)
+			try {
+				theStream.meRequest = new MyRequest(theStream.meParser);
+			} catch (Exception e) { // Answered by '500 Internal Server Error' (the body is left unparsed)
+				theStream.meRequest = MyRequest.ERROR;
+				return;
+			}
+			theStream.meRequest.setReceivedVersion("HTTP/2.0");
+			if (theStream.meParser.getState() == RequestParser.State.BODY)
+				theStream.meParser.parse(data);
+		}
+	}
+
+	// Completes a stream's request (the client ended the stream) and answers it
+	private void endRequest(Stream theStream) {
+		if (theStream.meIsChunked)
+			this.parse(theStream, ByteBuffer.wrap(me_LAST_CHUNK));
+		theStream.meIsReceived = true;
+		this.respond(theStream);
+	}
+
+	// Creates the response of a complete request (the same way 'ClientConnection' does), and queues its HEADERS
+	// frame (its body follows in DATA frames)
+	private void respond(Stream theStream) {
+		theStream.meStart = ServerMetrics.now();
+		MyResponse tmpResp;
+		try { // A try-catch just to anticipate '500 Internal Server Error'
+			if (theStream.meRequest == null) // Its head could not be parsed
+				theStream.meRequest = new MyRequest(theStream.meParser);
+			if (HttpServerMain.getIsPause()) {
+				theStream.meRequest.releasePayload();
+				tmpResp = new MyResponse(MyRequest.PAUSE); // Imaginary request
+			} else {
+				theStream.meRequest.finishBody();
+				tmpResp = new MyResponse(theStream.meRequest, true);
+			}
+		} catch (Exception e) {
+			if (theStream.meRequest != null)
+				theStream.meRequest.releasePayload();
+			else
+				theStream.meRequest = MyRequest.ERROR;
+			tmpResp = new MyResponse(MyRequest.ERROR); // Imaginary request
+		}
+		tmpResp.disableChunking(); // The DATA frames delimit the body
+		theStream.meResp = tmpResp;
+		List<String[]> tmpFields = new ArrayList<>();
+		tmpFields.add(new String[] {":status", String.valueOf(tmpResp.getStatus())});
+		ByteBuffer tmpBuf = tmpResp.getResponseBuffer().duplicate();
+		readLine(tmpBuf); // The status line
+		String tmpLine;
+		while ((tmpLine = readLine(tmpBuf)) != null && !tmpLine.isEmpty()) {
+			int tmpInd = tmpLine.indexOf(':');
+			String tmpName = tmpLine.substring(0, Math.max(tmpInd, 0)).trim().toLowerCase(Locale.ROOT);
+			if (tmpInd > 0 && !me_CONNECTION_HEADERS.contains(tmpName))
+				tmpFields.add(new String[] {tmpName, tmpLine.substring(tmpInd + 1).trim()});
+		}
+		theStream.meInline = tmpBuf; // What follows the head
+		boolean tmpIsEnded = !tmpBuf.hasRemaining() && !tmpResp.hasBody();
+		byte tmpBlock[] = this.meEncoder.encode(tmpFields);
+		int tmpPos = 0;
+		do { // HEADERS, then CONTINUATION frames if the block is bigger than a frame
+			int tmpLen = Math.min(tmpBlock.length - tmpPos, this.meMaxFrame);
+			int tmpFlags = (tmpPos == 0 ? (tmpIsEnded ? me_END_STREAM : 0) : 0) | (tmpPos + tmpLen == tmpBlock.length ? me_END_HEADERS : 0);
+			this.queueFrame(tmpPos == 0 ? me_HEADERS : me_CONTINUATION, tmpFlags, theStream.meId, ByteBuffer.wrap(tmpBlock, tmpPos, tmpLen));
+			tmpPos += tmpLen;
+		} while (tmpPos < tmpBlock.length);
+		if (tmpIsEnded) {
+			this.finish(theStream);
+		} else {
+			this.meSending.add(theStream);
+		}
+	}
+
+	// Fills the output buffer: the queued frames first (in order), then the DATA frames of the streams in turns
+	// (one frame per stream in a turn), until it is full or the windows are closed
+	private void fill() {
+		int tmpStart = this.meOut.position();
+		long tmpBodyStart = this.meSink.meWritten;
+		while (!this.meControl.isEmpty() && this.meControl.peek().remaining() <= this.meOut.remaining()) {
+			this.meControlBytes -= this.meControl.peek().remaining();
+			this.meOut.put(this.meControl.poll());
+		}
+		boolean tmpIsProgress = this.meControl.isEmpty() && !this.mePreface.hasRemaining(); // A stream's DATA never goes before its HEADERS (nor before the client's preface, as an upgraded client has little room for it)
+		while (tmpIsProgress && !this.meIsClosing) {
+			tmpIsProgress = false;
+			for (int i = this.meSending.size(); i > 0 && this.meSendWindow > 0 && this.meOut.remaining() > 9; i--) {
+				Stream tmpStream = this.meSending.poll();
+				if (this.writeData(tmpStream) >= 0)
+					tmpIsProgress = true;
+				if (!tmpStream.meIsDone)
+					this.meSending.add(tmpStream);
+			}
+		}
+		ServerMetrics.addBytesOut(this.meOut.position() - tmpStart - (this.meSink.meWritten - tmpBodyStart)); // The body bytes are counted by their responses
+	}
+
+	// Writes a stream's next DATA frame (as big as the windows, the max frame size and the buffer's room allow), and
+	// returns the number of its bytes, or -1 if nothing could be written (its window is closed)
+	private int writeData(Stream theStream) {
+		long tmpRoom = Math.min(Math.min(this.meMaxFrame, this.meOut.remaining() - 9), Math.min(this.meSendWindow, theStream.meSendWindow));
+		if (tmpRoom <= 0)
+			return -1;
+		int tmpHead = this.meOut.position();
+		this.meOut.position(tmpHead + 9).limit(tmpHead + 9 + (int) tmpRoom);
+		boolean tmpIsEnded;
+		try {
+			copy(theStream.meInline, this.meOut);
+			tmpIsEnded = !theStream.meInline.hasRemaining() && (!theStream.meResp.hasBody() || theStream.meResp.sendBody(this.meSink));
+		} catch (IOException e) { // The body's file failed (the response closed it)
+			this.meOut.limit(this.meOut.capacity()).position(tmpHead);
+			this.reset(theStream, me_INTERNAL_ERROR);
+			return 0;
+		}
+		int outLen = this.meOut.position() - tmpHead - 9;
+		this.meOut.limit(this.meOut.capacity());
+		if (outLen == 0 && !tmpIsEnded) {
+			this.meOut.position(tmpHead);
+			return -1;
+		}
+		this.meOut.put(tmpHead, (byte) (outLen >>> 16)).put(tmpHead + 1, (byte) (outLen >>> 8)).put(tmpHead + 2, (byte) outLen);
+		this.meOut.put(tmpHead + 3, (byte) me_DATA).put(tmpHead + 4, (byte) (tmpIsEnded ? me_END_STREAM : 0)).putInt(tmpHead + 5, theStream.meId);
+		this.meSendWindow -= outLen;
+		theStream.meSendWindow -= outLen;
+		if (tmpIsEnded)
+			this.finish(theStream);
+		return outLen;
+	}
+
+	// A stream's response is all sent (queued)
+	private void finish(Stream theStream) {
+		theStream.meIsDone = true;
+		this.meStreams.remove(theStream.meId);
+		ServerMetrics.recordResponse(theStream.meStart);
+		AccessLog.log(this.meClient, theStream.meRequest, theStream.meResp);
+	}
+
+	// Resets a stream after an error (RST_STREAM)
+	private void reset(Stream theStream, int errorCode) {
+		this.queueFrame(me_RST_STREAM, 0, theStream.meId, ByteBuffer.allocate(4).putInt(0, errorCode));
+		this.drop(theStream);
+	}
+
+	// Forgets a stream that was reset (by either side) or lost with the connection
+	private void drop(Stream theStream) {
+		theStream.meIsDone = true;
+		this.meStreams.remove(theStream.meId);
+		this.meSending.remove(theStream);
+		if (theStream.meRequest != null && !theStream.meIsReceived) // Lost while receiving the body
+			theStream.meRequest.releasePayload();
+		if (theStream.meResp != null) { // Lost while sending the body
+			theStream.meResp.closeBody();
+			AccessLog.log(this.meClient, theStream.meRequest, theStream.meResp);
+		}
+	}
+
+	// Fails the connection after an error (GOAWAY): nothing more is received, and it is closed once GOAWAY is sent
+	private void fail(int errorCode) {
+		if (this.meIsClosing)
+			return;
+		this.meIsClosing = true;
+		this.queueFrame(me_GOAWAY, 0, 0, ByteBuffer.allocate(8).putInt(0, this.meLastStreamId).putInt(4, errorCode));
+	}
+
+	// Queues the server's SETTINGS (the concurrent streams, the window of the uploads, and the biggest header list),
+	// and opens the connection's window as wide as the streams' ones
+	private void queueSettings() {
+		ByteBuffer tmpSettings = ByteBuffer.allocate(18);
+		tmpSettings.putShort((short) 0x3).putInt(me_MAX_STREAMS); // SETTINGS_MAX_CONCURRENT_STREAMS
+		tmpSettings.putShort((short) 0x4).putInt(me_WINDOW); // SETTINGS_INITIAL_WINDOW_SIZE
+		tmpSettings.putShort((short) 0x6).putInt(me_MAX_HEADER_LIST); // SETTINGS_MAX_HEADER_LIST_SIZE
+		this.queueFrame(me_SETTINGS, 0, 0, tmpSettings.flip());
+		this.meRecvWindow = me_DEFAULT_WINDOW;
+		this.replenishWindows();
+	}
+
+	// Opens the receive windows again (the received bodies go to their sinks at once, so they only have to be
+	// counted), once half of a window is used
+	private void replenishWindows() {
+		if (this.meIsClosing)
+			return;
+		if (this.meRecvWindow < me_WINDOW / 2) {
+			this.queueFrame(me_WINDOW_UPDATE, 0, 0, ByteBuffer.allocate(4).putInt(0, me_WINDOW - this.meRecvWindow));
+			this.meRecvWindow = me_WINDOW;
+		}
+		for (Stream tmpStream : this.meStreams.values()) {
+			if (!tmpStream.meIsReceived && tmpStream.meRecvWindow < me_WINDOW / 2) {
+				this.queueFrame(me_WINDOW_UPDATE, 0, tmpStream.meId, ByteBuffer.allocate(4).putInt(0, me_WINDOW - tmpStream.meRecvWindow));
+				tmpStream.meRecvWindow = me_WINDOW;
+			}
+		}
+	}
+
+	// Queues a frame (the payload is copied from its position to its limit)
+	private void queueFrame(int type, int flags, int streamId, ByteBuffer payload) {
+		ByteBuffer outFrame = ByteBuffer.allocate(9 + payload.remaining());
+		outFrame.put((byte) (payload.remaining() >>> 16)).put((byte) (payload.remaining() >>> 8)).put((byte) payload.remaining());
+		outFrame.put((byte) type).put((byte) flags).putInt(streamId).put(payload.duplicate()).flip();
+		this.meControl.add(outFrame);
+		this.meControlBytes += outFrame.remaining();
+	}
+
+	// Turns a stream's header fields into an HTTP/1.1 request head (its body, if any, follows chunked), or returns
+	// null if they are malformed (RFC 7540, 8.1.2)
+	private static String toRequestHead(List<String[]> fields, boolean hasBody) {
+		String tmpMethod = null;
+		String tmpPath = null;
+		String tmpAuthority = null;
+		boolean tmpIsScheme = false;
+		boolean tmpIsHost = false;
+		boolean tmpIsRegular = false; // A regular header was seen (the pseudo-headers come first)
+		StringBuilder tmpHeaders = new StringBuilder(256);
+		for (String tmpField[] : fields) {
+			String tmpName = tmpField[0];
+			String tmpValue = tmpField[1];
+			if (!isValidField(tmpName, tmpValue))
+				return null;
+			if (tmpName.charAt(0) == ':') {
+				if (tmpIsRegular || tmpValue.indexOf(' ') >= 0)
+					return null;
+				if (tmpName.equals(":method") && tmpMethod == null) {
+					tmpMethod = tmpValue;
+				} else if (tmpName.equals(":path") && tmpPath == null) {
+					tmpPath = tmpValue;
+				} else if (tmpName.equals(":authority") && tmpAuthority == null) {
+					tmpAuthority = tmpValue;
+				} else if (tmpName.equals(":scheme") && !tmpIsScheme) {
+					tmpIsScheme = true;
+				} else { // Unknown or repeated
+					return null;
+				}
+				continue;
+			}
+			tmpIsRegular = true;
+			if (me_CONNECTION_HEADERS.contains(tmpName) || tmpName.equals("te") && !tmpValue.equals("trailers"))
+				return null;
+			if (tmpName.equals("content-length") || tmpName.equals("te")) // The body is passed chunked
+				continue;
+			tmpIsHost |= tmpName.equals("host");
+			tmpHeaders.append(tmpName).append(": ").append(tmpValue).append("\r\n");
+		}
+		if (tmpMethod == null || tmpMethod.isEmpty() || tmpPath == null || tmpPath.isEmpty() || !tmpIsScheme)
+			return null;
+		StringBuilder outHead = new StringBuilder(tmpHeaders.length() + 128);
+		outHead.append(tmpMethod).append(' ').append(tmpPath).append(" HTTP/1.1\r\n");
+		if (tmpAuthority != null && !tmpIsHost)
+			outHead.append("host: ").append(tmpAuthority).append("\r\n");
+		outHead.append(tmpHeaders);
+		if (hasBody)
+			outHead.append("transfer-encoding: chunked\r\n");
+		return outHead.append("\r\n").toString();
+	}
+
+	// A field name must be lower-cased, and no field may break the HTTP/1.1 head it becomes
+	private static boolean isValidField(String name, String value) {
+		if (name.isEmpty())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			char tmpCh = name.charAt(i);
+			if (tmpCh <= ' ' || tmpCh >= 0x7f || tmpCh >= 'A' && tmpCh <= 'Z' || tmpCh == ':' && i > 0)
+				return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char tmpCh = value.charAt(i);
+			if (tmpCh == '\r' || tmpCh == '\n' || tmpCh == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// Returns the 'HTTP2-Settings' header's settings (a SETTINGS frame's payload), or null if it is not valid
+	private static byte[] decodeSettings(String value) {
+		if (value == null)
+			return null;
+		try {
+			byte outSettings[] = Base64.getUrlDecoder().decode(value.trim().replace("=", ""));
+			return outSettings.length % 6 == 0 ? outSettings : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	// Returns a frame's payload without its padding (or null if the padding is longer than the payload)
+	private static ByteBuffer unpad(ByteBuffer payload, int flags) {
+		if ((flags & me_PADDED) == 0)
+			return payload;
+		if (!payload.hasRemaining())
+			return null;
+		int tmpPad = payload.get() & 0xFF;
+		if (tmpPad > payload.remaining())
+			return null;
+		payload.limit(payload.limit() - tmpPad);
+		return payload;
+	}
+
+	// The length in a frame's header
+	private static int getLength(ByteBuffer theFrame) {
+		return (theFrame.get(0) & 0xFF) << 16 | (theFrame.get(1) & 0xFF) << 8 | theFrame.get(2) & 0xFF;
+	}
+
+	// Reads a CRLF-ended line of a response head, or returns null if there is none
+	private static String readLine(ByteBuffer theBuf) {
+		for (int i = theBuf.position(); i + 1 < theBuf.limit(); i++) {
+			if (theBuf.get(i) == '\r' && theBuf.get(i + 1) == '\n') {
+				byte tmpLine[] = new byte[i - theBuf.position()];
+				theBuf.get(tmpLine).position(i + 2);
+				return new String(tmpLine, StandardCharsets.ISO_8859_1);
+			}
+		}
+		return null;
+	}
+
+	// Copies as much as fits, and returns the number of bytes copied
+	private static int copy(ByteBuffer src, ByteBuffer dest) {
+		int outNum = Math.min(src.remaining(), dest.remaining());
+		ByteBuffer tmpPart = src.duplicate();
+		tmpPart.limit(tmpPart.position() + outNum);
+		dest.put(tmpPart);
+		src.position(src.position() + outNum);
+		return outNum;
+	}
+}
@@ -2,26 +2,55 @@ package httpServer;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Project AmazingServer HTTP server starter class
+ * Startup options of the listening sockets: 'port', 'acceptors' (accepting threads, each with its own listening
+ * socket bound with 'SO_REUSEPORT', so the kernel balances the new connections between them), 'backlog', and the
+ * accepted sockets' 'tcp.nodelay', 'tcp.keepalive', 'tcp.sndbuf' and 'tcp.rcvbuf' (bytes, 0 keeps the system's).
  */
 public class HttpServerMain {
+	/**
+	 * The sockets' startup options (a holder, so they are read after the startup options are parsed).
+	 */
+	private static class SocketOptions {
+		// Constants
+		private static final boolean me_IS_NO_DELAY = ServerConfig.getBoolean("tcp.nodelay", true); // Responses are written whole, so there is nothing for Nagle to merge
+		private static final boolean me_IS_KEEP_ALIVE = ServerConfig.getBoolean("tcp.keepalive", false);
+		private static final int me_SEND_BUFFER = ServerConfig.getInt("tcp.sndbuf", 0);
+		private static final int me_RECEIVE_BUFFER = ServerConfig.getInt("tcp.rcvbuf", 0); // Set on the listening sockets (the accepted ones inherit it, with its window scale)
+	}
+
 	// Fields
-	private static final int me_PORT= 8888;
 	private static final String me_DIRECTORY = "www/";
 	protected static final int BUFSIZE = 512; // Buffer size
-	protected static final boolean SHOW_REQ_RES = true; // To show the request and response texts on the console
 	private static boolean meIsPause; // Is under maintenance flag
-	private ServerSocket meSock; // This server's socket
+	private int mePort; // The listening port
+	private ServerSocketChannel meSockChannels[]; // This server's sockets, one per acceptor (as channels to allow both blocking and NIO engines)
+	private boolean meIsNio; // Is the NIO selector engine used instead of a thread per connection
+	private Executor meExecutor; // Runs the accepted connections (according to the 'exec' startup option)
 
 	public static void main(String[] args) {
+		ServerConfig.parseArguments(args); // Startup options are given as 'name=value' (ex: 'exec=pool workers=64 queue=256')
+		if ("load".equalsIgnoreCase(ServerConfig.getString("mode", "server"))) { // A load test of a running server instead (see 'LoadGenerator')
+			new LoadGenerator().run();
+			return;
+		}
 //		// Next three lines are just to get the running file name (whether it's the '.class' or '.jar' file)
 //		String curAppName = new File(HttpServerMain.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getName();
 //		if (!curAppName.toLowerCase().endsWith(".jar"))
@@ -57,8 +86,31 @@ public class HttpServerMain {
 	}
 
 	public HttpServerMain() {
+		this.mePort = ServerConfig.getInt("port", 8888);
+		int tmpAcceptors = ServerConfig.getInt("acceptors", 1);
+		int tmpBacklog = ServerConfig.getInt("backlog", 1024);
+		if (tmpAcceptors < 1 || tmpBacklog < 1)
+			printErrWarning("The 'acceptors' and 'backlog' startup options must be positive.", true);
+		boolean tmpIsReusePort = tmpAcceptors > 1;
 		try {
-			this.meSock = new ServerSocket(me_PORT);
+			this.meSockChannels = new ServerSocketChannel[tmpAcceptors];
+			for (int i = 0; i < tmpAcceptors; i++) {
+				if (i > 0 && !tmpIsReusePort) { // The acceptors share the first socket
+					this.meSockChannels[i] = this.meSockChannels[0];
+					continue;
+				}
+				ServerSocketChannel tmpCh = ServerSocketChannel.open();
+				this.meSockChannels[i] = tmpCh;
+				if (tmpIsReusePort && !tmpCh.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					printErrWarning("SO_REUSEPORT is not supported here. The acceptors share one listening socket.", false);
+					tmpIsReusePort = false;
+				} else if (tmpIsReusePort) {
+					tmpCh.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				if (SocketOptions.me_RECEIVE_BUFFER > 0)
+					tmpCh.setOption(StandardSocketOptions.SO_RCVBUF, SocketOptions.me_RECEIVE_BUFFER);
+				tmpCh.bind(new InetSocketAddress(this.mePort), tmpBacklog);
+			}
 		} catch (IOException e) {
 			printErrWarning("Cannot open the socket. Socket could be reserved.", true);
 		} catch (SecurityException e) {
@@ -66,25 +118,109 @@ public class HttpServerMain {
 		} catch (IllegalArgumentException e) {
 			printErrWarning("Invalid port specified.", true);
 		}
+		String tmpEngine = ServerConfig.getString("engine", "blocking").toLowerCase();
+		if ("nio".equals(tmpEngine)) {
+			this.meIsNio = true;
+		} else {
+			if (!"blocking".equals(tmpEngine))
+				printErrWarning("Unknown engine '" + tmpEngine + "' (expected 'blocking' or 'nio'). Using the blocking engine.", false);
+			this.meExecutor = this.createExecutor();
+		}
+	}
+
+	// A private method that creates the connections' executor according to the 'exec' startup option:
+	// 'pool' (default) is a bounded worker pool that answers with '503' when both workers and queue are full,
+	// 'virtual' is a virtual-thread-per-connection (needs Java 21+), and 'thread' is the old platform-thread-per-connection.
+	private Executor createExecutor() {
+		String tmpMode = ServerConfig.getString("exec", "pool").toLowerCase();
+		switch (tmpMode) {
+			case "thread":
+				System.out.println("Execution mode: a new platform thread per connection.");
+				return tmpTask -> new Thread(tmpTask).start();
+			case "virtual":
+				try { // Reflection to still compile and run on older Java versions
+					ExecutorService outExec = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+					System.out.println("Execution mode: a new virtual thread per connection.");
+					return outExec;
+				} catch (ReflectiveOperationException e) {
+					printErrWarning("Virtual threads are not supported by this Java version (21+ needed). Using the worker pool instead.", false);
+				}
+				break;
+			case "pool":
+				break;
+			default:
+				printErrWarning("Unknown execution mode '" + tmpMode + "' (expected 'pool', 'virtual' or 'thread'). Using the worker pool.", false);
+		}
+		int tmpWorkers = ServerConfig.getInt("workers", Runtime.getRuntime().availableProcessors() * 16);
+		int tmpQueue = ServerConfig.getInt("queue", tmpWorkers * 4);
+		if (tmpWorkers < 1 || tmpQueue < 1)
+			printErrWarning("The 'workers' and 'queue' startup options must be positive.", true);
+		ThreadPoolExecutor outPool = new ThreadPoolExecutor(tmpWorkers, tmpWorkers, 30L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(tmpQueue), (tmpTask, tmpExec) -> ((ClientConnection) tmpTask).rejectBusy()); // Reject by '503'
+		outPool.allowCoreThreadTimeOut(true); // Idle workers are not kept forever
+		OverloadControl.watch(outPool.getQueue());
+		System.out.println("Execution mode: worker pool of " + tmpWorkers + " threads with a queue of " + tmpQueue + " connections.");
+		return outPool;
 	}
 
 	/**
-	 * A method to make server start listening to client connections, and assigns a new thread for every connection.
+	 * A method to make server start listening to client connections, and hands every connection to the executor
+	 * (or to the NIO selector engine if chosen by the 'engine' startup option). The first acceptor runs on the
+	 * calling thread.
 	 */
 	public void startListen() {
-		while (!this.meSock.isClosed()) {
+		if (this.meIsNio) {
+			new NioEngine(this.meSockChannels, ServerConfig.getInt("selectors", Runtime.getRuntime().availableProcessors())).run();
+			return;
+		}
+		System.out.println("Accepting on port " + this.mePort + " with " + this.meSockChannels.length + " acceptor thread(s).");
+		for (int i = 1; i < this.meSockChannels.length; i++) {
+			ServerSocketChannel tmpCh = this.meSockChannels[i];
+			new Thread(() -> this.acceptLoop(tmpCh), "acceptor-" + i).start();
+		}
+		this.acceptLoop(this.meSockChannels[0]);
+	}
+
+	/**
+	 * Applies the startup options to an accepted socket (only the ones that differ from the defaults).
+	 * @param theChannel	the accepted socket's channel
+	 */
+	protected static void configureSocket(SocketChannel theChannel) {
+		try {
+			if (SocketOptions.me_IS_NO_DELAY)
+				theChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			if (SocketOptions.me_IS_KEEP_ALIVE)
+				theChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+			if (SocketOptions.me_SEND_BUFFER > 0)
+				theChannel.setOption(StandardSocketOptions.SO_SNDBUF, SocketOptions.me_SEND_BUFFER);
+		} catch (IOException e) {/* Can be safely ignored (a broken connection fails when it is served) */}
+	}
+
+	// Accepts the connections of a listening socket (until it is closed), and hands them to the executor
+	private void acceptLoop(ServerSocketChannel theChannel) {
+		while (theChannel.isOpen()) {
 			Socket tmpSock = null;
 			try {
-				tmpSock = this.meSock.accept();
-			} catch (SocketTimeoutException e) {
-				printErrWarning("Connection with client timed out.", false);
+				SocketChannel tmpCh = theChannel.accept();
+				configureSocket(tmpCh);
+				tmpSock = tmpCh.socket();
 			} catch (IOException e) {
 				//printErrWarning("Wait for a client connection was interrupted.", false);
 				System.out.println("Canceling the wait for connections. Exiting..."); // Normal exiting
 			} catch (SecurityException e) {
 				printErrWarning("Security violation does not allow accepting this new client.", false);
 			}
-			new Thread(new ClientConnection(tmpSock)).start(); // Kick-start new thread on every accepted socket
+			if (tmpSock == null)
+				continue;
+			if (!ClientLimits.admitConnection(tmpSock.getInetAddress())) {
+				ClientConnection.reject(tmpSock, 429); // Right away (it would not even wait in the queue)
+				continue;
+			}
+			try {
+				this.meExecutor.execute(new ClientConnection(tmpSock)); // Hand every accepted socket to the executor
+			} catch (RejectedExecutionException e) { // Only when the executor is shut down
+				new ClientConnection(tmpSock).rejectBusy();
+			}
 		}
 	}
 
@@ -99,8 +235,10 @@ public class HttpServerMain {
 					printErrWarning("System is " + (meIsPause ? "paused for maintenance." : "resuming from maintenance pause."), false);
 				}
 			}
-			if (this.meSock != null && !this.meSock.isClosed())
-				this.meSock.close();
+			for (ServerSocketChannel tmpCh : this.meSockChannels) {
+				if (tmpCh != null && tmpCh.isOpen())
+					tmpCh.close();
+			}
 			System.exit(0); // Exit normally
 		} catch (IOException e) {/* Can be safely ignored */}
 	}
@@ -0,0 +1,139 @@
+package httpServer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram in the style of HdrHistogram: the values (ex: nanoseconds) are counted in log-linear buckets,
+ * exact below 128 and within 1/64 (about 1.6%) above, so it has a fixed size (about 30 KB) whatever the range of
+ * the values, and percentiles are read from the counts without keeping the samples. Recording is lock-free (an
+ * atomic increment of one bucket), so it can be shared by threads, and histograms can be added together (ex: the
+ * per-thread ones at the end of a run).
+ */
+public class LatencyHistogram {
+	// Constants
+	private static final int me_SUB_BITS = 6; // 64 linear sub-buckets per power of two
+	private static final int me_LINEAR = 2 << me_SUB_BITS; // The values below this are counted exactly
+	private static final int me_BUCKETS = me_LINEAR + (63 - me_SUB_BITS) * (1 << me_SUB_BITS); // Up to 'Long.MAX_VALUE'
+	// Fields
+	private AtomicLongArray meCounts = new AtomicLongArray(me_BUCKETS);
+	private LongAdder meCount = new LongAdder(); // Striped, since every recording thread adds to it
+	private LongAdder meSum = new LongAdder();
+	private AtomicLong meMax = new AtomicLong();
+
+	/**
+	 * Counts a value.
+	 * @param value	the value (negative values are counted as 0)
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		this.meCounts.incrementAndGet(toIndex(value));
+		this.meCount.increment();
+		this.meSum.add(value);
+		long tmpMax;
+		while (value > (tmpMax = this.meMax.get()) && !this.meMax.compareAndSet(tmpMax, value));
+	}
+
+	/**
+	 * Adds the counts of another histogram to this one.
+	 * @param other	the histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < me_BUCKETS; i++) {
+			long tmpNum = other.meCounts.get(i);
+			if (tmpNum != 0)
+				this.meCounts.addAndGet(i, tmpNum);
+		}
+		this.meCount.add(other.meCount.sum());
+		this.meSum.add(other.meSum.sum());
+		long tmpMax;
+		while (other.meMax.get() > (tmpMax = this.meMax.get()) && !this.meMax.compareAndSet(tmpMax, other.meMax.get()));
+	}
+
+	/**
+	 * Returns the number of the counted values.
+	 * @return	the count
+	 */
+	public long getCount() {
+		return this.meCount.sum();
+	}
+
+	/**
+	 * Returns the biggest counted value.
+	 * @return	the max value (0 if none is counted)
+	 */
+	public long getMax() {
+		return this.meMax.get();
+	}
+
+	/**
+	 * Returns the average of the counted values.
+	 * @return	the mean (0 if none is counted)
+	 */
+	public double getMean() {
+		long tmpCount = this.meCount.sum();
+		return tmpCount == 0 ? 0 : (double) this.meSum.sum() / tmpCount;
+	}
+
+	/**
+	 * Returns the sum of the counted values.
+	 * @return	the sum
+	 */
+	public long getSum() {
+		return this.meSum.sum();
+	}
+
+	/**
+	 * Returns the number of the counted values that are not above a value (by their buckets, so values that share
+	 * the bucket of the limit, within 1/64 above it, are counted too).
+	 * @param limit	the highest value
+	 * @return		the count
+	 */
+	public long getCountUpTo(long limit) {
+		long outCount = 0;
+		int tmpLast = toIndex(Math.max(limit, 0));
+		for (int i = 0; i <= tmpLast; i++)
+			outCount += this.meCounts.get(i);
+		return outCount;
+	}
+
+	/**
+	 * Returns the value that the given fraction of the counted values are not above (ex: 0.99 for the 99th
+	 * percentile), as the highest value of its bucket (and never above the max).
+	 * @param fraction	the fraction (from 0 to 1)
+	 * @return			the percentile's value (0 if none is counted)
+	 */
+	public long getPercentile(double fraction) {
+		long tmpCount = this.meCount.sum();
+		if (tmpCount == 0)
+			return 0;
+		long tmpRank = Math.max(1, (long) Math.ceil(fraction * tmpCount)); // The rank of the value asked for
+		long tmpSeen = 0;
+		for (int i = 0; i < me_BUCKETS; i++) {
+			tmpSeen += this.meCounts.get(i);
+			if (tmpSeen >= tmpRank)
+				return Math.min(toHighest(i), this.meMax.get());
+		}
+		return this.meMax.get();
+	}
+
+	// The bucket of a value: exact below 'me_LINEAR', otherwise the value's top bits (after the highest one) select
+	// the sub-bucket within its power of two
+	private static int toIndex(long value) {
+		if (value < me_LINEAR)
+			return (int) value;
+		int tmpShift = 63 - Long.numberOfLeadingZeros(value) - me_SUB_BITS; // At least 1 here
+		return me_LINEAR + (tmpShift - 1) * (1 << me_SUB_BITS) + (int) (value >>> tmpShift) - (1 << me_SUB_BITS);
+	}
+
+	// The highest value that falls in a bucket
+	private static long toHighest(int index) {
+		if (index < me_LINEAR)
+			return index;
+		int tmpShift = (index - me_LINEAR) / (1 << me_SUB_BITS) + 1;
+		long tmpSub = (index - me_LINEAR) % (1 << me_SUB_BITS) + (1 << me_SUB_BITS);
+		return tmpShift + me_SUB_BITS >= 62 ? Long.MAX_VALUE : ((tmpSub + 1) << tmpShift) - 1;
+	}
+}
@@ -0,0 +1,138 @@
+package httpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Closes the rejected connections gracefully (a lingering close). A rejection is sent before the client's request
+ * is read (see 'ClientConnection.reject()'), and closing a socket with unread received bytes resets the connection,
+ * so the client's system would drop the response it has not read yet (ex: a '429' sent while the request's body is
+ * still coming). Here the output is ended after the response, then what the client still sends is read and dropped
+ * until it closes its side too (or for a short while, or up to a number of bytes), and only then the socket is
+ * closed. A single thread does it for all the rejected connections without blocking on any of them, so a flood of
+ * rejections holds no thread per connection.
+ * Startup option: 'linger.timeout' (ms, the longest wait for the client's end, 0 closes at once).
+ */
+public class LingeringClose {
+
+	// A connection waiting for the client's end
+	private static class Lingering {
+		private long meDeadline; // ms
+		private long meBytes; // The bytes dropped so far
+	}
+
+	// Constants
+	private static final long me_TIMEOUT = Math.max(ServerConfig.getLong("linger.timeout", 2000L), 0);
+	private static final long me_MAX_BYTES = 256 * 1024; // Dropped at most per connection (then it is closed anyway)
+	private static final int me_MAX_CONNECTIONS = 4096; // Waiting at most (more are closed at once)
+	private static final Selector me_SELECTOR;
+	// Fields
+	private static final Queue<SocketChannel> mePending = new ConcurrentLinkedQueue<>(); // Waiting to be registered by the thread
+	private static final AtomicInteger meCount = new AtomicInteger(); // The connections pending or registered
+	private static ByteBuffer meDropBuf = ByteBuffer.allocateDirect(HttpServerMain.BUFSIZE * 32); // Of the thread only
+
+	static {
+		Selector tmpSelector = null;
+		if (me_TIMEOUT > 0) {
+			try {
+				tmpSelector = Selector.open();
+				Thread tmpTh = new Thread(LingeringClose::lingerLoop, "lingering-close");
+				tmpTh.setDaemon(true);
+				tmpTh.start();
+			} catch (IOException e) {
+				HttpServerMain.printErrWarning("Cannot open the lingering close's selector. Rejected connections are closed at once.", false);
+				tmpSelector = null;
+			}
+		}
+		me_SELECTOR = tmpSelector;
+	}
+
+	private LingeringClose() {} // Static holder only
+
+	/**
+	 * Ends the output of a connection whose response is sent, and closes it once the client is done sending (or
+	 * at once if lingering is disabled, or too many connections are lingering already). The channel must not be
+	 * used by the caller anymore, and it must not be registered with another selector.
+	 * @param theChannel	the connection's channel
+	 */
+	public static void close(SocketChannel theChannel) {
+		try {
+			theChannel.shutdownOutput(); // The response goes before the close
+			if (me_SELECTOR != null) {
+				if (meCount.incrementAndGet() <= me_MAX_CONNECTIONS) {
+					mePending.add(theChannel);
+					me_SELECTOR.wakeup();
+					return;
+				}
+				meCount.decrementAndGet();
+			}
+		} catch (IOException e) {/* Can be safely ignored (it is closed anyway) */}
+		closeChannel(theChannel);
+	}
+
+	// The lingering thread: drops what the connections receive, and closes them at their end, deadline or byte limit
+	private static void lingerLoop() {
+		while (true) {
+			try {
+				me_SELECTOR.select(250);
+				long tmpNow = System.currentTimeMillis();
+				SocketChannel tmpNew;
+				while ((tmpNew = mePending.poll()) != null) {
+					Lingering tmpState = new Lingering();
+					tmpState.meDeadline = tmpNow + me_TIMEOUT;
+					try {
+						tmpNew.configureBlocking(false);
+						tmpNew.register(me_SELECTOR, SelectionKey.OP_READ, tmpState);
+					} catch (IOException e) {
+						close(tmpNew, null);
+					}
+				}
+				Iterator<SelectionKey> tmpIter = me_SELECTOR.selectedKeys().iterator();
+				while (tmpIter.hasNext()) {
+					SelectionKey tmpKey = tmpIter.next();
+					tmpIter.remove();
+					Lingering tmpState = (Lingering) tmpKey.attachment();
+					int tmpNum;
+					try {
+						do {
+							meDropBuf.clear();
+							tmpNum = ((SocketChannel) tmpKey.channel()).read(meDropBuf);
+							tmpState.meBytes += Math.max(tmpNum, 0);
+						} while (tmpNum > 0 && tmpState.meBytes < me_MAX_BYTES);
+					} catch (IOException e) {
+						tmpNum = -1;
+					}
+					if (tmpNum < 0 || tmpState.meBytes >= me_MAX_BYTES) // The client's end (or it keeps sending)
+						close((SocketChannel) tmpKey.channel(), tmpKey);
+				}
+				for (SelectionKey tmpKey : me_SELECTOR.keys()) {
+					if (tmpKey.isValid() && tmpNow - ((Lingering) tmpKey.attachment()).meDeadline >= 0)
+						close((SocketChannel) tmpKey.channel(), tmpKey);
+				}
+			} catch (IOException e) {
+				HttpServerMain.printErrWarning("The lingering close's thread failed.", false);
+				return;
+			}
+		}
+	}
+
+	private static void close(SocketChannel theChannel, SelectionKey theKey) {
+		if (theKey != null)
+			theKey.cancel();
+		meCount.decrementAndGet();
+		closeChannel(theChannel);
+	}
+
+	private static void closeChannel(SocketChannel theChannel) {
+		try {
+			theChannel.close();
+		} catch (IOException e) {/* Can be safely ignored */}
+	}
+}
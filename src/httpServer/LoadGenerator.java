@@ -0,0 +1,249 @@
+package httpServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A load generator against a running server (the 'mode=load' startup option). It opens 'connections' concurrent
+ * connections (persistent ones unless 'keepalive=off', with 'pipeline' requests sent at once on each), replays a
+ * mix of requests for 'time' ms (after 'warmup' ms that are not counted), and prints the throughput and the latency
+ * percentiles. The mix follows the server's layout: GETs of the 'get' paths (comma-separated, under 'www/'), PUTs
+ * that overwrite a file per connection in 'www/put/', and POSTs that append to 'www/post/post-test.txt', weighted by
+ * 'mix' (ex: 'get:80,put:10,post:10'), with bodies of 'body' bytes. The server is given by 'target' (host:port).
+ */
+public class LoadGenerator implements Runnable {
+
+	// The state of one generating connection's thread
+	private class Client implements Runnable {
+		// Fields
+		private int meId;
+		private LatencyHistogram meHist = new LatencyHistogram(); // Only this thread records into it (merged at the end)
+		private long meErrors;
+		private long meBytesIn;
+		private byte meBuf[] = new byte[64 * 1024]; // The received body bytes are skipped through it
+
+		Client(int theId) {
+			this.meId = theId;
+		}
+
+		@Override
+		public void run() {
+			ArrayDeque<Long> tmpSent = new ArrayDeque<>(LoadGenerator.this.mePipeline); // The send times of the unanswered requests
+			while (!LoadGenerator.this.meIsDone) {
+				try (Socket tmpSock = new Socket()) {
+					tmpSock.setTcpNoDelay(true);
+					tmpSock.connect(LoadGenerator.this.meTarget, 5000);
+					tmpSock.setSoTimeout(10000);
+					OutputStream tmpOut = tmpSock.getOutputStream();
+					InputStream tmpIn = new BufferedInputStream(tmpSock.getInputStream(), 16 * 1024);
+					boolean tmpIsOpen = true;
+					while (tmpIsOpen && !LoadGenerator.this.meIsDone) {
+						tmpSent.clear();
+						int tmpDepth = LoadGenerator.this.meIsKeepAlive ? LoadGenerator.this.mePipeline : 1;
+						for (int i = 0; i < tmpDepth; i++) { // All at once (pipelined)
+							tmpOut.write(LoadGenerator.this.createRequest(this.meId));
+							tmpSent.add(System.nanoTime());
+						}
+						tmpOut.flush();
+						while (tmpIsOpen && !tmpSent.isEmpty()) {
+							long tmpStart = tmpSent.poll();
+							boolean tmpIsCounted = LoadGenerator.this.meIsCounting && tmpStart >= LoadGenerator.this.meCountFrom;
+							tmpIsOpen = this.readResponse(tmpIn, tmpIsCounted);
+							if (tmpIsCounted)
+								this.meHist.record(System.nanoTime() - tmpStart);
+						}
+						tmpIsOpen &= LoadGenerator.this.meIsKeepAlive; // The rest of a batch is dropped if the server closes the connection
+					}
+				} catch (IOException e) {
+					if (!LoadGenerator.this.meIsDone && LoadGenerator.this.meIsCounting)
+						this.meErrors++;
+				}
+			}
+		}
+
+		// Reads one response (its headers, and its body by 'Content-Length' or chunked), counts its status (if it
+		// is counted), and returns false if the server closes the connection after it
+		private boolean readResponse(InputStream in, boolean isCounted) throws IOException {
+			String tmpStatus = readLine(in);
+			int tmpCode = tmpStatus.length() >= 12 ? Integer.parseInt(tmpStatus.substring(9, 12)) : 0;
+			long tmpLen = 0;
+			boolean tmpIsChunked = false;
+			boolean outIsOpen = true;
+			String tmpLine;
+			while (!(tmpLine = readLine(in)).isEmpty()) {
+				String tmpLower = tmpLine.toLowerCase(Locale.ROOT);
+				if (tmpLower.startsWith("content-length:")) {
+					tmpLen = Long.parseLong(tmpLower.substring(15).trim());
+				} else if (tmpLower.startsWith("transfer-encoding:")) {
+					tmpIsChunked = tmpLower.contains("chunked");
+				} else if (tmpLower.startsWith("connection:")) {
+					outIsOpen = !tmpLower.contains("close");
+				}
+			}
+			if (tmpIsChunked) {
+				while ((tmpLen = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+					this.skip(in, tmpLen, isCounted);
+					readLine(in);
+				}
+				while (!readLine(in).isEmpty()); // Trailers
+			} else if (tmpCode != 304 && tmpCode != 204) {
+				this.skip(in, tmpLen, isCounted);
+			}
+			if (isCounted)
+				LoadGenerator.this.meStatuses.incrementAndGet(Math.min(Math.max(tmpCode, 0), 599));
+			return outIsOpen;
+		}
+
+		private void skip(InputStream in, long len, boolean isCounted) throws IOException {
+			while (len > 0) {
+				int tmpNum = in.read(this.meBuf, 0, (int) Math.min(this.meBuf.length, len));
+				if (tmpNum < 0)
+					throw new IOException("The connection was closed before the response's end.");
+				len -= tmpNum;
+				if (isCounted)
+					this.meBytesIn += tmpNum;
+			}
+		}
+	}
+
+	// Constants
+	private static final String me_POST_TARGET = "/post/post-test.txt"; // The server appends POSTs to this file
+	// Fields
+	private InetSocketAddress meTarget;
+	private String meHost;
+	private int meConnections = ServerConfig.getInt("connections", 16);
+	private int mePipeline = Math.max(ServerConfig.getInt("pipeline", 1), 1);
+	private boolean meIsKeepAlive = ServerConfig.getBoolean("keepalive", true);
+	private long meWarmup = ServerConfig.getLong("warmup", 2000L);
+	private long meTime = ServerConfig.getLong("time", 10000L);
+	private String meGets[] = ServerConfig.getString("get", "/index.htm").split(",");
+	private int meWeights[] = new int[3]; // The cumulative weights of GET, PUT and POST
+	private byte meBody[];
+	private volatile boolean meIsDone;
+	private volatile boolean meIsCounting; // After the warm-up
+	private volatile long meCountFrom; // Requests sent before this time (during the warm-up) are not counted
+	private AtomicLongArray meStatuses = new AtomicLongArray(600); // The received responses by status code
+
+	/**
+	 * Constructor (reads the load test's startup options, terminates execution if they are invalid).
+	 */
+	public LoadGenerator() {
+		String tmpTarget = ServerConfig.getString("target", "localhost:" + ServerConfig.getInt("port", 8888));
+		int tmpInd = tmpTarget.lastIndexOf(':');
+		try {
+			this.meHost = tmpTarget;
+			this.meTarget = new InetSocketAddress(tmpInd < 0 ? tmpTarget : tmpTarget.substring(0, tmpInd), tmpInd < 0 ? 80 : Integer.parseInt(tmpTarget.substring(tmpInd + 1)));
+		} catch (IllegalArgumentException e) {
+			HttpServerMain.printErrWarning("Invalid load test target '" + tmpTarget + "' (expected 'host:port').", true);
+		}
+		int tmpSum = 0;
+		for (String tmpPart : ServerConfig.getString("mix", "get:100").toLowerCase(Locale.ROOT).split(",")) {
+			String tmpPair[] = tmpPart.trim().split(":");
+			int tmpKind = Arrays.asList("get", "put", "post").indexOf(tmpPair[0].trim());
+			try {
+				if (tmpKind < 0 || tmpPair.length != 2)
+					throw new NumberFormatException();
+				this.meWeights[tmpKind] += Integer.parseInt(tmpPair[1].trim());
+			} catch (NumberFormatException e) {
+				HttpServerMain.printErrWarning("Invalid load test mix '" + tmpPart + "' (expected ex: 'get:80,put:10,post:10').", true);
+			}
+		}
+		for (int i = 0; i < this.meWeights.length; i++)
+			this.meWeights[i] = tmpSum += this.meWeights[i];
+		if (tmpSum <= 0 || this.meConnections < 1)
+			HttpServerMain.printErrWarning("The load test needs a positive mix and at least one connection.", true);
+		this.meBody = new byte[ServerConfig.getInt("body", 1024)];
+		Arrays.fill(this.meBody, (byte) 'x');
+	}
+
+	/**
+	 * Runs the load test (warm-up, then measuring), and prints its results.
+	 */
+	@Override
+	public void run() {
+		System.out.println("Load test: " + this.meConnections + " connection(s) to " + this.meHost + (this.meIsKeepAlive ? ", keep-alive, pipeline "
+				+ this.mePipeline : ", a connection per request") + ", warm-up " + this.meWarmup + " ms, measuring " + this.meTime + " ms..");
+		Client tmpClients[] = new Client[this.meConnections];
+		Thread tmpThreads[] = new Thread[this.meConnections];
+		for (int i = 0; i < tmpClients.length; i++) {
+			tmpClients[i] = new Client(i);
+			tmpThreads[i] = new Thread(tmpClients[i], "load-" + i);
+			tmpThreads[i].setDaemon(true);
+			tmpThreads[i].start();
+		}
+		long tmpStart;
+		long tmpEnd;
+		try {
+			Thread.sleep(this.meWarmup);
+			this.meCountFrom = tmpStart = System.nanoTime();
+			this.meIsCounting = true;
+			Thread.sleep(this.meTime);
+			this.meIsCounting = false; // Responses that arrive after this are not counted
+			tmpEnd = System.nanoTime();
+			this.meIsDone = true;
+			for (Thread tmpTh : tmpThreads)
+				tmpTh.join(15000);
+		} catch (InterruptedException e) {
+			return;
+		}
+		LatencyHistogram tmpHist = new LatencyHistogram();
+		long tmpErrors = 0;
+		long tmpBytes = 0;
+		for (Client tmpClient : tmpClients) {
+			tmpHist.add(tmpClient.meHist);
+			tmpErrors += tmpClient.meErrors;
+			tmpBytes += tmpClient.meBytesIn;
+		}
+		double tmpSecs = (tmpEnd - tmpStart) / 1e9;
+		StringBuilder tmpCodes = new StringBuilder();
+		for (int i = 0; i < this.meStatuses.length(); i++) {
+			if (this.meStatuses.get(i) > 0)
+				tmpCodes.append(tmpCodes.length() == 0 ? "" : ", ").append(i).append(": ").append(this.meStatuses.get(i));
+		}
+		System.out.println(String.format(Locale.ROOT, "Requests: %d in %.1f s = %.0f req/s, body bytes in: %.1f MB/s, connection errors: %d",
+				tmpHist.getCount(), tmpSecs, tmpHist.getCount() / tmpSecs, tmpBytes / tmpSecs / 1e6, tmpErrors));
+		System.out.println("Statuses: " + (tmpCodes.length() == 0 ? "none" : tmpCodes));
+		System.out.println(String.format(Locale.ROOT, "Latency (us): mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f", tmpHist.getMean() / 1000,
+				tmpHist.getPercentile(0.5) / 1000.0, tmpHist.getPercentile(0.9) / 1000.0, tmpHist.getPercentile(0.99) / 1000.0,
+				tmpHist.getPercentile(0.999) / 1000.0, tmpHist.getMax() / 1000.0));
+	}
+
+	// Picks the next request of the mix
+	private byte[] createRequest(int clientId) {
+		int tmpPick = ThreadLocalRandom.current().nextInt(this.meWeights[2]);
+		String tmpConn = this.meIsKeepAlive ? "" : "Connection: close\r\n";
+		if (tmpPick < this.meWeights[0]) {
+			String tmpPath = this.meGets[ThreadLocalRandom.current().nextInt(this.meGets.length)].trim();
+			return ("GET " + tmpPath + " HTTP/1.1\r\nHost: " + this.meHost + "\r\n" + tmpConn + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		}
+		String tmpHead = (tmpPick < this.meWeights[1] ? "PUT /put/load-" + clientId + ".txt" : "POST " + me_POST_TARGET) + " HTTP/1.1\r\nHost: " + this.meHost
+				+ "\r\nContent-Type: text/plain\r\nContent-Length: " + this.meBody.length + "\r\n" + tmpConn + "\r\n";
+		byte tmpHeadBytes[] = tmpHead.getBytes(StandardCharsets.ISO_8859_1);
+		byte outReq[] = Arrays.copyOf(tmpHeadBytes, tmpHeadBytes.length + this.meBody.length);
+		System.arraycopy(this.meBody, 0, outReq, tmpHeadBytes.length, this.meBody.length);
+		return outReq;
+	}
+
+	// Reads a line (without its CRLF) of a response's head
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder outLine = new StringBuilder(64);
+		int tmpByte;
+		while ((tmpByte = in.read()) != '\n') {
+			if (tmpByte < 0)
+				throw new IOException("The connection was closed before the response's end.");
+			if (tmpByte != '\r')
+				outLine.append((char) tmpByte);
+		}
+		return outLine.toString();
+	}
+}
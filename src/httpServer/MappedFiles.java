@@ -0,0 +1,186 @@
+package httpServer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A registry of memory-mapped big files, so all the concurrent downloads of the same file share one read-only
+ * mapping (backed by the operating system's page cache) instead of reading the file again for every request.
+ * Mappings are reference-counted: a mapping is released (unmapped) when its file changes, or when it has not been
+ * used for 'mmap.idle' ms, but only after its last response is sent. Only files from 'mmap.threshold' bytes (and
+ * smaller than 2 GB, the limit of one mapping) are mapped, and a threshold of 0 disables mapping.
+ */
+public class MappedFiles {
+
+	/**
+	 * A shared mapping of one file.
+	 */
+	public static class Mapping {
+		// Fields
+		private String mePath; // The file's canonical absolute path
+		private MappedByteBuffer meBuf;
+		private long meModified; // The file's modification time when it was mapped
+		private int meRefs; // The responses that are using this mapping
+		private long meLastUsed = System.currentTimeMillis();
+		private boolean meIsReleased; // Removed from the registry (unmapped when no response uses it anymore)
+
+		private Mapping(String absPath, MappedByteBuffer theBuf, long modified) {
+			this.mePath = absPath;
+			this.meBuf = theBuf;
+			this.meModified = modified;
+		}
+
+		/**
+		 * Returns the mapped file's bytes (a new view every time, so every response has its own position).
+		 * @return	a read-only view of the mapped file
+		 */
+		public ByteBuffer getBody() {
+			return this.meBuf.asReadOnlyBuffer();
+		}
+
+		/**
+		 * Returns the mapped file's size.
+		 * @return	the number of the mapped bytes
+		 */
+		public long getSize() {
+			return this.meBuf.capacity();
+		}
+	}
+
+	// Constants
+	private static final long me_THRESHOLD = ServerConfig.getLong("mmap.threshold", 16L * 1024 * 1024); // The smallest mapped file
+	private static final long me_IDLE = ServerConfig.getLong("mmap.idle", 30000L); // How long (ms) an unused mapping is kept
+	private static final Method me_UNMAPPER = findUnmapper(); // Unmaps without waiting for the garbage collector (if supported)
+	private static final Object me_UNSAFE = findUnsafe();
+	// Fields
+	private static final Map<String, Mapping> meMappings = new HashMap<>(); // By canonical path
+	private static long meLastSweep = System.currentTimeMillis(); // The last time cold mappings were looked for
+
+	private MappedFiles() {} // Static holder only
+
+	/**
+	 * Checks if a file with the given size should be served from a mapping.
+	 * @param fileSize	the file's size
+	 * @return			true if mapping is enabled and the file is big enough (but can still be mapped at once)
+	 */
+	public static boolean isMappable(long fileSize) {
+		return me_THRESHOLD > 0 && fileSize >= me_THRESHOLD && fileSize <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the shared mapping of a file (mapping it if it is not mapped yet, or if it has changed since). Every
+	 * call must be followed by 'release()' when the response is sent (or the connection is lost).
+	 * @param absPath		the file's canonical absolute path
+	 * @param modified		the file's current modification time
+	 * @return				the file's mapping
+	 * @throws IOException	if the file cannot be mapped
+	 */
+	public static Mapping acquire(String absPath, long modified) throws IOException {
+		synchronized (meMappings) {
+			sweepCold();
+			Mapping outMap = meMappings.get(absPath);
+			if (outMap != null && outMap.meModified != modified) { // Changed since it was mapped
+				remove(outMap);
+				outMap = null;
+			}
+			if (outMap == null) {
+				try (FileChannel tmpCh = FileChannel.open(Paths.get(absPath), StandardOpenOption.READ)) { // The mapping stays valid after closing
+					outMap = new Mapping(absPath, tmpCh.map(FileChannel.MapMode.READ_ONLY, 0, tmpCh.size()), modified);
+				}
+				meMappings.put(absPath, outMap);
+			}
+			outMap.meRefs++;
+			outMap.meLastUsed = System.currentTimeMillis();
+			return outMap;
+		}
+	}
+
+	/**
+	 * Gives a mapping back after its response is sent (or the connection is lost).
+	 * @param theMap	the mapping returned by 'acquire()'
+	 */
+	public static void release(Mapping theMap) {
+		synchronized (meMappings) {
+			theMap.meRefs--;
+			theMap.meLastUsed = System.currentTimeMillis();
+			if (theMap.meIsReleased && theMap.meRefs == 0)
+				unmap(theMap);
+		}
+	}
+
+	/**
+	 * Drops the mapping of a file (to be called when the file is written). Responses that are still sending it
+	 * keep the old mapping until they finish.
+	 * @param absPath	the file's canonical absolute path
+	 */
+	public static void invalidate(String absPath) {
+		synchronized (meMappings) {
+			Mapping tmpMap = meMappings.get(absPath);
+			if (tmpMap != null)
+				remove(tmpMap);
+		}
+	}
+
+	// Removes the mappings that were not used for a while (checked about every second, the caller holds the lock)
+	private static void sweepCold() {
+		long tmpNow = System.currentTimeMillis();
+		if (tmpNow - meLastSweep < 1000)
+			return;
+		meLastSweep = tmpNow;
+		Iterator<Mapping> tmpIter = meMappings.values().iterator();
+		while (tmpIter.hasNext()) {
+			Mapping tmpMap = tmpIter.next();
+			if (tmpMap.meRefs == 0 && tmpNow - tmpMap.meLastUsed > me_IDLE) {
+				tmpIter.remove();
+				tmpMap.meIsReleased = true;
+				unmap(tmpMap);
+			}
+		}
+	}
+
+	// Removes a mapping from the registry, and unmaps it if no response uses it (the caller holds the lock)
+	private static void remove(Mapping theMap) {
+		meMappings.remove(theMap.mePath);
+		theMap.meIsReleased = true;
+		if (theMap.meRefs == 0)
+			unmap(theMap);
+	}
+
+	// Unmaps a mapping that nothing uses anymore (otherwise it is left to the garbage collector)
+	private static void unmap(Mapping theMap) {
+		if (me_UNMAPPER != null) {
+			try {
+				me_UNMAPPER.invoke(me_UNSAFE, theMap.meBuf);
+			} catch (ReflectiveOperationException | RuntimeException e) {/* Left to the garbage collector */}
+		}
+		theMap.meBuf = null;
+	}
+
+	// Finds 'sun.misc.Unsafe.invokeCleaner()' (Java 9+) by reflection, or null if it is not available
+	private static Method findUnmapper() {
+		try {
+			return Class.forName("sun.misc.Unsafe").getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static Object findUnsafe() {
+		try {
+			Field tmpField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+			tmpField.setAccessible(true);
+			return tmpField.get(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package httpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A streaming scanner of a 'multipart/form-data' body. It looks for the boundaries while the body is being
+ * received (a boundary split between two reads is still found), and outputs only the content of the first
+ * part (like the server always did), so the body never has to be held in memory.
+ */
+public class MultipartScanner {
+
+	// The scanner's states
+	private static enum State { PREAMBLE, PART_HEADERS, PART_DATA, EPILOGUE }
+
+	// Constants
+	private static final int me_MAX_PART_HEADERS = 8192; // The longest accepted headers of a part
+	// Fields
+	private State meState = State.PREAMBLE;
+	private byte[] meDelim; // The delimiter ("\r\n--" + boundary)
+	private int[] meFail; // The delimiter's partial match table (to continue matching after a mismatch without going back)
+	private int meMatched = 2; // The number of delimiter bytes matched so far (the body starts with the first boundary, so its CRLF is implied)
+	private ByteArrayOutputStream mePartHead = new ByteArrayOutputStream(256); // The first part's headers
+	private int meLastFour; // The last 4 bytes of the part's headers (to find their end)
+	private boolean meIsBroken; // The part's headers are too long
+
+	/**
+	 * Constructor.
+	 * @param boundary	the boundary (from the 'Content-Type' header)
+	 */
+	public MultipartScanner(String boundary) {
+		this.meDelim = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.meFail = new int[this.meDelim.length];
+		for (int i = 1, k = 0; i < this.meDelim.length; i++) {
+			while (k > 0 && this.meDelim[i] != this.meDelim[k])
+				k = this.meFail[k - 1];
+			if (this.meDelim[i] == this.meDelim[k])
+				k++;
+			this.meFail[i] = k;
+		}
+	}
+
+	/**
+	 * Scans the received body bytes and puts the first part's content into the output buffer. It returns when
+	 * all the input is scanned, or when the output buffer has less room than the delimiter's length (then the
+	 * output should be emptied before scanning the rest).
+	 * @param in	the received body bytes
+	 * @param out	the buffer to receive the part's content
+	 */
+	public void scan(ByteBuffer in, ByteBuffer out) {
+		while (in.hasRemaining()) {
+			switch (this.meState) {
+				case PREAMBLE:
+					if (this.match(in.get(), null))
+						this.meState = State.PART_HEADERS;
+					break;
+				case PART_HEADERS:
+					byte tmpByte = in.get();
+					this.mePartHead.write(tmpByte);
+					this.meLastFour = (this.meLastFour << 8) | (tmpByte & 0xFF);
+					if (this.meLastFour == 0x0D0A0D0A) { // CRLF CRLF
+						this.meState = State.PART_DATA;
+					} else if (this.mePartHead.size() > me_MAX_PART_HEADERS) {
+						this.meIsBroken = true;
+						this.meState = State.EPILOGUE;
+					}
+					break;
+				case PART_DATA:
+					if (out.remaining() < this.meDelim.length)
+						return; // The output has to be emptied first
+					if (this.match(in.get(), out))
+						this.meState = State.EPILOGUE;
+					break;
+				default: // Only the first part is needed
+					in.position(in.limit());
+			}
+		}
+	}
+
+	// Matches one byte against the delimiter, puts the bytes that turned out to be content in the output (if not
+	// null), and returns true if the whole delimiter is matched
+	private boolean match(byte theByte, ByteBuffer out) {
+		while (this.meMatched > 0 && theByte != this.meDelim[this.meMatched]) { // The held bytes that cannot start a delimiter are content
+			int tmpKeep = this.meFail[this.meMatched - 1];
+			if (out != null)
+				out.put(this.meDelim, 0, this.meMatched - tmpKeep);
+			this.meMatched = tmpKeep;
+		}
+		if (theByte == this.meDelim[this.meMatched]) {
+			if (++this.meMatched < this.meDelim.length)
+				return false;
+			this.meMatched = 0;
+			return true;
+		}
+		if (out != null)
+			out.put(theByte);
+		return false;
+	}
+
+	/**
+	 * Checks if the first part is completely received (its ending boundary was found).
+	 * @return	true if the part's content is complete
+	 */
+	public boolean isPartComplete() {
+		return this.meState == State.EPILOGUE && !this.meIsBroken;
+	}
+
+	/**
+	 * Returns the headers of the first part (ex: "Content-Disposition: form-data; name=...").
+	 * @return	the part's headers, or null if they are not completely received
+	 */
+	public String getPartHeaders() {
+		if (this.meState == State.PREAMBLE || this.meState == State.PART_HEADERS || this.meIsBroken)
+			return null;
+		return new String(this.mePartHead.toByteArray(), StandardCharsets.ISO_8859_1).trim();
+	}
+}
@@ -1,9 +1,18 @@
 package httpServer;
 
 import java.io.File;
-import java.nio.file.Files;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import httpServer.HttpServerMain;
 
@@ -95,24 +104,61 @@ public class MyRequest {
 		FILE
 	}
 
+	// Constants
+	protected static final MyRequest PAUSE = new MyRequest("PAUSE / HTTP/1.1"); // Imaginary request (shared, it is never changed)
+	protected static final MyRequest ERROR = new MyRequest("ERROR / HTTP/1.1"); // Imaginary request (shared, it is never changed)
 	// Fields
 	private RequestType meReqType;
 	private String meRelPath;
 	private String meAbsPath;
 	private PathType mePathType;
-	private byte[] mePayloadData;
+	private StaticCache.Entry meCached; // The cached file (in case of GET of a hot file)
+	private UploadSink meUpload; // Receives the uploaded body (in case of PUT or POST)
+	private boolean meIsBodyFinished; // Is the uploaded body completely received
+	private RequestParser meBodyParser; // The parser that was still receiving the body (its chunks can turn out malformed)
+	private boolean meIsKeepAlive; // Does the client want to keep the connection open after the response
+	private Map<String, String> meHeaders; // The request's headers (lower-cased names)
+	private String meRequestLine[]; // The method, target and version as received (for the access log)
 
 	/**
 	 * Constructor.
 	 * @param reqString the entire string of the request
 	 */
 	public MyRequest(String reqString) {
-		String tmpArr[] = reqString.split(" ", 3);
+		this(RequestParser.fromString(reqString));
+	}
+
+	/**
+	 * Constructor (to be called as soon as the parser has received the headers). If the body is still being
+	 * received then this request becomes the parser's body sink (uploads are streamed into a temporary file),
+	 * and 'finishBody()' must be called once the parser is done.
+	 * @param parsedReq the parser that has received the request's headers (or the whole request)
+	 */
+	public MyRequest(RequestParser parsedReq) {
+		this.meHeaders = parsedReq.getHeaders();
+		this.meRequestLine = new String[] {parsedReq.getMethod(), parsedReq.getTarget(), parsedReq.getVersion()};
+		this.classifyRequest(parsedReq);
+		if (this.meReqType == RequestType.PUT || this.meReqType == RequestType.POST)
+			this.meUpload = this.createUpload();
+		if (parsedReq.getState() == RequestParser.State.BODY) {
+			this.meBodyParser = parsedReq;
+			parsedReq.setBodySink(this.meUpload != null ? this.meUpload : tmpData -> tmpData.position(tmpData.limit())); // Refused bodies are dropped
+		} else if (this.meUpload != null) { // The whole request was already received (ex: a request string)
+			this.meUpload.write(ByteBuffer.wrap(parsedReq.getBody()));
+			this.finishBody();
+		}
+	}
 
-		//Cut the HTTP version part and check if it's our supported version
-		String httpVerCheck[] = tmpArr[2].split("\n");
-		if(!"HTTP/1.1".equals(httpVerCheck[0].trim())){ // Check for HTTP version (only 1.1 is accepted)
-			if (httpVerCheck[0].trim().startsWith("HTTP/")) {
+	// Privately classify the request type and its path
+	private void classifyRequest(RequestParser parsedReq) {
+		if (parsedReq.getState() != RequestParser.State.DONE && parsedReq.getState() != RequestParser.State.BODY) { // Malformed request
+			this.meReqType = RequestType.BAD;
+			return;
+		}
+
+		//Check if it's our supported HTTP version
+		if(!"HTTP/1.1".equals(parsedReq.getVersion())){ // Check for HTTP version (only 1.1 is accepted)
+			if (parsedReq.getVersion().startsWith("HTTP/")) {
 				this.meReqType = RequestType.WRONG_HTTP; // If valid HTTP but wrong version
 				return;
 			}
@@ -120,10 +166,10 @@ public class MyRequest {
 			return;
 		}
 
-		//System.out.println(tmpArr[0]+", "+tmpArr[1]+", "+tmpArr[2].split("\n"));
-		this.meRelPath = tmpArr[1]; // Keep original path as it is, in case it is needed
-		this.meAbsPath = HttpServerMain.getAbsoluteUrlPath(this.meRelPath);
-		switch (tmpArr[0]) { // Classify the request type
+		String tmpConn = this.getHeader("Connection");
+		this.meIsKeepAlive = tmpConn == null || !tmpConn.toLowerCase().contains("close"); // HTTP/1.1 connections are persistent by default
+		this.meRelPath = parsedReq.getTarget(); // Keep original path as it is, in case it is needed
+		switch (parsedReq.getMethod()) { // Classify the request type
 			case "ERROR":
 				this.meReqType = RequestType.ERROR;
 				return;
@@ -132,14 +178,18 @@ public class MyRequest {
 				return;
 			case "GET":
 				this.meReqType = RequestType.GET;
+				this.meCached = StaticCache.get(this.getPathWithoutQuery()); // The query does not change the file
+				if (this.meCached != null) { // A hot file needs no path checks
+					this.meAbsPath = this.meCached.getPath();
+					this.mePathType = PathType.FILE;
+					return;
+				}
 				break;
 			case "PUT":
 				this.meReqType = RequestType.PUT;
-				this.setPayloadData(reqString);
 				break;
 			case "POST":
 				this.meReqType = RequestType.POST;
-				this.setPayloadData(reqString);
 				break;
 			case "DELETE":
 				this.meReqType = RequestType.NOT_ALLOWED;
@@ -153,69 +203,266 @@ public class MyRequest {
 			default:
 				this.meReqType = RequestType.BAD;
 		}
+		if (this.meReqType == RequestType.BAD) // Bad method
+			return;
 		this.checkPaths();
 	}
 
-	// To check and classify the path type, and change the absolute path to
-	// add 'index.htm' or 'index.html' if exist (only in case of GET)
-	private void checkPaths() { // Using both Paths and Files in this method gives more control to catch the forbidden situations
-		if (this.meAbsPath.startsWith(HttpServerMain.getAbsoluteUrlPath("/"))) {
-			Path tmpPath = Paths.get(new File(this.meAbsPath).getAbsolutePath()); // To get specific OS path
-			if (Files.exists(tmpPath)) {
-				if (Files.isDirectory(tmpPath)) {
-					 // The next check is better than using 'startsWith' to avoid files like 'index.htmAA'
-					if (this.meReqType == RequestType.GET && Files.exists(Paths.get(tmpPath.toString(), "index.htm"))) {
-						this.meAbsPath += this.meAbsPath.endsWith("/") ? "index.htm" : "/index.htm"; // Just in case
-						this.checkPaths();
-						return;
-					} else if (this.meReqType == RequestType.GET && Files.exists(Paths.get(tmpPath.toString(), "index.html"))) {
-						this.meAbsPath += this.meAbsPath.endsWith("/") ? "index.html" : "/index.html"; // Just in case
-						this.checkPaths();
-						return;
+	// To resolve the path (canonical path, type, and for GET the index file of a directory) through 'PathCache'
+	private void checkPaths() {
+		PathCache.Resolved tmpRes = PathCache.resolve(this.getPathWithoutQuery()); // The query does not name a file
+		if (tmpRes == null) { // Could not be resolved (ex: invalid characters)
+			this.meReqType = RequestType.BAD;
+			return;
+		}
+		this.meAbsPath = tmpRes.getAbsolutePath(this.meReqType == RequestType.GET);
+		this.mePathType = tmpRes.getPathType(this.meReqType == RequestType.GET);
+	}
+
+	// Privately creates the receiver that streams the uploaded body into a temporary file next to its target,
+	// or returns null if the upload will be refused anyway (then the body is just dropped)
+	private UploadSink createUpload() {
+		if (this.meReqType == RequestType.PUT && (this.mePathType == PathType.FORBIDDEN || this.mePathType == PathType.DIRECTORY))
+			return null;
+		if (this.meReqType == RequestType.POST && !this.meRelPath.startsWith("/post/")) // POST is only supported at a specified path
+			return null;
+		String tmpDir = HttpServerMain.getAbsoluteUrlPath(this.getPathWithoutQuery().substring(0, this.getPathWithoutQuery().lastIndexOf('/') + 1));
+		if (tmpDir == null || !tmpDir.startsWith(PathCache.getRoot()))
+			return null;
+		String tmpBnd = this.getBoundary();
+		return new UploadSink(Paths.get(new File(tmpDir).getAbsolutePath()), tmpBnd, tmpBnd == null && this.meReqType == RequestType.POST); // POST small texts get CRLF
+	}
+
+	// Privately returns the multipart boundary from the 'Content-Type' header, or null if the body is not multipart
+	private String getBoundary() {
+		String tmpType = this.getHeader("Content-Type");
+		int tmpInd = tmpType == null ? -1 : tmpType.indexOf("boundary=");
+		if (tmpInd < 0)
+			return null;
+		String outBnd = tmpType.substring(tmpInd + 9);
+		if (outBnd.indexOf(';') >= 0) // Other parameters could follow
+			outBnd = outBnd.substring(0, outBnd.indexOf(';'));
+		outBnd = outBnd.trim();
+		if (outBnd.length() > 1 && outBnd.startsWith("\"") && outBnd.endsWith("\""))
+			outBnd = outBnd.substring(1, outBnd.length() - 1); // Quoted boundary
+		return outBnd.isEmpty() ? null : outBnd;
+	}
+
+	/**
+	 * Completes the request once its whole body is received (an uploaded body is then in its temporary file, a
+	 * malformed chunked body makes it a bad request,
+	 * and in case of a multipart POST the target's path is taken from the part's 'name' parameter).
+	 */
+	public void finishBody() {
+		if (this.meBodyParser != null && this.meBodyParser.getState() == RequestParser.State.ERROR) { // A malformed chunked body
+			this.meBodyParser = null;
+			this.meReqType = RequestType.BAD;
+			this.releasePayload();
+			return;
+		}
+		this.meBodyParser = null;
+		if (this.meUpload == null || this.meIsBodyFinished)
+			return;
+		this.meIsBodyFinished = true;
+		if (!this.meUpload.finish()) {
+			this.meUpload.discard();
+			if (!this.meUpload.isFailed()) // Then the multipart body is broken (a failed write is answered like before, by '403')
+				this.meReqType = RequestType.BAD;
+			this.meUpload = null;
+			return;
+		}
+		String tmpPartHead = this.meUpload.getPartHeaders();
+		if (this.meReqType == RequestType.POST && tmpPartHead != null) { // If it is multipart POST then get the file name (depending on 'name' parameter)
+			int tmpNameInd = tmpPartHead.indexOf("name=\"");
+			int tmpNameEnd = tmpNameInd < 0 ? -1 : tmpPartHead.indexOf('"', tmpNameInd + 6);
+			if (tmpNameEnd < 0) {
+				this.meReqType = RequestType.BAD;
+				return;
+			}
+			//this.meRelPath = this.meRelPath.substring(0, this.meRelPath.lastIndexOf('/') + 1) + tmpFile;
+			//this.meAbsPath = this.getAbsolutePath().substring(0, this.getAbsolutePath().lastIndexOf('/') + 1) + tmpFile;
+			this.meRelPath = this.meRelPath.substring(0, this.meRelPath.lastIndexOf('/') + 1) + tmpPartHead.substring(tmpNameInd + 6, tmpNameEnd);
+			this.checkPaths();
+		}
+	}
+
+	/**
+	 * Deletes the temporary file of the uploaded body (if it was not moved to its target). To be called when the
+	 * request is answered, or when the connection is lost while receiving the body.
+	 */
+	public void releasePayload() {
+		if (this.meUpload != null)
+			this.meUpload.discard();
+	}
+
+	/**
+	 * Returns the value of one of the request's headers.
+	 * @param headerName	the header's name (case-insensitive)
+	 * @return				the header's value, or null if the request does not have it
+	 */
+	public String getHeader(String headerName) {
+		return this.meHeaders.get(headerName.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Returns the byte ranges asked for by the 'Range' header (the satisfiable ones are decided by the response,
+	 * which knows the file's size).
+	 * @return	the ranges as {first, last} pairs (first is -1 for a suffix range, where last is the suffix length,
+	 * 			and last is -1 if it is open-ended), or null if there is no valid 'Range' header
+	 */
+	public List<long[]> getRanges() {
+		String tmpRange = this.getHeader("Range");
+		if (tmpRange == null || !tmpRange.regionMatches(true, 0, "bytes=", 0, 6))
+			return null; // Other range units are ignored
+		List<long[]> outRanges = new ArrayList<>();
+		try {
+			for (String tmpSpec : tmpRange.substring(6).split(",")) {
+				tmpSpec = tmpSpec.trim();
+				int tmpInd = tmpSpec.indexOf('-');
+				if (tmpSpec.isEmpty()) // Empty list elements are allowed
+					continue;
+				if (tmpInd < 0 || tmpSpec.indexOf('-', tmpInd + 1) >= 0 || tmpSpec.indexOf('+') >= 0) // Only digits are allowed around the '-'
+					return null;
+				String tmpFirst = tmpSpec.substring(0, tmpInd).trim();
+				String tmpLast = tmpSpec.substring(tmpInd + 1).trim();
+				if (tmpFirst.isEmpty() && tmpLast.isEmpty())
+					return null;
+				long tmpRng[] = {tmpFirst.isEmpty() ? -1 : Long.parseLong(tmpFirst), tmpLast.isEmpty() ? -1 : Long.parseLong(tmpLast)};
+				if (tmpRng[0] >= 0 && tmpRng[1] >= 0 && tmpRng[1] < tmpRng[0]) // A syntactically invalid range invalidates the whole header
+					return null;
+				outRanges.add(tmpRng);
+			}
+		} catch (NumberFormatException e) { // Not a number (or too big)
+			return null;
+		}
+		return outRanges.isEmpty() ? null : outRanges;
+	}
+
+	/**
+	 * Checks if the client accepts a content coding ('Accept-Encoding', a 'q=0' weight refuses it).
+	 * @param coding	the content coding (ex: 'gzip')
+	 * @return			true if the coding is accepted (by name or by '*')
+	 */
+	public boolean acceptsEncoding(String coding) {
+		String tmpAccept = this.getHeader("Accept-Encoding");
+		if (tmpAccept == null)
+			return false;
+		Boolean tmpStar = null; // The weight of '*' (used if the coding is not named)
+		for (String tmpItem : tmpAccept.split(",")) {
+			String tmpParts[] = tmpItem.split(";");
+			String tmpName = tmpParts[0].trim();
+			boolean tmpIsAccepted = true;
+			for (int i = 1; i < tmpParts.length; i++) {
+				String tmpParam = tmpParts[i].trim();
+				if (tmpParam.startsWith("q=") || tmpParam.startsWith("Q=")) {
+					try {
+						tmpIsAccepted = Double.parseDouble(tmpParam.substring(2).trim()) > 0;
+					} catch (NumberFormatException e) {
+						tmpIsAccepted = false;
 					}
-					this.mePathType = PathType.DIRECTORY;
-				} else if (!tmpPath.toFile().canRead()) { // There seem to be a bug (http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6203387) that prevents the detection
-					this.mePathType = PathType.FORBIDDEN;
-				} else {
-					this.mePathType = PathType.FILE;
 				}
-			} else if (!Files.notExists(tmpPath)) { // If 'exists' and 'notExists' return 'false' then the access to file is forbidden
-				this.mePathType = PathType.FORBIDDEN;
-			} else {
-				this.mePathType = PathType.NOT_EXIST;
 			}
-		} else {
-			this.mePathType = PathType.FORBIDDEN;
+			if (tmpName.equalsIgnoreCase(coding))
+				return tmpIsAccepted;
+			if (tmpName.equals("*"))
+				tmpStar = tmpIsAccepted;
 		}
+		return tmpStar != null && tmpStar;
 	}
 
-	// Privately set the payload data from the request string
-	private void setPayloadData(String reqString) {
-		if (reqString.contains("boundary=")) { // To extract according the boundary
-			String tmpStr = reqString.substring(reqString.indexOf("boundary=") + 9); // Extract partially
-			String tmpBnd = "\r\n--" + tmpStr.substring(0, tmpStr.indexOf("\r\n")); // Get the boundary value
-			tmpStr = tmpStr.substring(tmpStr.indexOf(tmpBnd)  + tmpBnd.length(), tmpStr.lastIndexOf(tmpBnd)); // Extract between bounds
-			tmpStr = tmpStr.substring(tmpStr.indexOf("\r\n\r\n") + 4); // Final extract
-			if (this.getRequestType() == RequestType.POST) { // If it is POST then get the file name (depending on 'name' parameter)
-				String tmpFile = reqString.split("name=\"")[1].split("\";")[0];
-				//this.meRelPath = this.meRelPath.substring(0, this.meRelPath.lastIndexOf('/') + 1) + tmpFile;
-				//this.meAbsPath = this.getAbsolutePath().substring(0, this.getAbsolutePath().lastIndexOf('/') + 1) + tmpFile;
-				this.meRelPath = this.meRelPath.substring(0, this.meRelPath.lastIndexOf('/') + 1) + tmpFile;
-				this.meAbsPath = HttpServerMain.getAbsoluteUrlPath(this.meRelPath);
+	/**
+	 * Checks the request's validators ('If-None-Match', or else 'If-Modified-Since') against the file, to know if
+	 * the client's copy is still valid (then '304 Not Modified' is answered instead of the file).
+	 * @param eTag		the file's entity tag
+	 * @param modified	the file's modification time (in ms)
+	 * @return			true if the client's copy is not modified
+	 */
+	public boolean isNotModified(String eTag, long modified) {
+		String tmpNoneMatch = this.getHeader("If-None-Match");
+		if (tmpNoneMatch != null) { // Takes precedence over the date (weak comparison)
+			for (String tmpTag : tmpNoneMatch.split(",")) {
+				tmpTag = tmpTag.trim();
+				if (tmpTag.startsWith("W/"))
+					tmpTag = tmpTag.substring(2);
+				if (tmpTag.equals("*") || tmpTag.equals(eTag))
+					return true;
 			}
-			this.mePayloadData = tmpStr.getBytes();
-		} else { // Then it's POST (small texts)
-			this.mePayloadData = reqString.substring(reqString.indexOf("\r\n\r\n") + 4).replaceAll("(?<!\r)\n", "\r\n").getBytes();//Replace LF with CRLF for Windows readability
+			return false;
+		}
+		long tmpSince = parseHttpDate(this.getHeader("If-Modified-Since"));
+		return tmpSince >= 0 && modified / 1000 <= tmpSince / 1000; // Dates have seconds only
+	}
+
+	/**
+	 * Checks if the 'If-Range' validator (if any) still matches the file, so the asked ranges can be sent.
+	 * @param eTag		the file's entity tag
+	 * @param modified	the file's modification time (in ms)
+	 * @return			true if there is no 'If-Range', or it matches the file (strong comparison)
+	 */
+	public boolean isIfRangeMatching(String eTag, long modified) {
+		String tmpIfRange = this.getHeader("If-Range");
+		if (tmpIfRange == null)
+			return true;
+		tmpIfRange = tmpIfRange.trim();
+		if (tmpIfRange.startsWith("\"") || tmpIfRange.startsWith("W/")) // An entity tag (a weak one never matches)
+			return tmpIfRange.equals(eTag);
+		long tmpDate = parseHttpDate(tmpIfRange);
+		return tmpDate >= 0 && tmpDate / 1000 == modified / 1000;
+	}
+
+	// Parses an HTTP date (ex: 'Sun, 06 Nov 1994 08:49:37 GMT'), and returns it in ms (or -1 if null or broken)
+	private static long parseHttpDate(String httpDate) {
+		if (httpDate == null)
+			return -1;
+		try {
+			return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
 		}
 	}
-	
+
 	/**
-	 * Returns the request's payload data if applicable for the request type.
-	 * @param reqString	the request's string
-	 * @return			the request's payload data
+	 * Returns the cached file that the request leads to (only in case of GET).
+	 * @return	the cached file, or null if it is not cached
 	 */
-	public byte[] getPayloadData() {
-		return this.mePayloadData;
+	public StaticCache.Entry getCachedEntry() {
+		return this.meCached;
+	}
+
+	/**
+	 * Returns the temporary file that holds the request's uploaded payload if applicable for the request type.
+	 * @return	the payload's temporary file, or null if there is none (or writing it failed)
+	 */
+	public Path getPayloadFile() {
+		return this.meUpload == null || !this.meIsBodyFinished ? null : this.meUpload.getFile();
+	}
+
+	/**
+	 * Checks if the client wants to keep the connection open for more requests (no 'Connection: close' header).
+	 * @return	true if the connection can be kept open after responding
+	 */
+	public boolean isKeepAlive() {
+		return this.meIsKeepAlive;
+	}
+
+	/**
+	 * Returns the request line as it was received (ex: "GET /index.htm HTTP/1.1").
+	 * @return	the request line, or null if it was not received (ex: an imaginary request, or a malformed one)
+	 */
+	public String getRequestLine() {
+		if (this == PAUSE || this == ERROR || this.meRequestLine[0] == null || this.meRequestLine[1] == null)
+			return null;
+		return this.meRequestLine[0] + " " + this.meRequestLine[1] + (this.meRequestLine[2] == null ? "" : " " + this.meRequestLine[2]);
+	}
+
+	/**
+	 * Sets the HTTP version that the request was received with, if it was not received as HTTP/1.1 text (ex: an
+	 * HTTP/2 stream's request, which is parsed as its HTTP/1.1 equivalent).
+	 * @param version	the version for the request line (ex: "HTTP/2.0")
+	 */
+	public void setReceivedVersion(String version) {
+		if (this != PAUSE && this != ERROR) // The imaginary requests are shared
+			this.meRequestLine[2] = version;
 	}
 
 	/**
@@ -234,6 +481,37 @@ public class MyRequest {
 		return this.meRelPath;
 	}
 
+	/**
+	 * Returns the relative path of this HTTP request object without its query (ex: "/put/" for "/put/?page=2").
+	 * @return	the path without the query
+	 */
+	public String getPathWithoutQuery() {
+		int tmpInd = this.meRelPath.indexOf('?');
+		return tmpInd < 0 ? this.meRelPath : this.meRelPath.substring(0, tmpInd);
+	}
+
+	/**
+	 * Returns a parameter of the request's query (ex: "2" for 'page' in "/put/?page=2").
+	 * @param name	the parameter's name
+	 * @return		the parameter's (decoded) value, or null if it is not given (or malformed)
+	 */
+	public String getQueryParameter(String name) {
+		int tmpInd = this.meRelPath == null ? -1 : this.meRelPath.indexOf('?');
+		if (tmpInd < 0)
+			return null;
+		for (String tmpParam : this.meRelPath.substring(tmpInd + 1).split("&")) {
+			int tmpEq = tmpParam.indexOf('=');
+			if (tmpEq < 0 ? !tmpParam.equals(name) : !tmpParam.substring(0, tmpEq).equals(name))
+				continue;
+			try {
+				return tmpEq < 0 ? "" : URLDecoder.decode(tmpParam.substring(tmpEq + 1), "UTF-8");
+			} catch (UnsupportedEncodingException | IllegalArgumentException e) { // Malformed escapes
+				return null;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Returns the full path (in the server's machine) of this HTTP request object (in case it is applicable for the request).
 	 * @return the the full path (in the server's machine) of this HTTP request object if exists
@@ -3,11 +3,22 @@
  */
 package httpServer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 
 import httpServer.MyRequest.PathType;
@@ -17,44 +28,129 @@ import httpServer.MyRequest.RequestType;
  * A class that represents an HTTP response.
  */
 public class MyResponse {
+
+	/**
+	 * A body that is produced while it is sent (its length is not known in advance, so it is sent with
+	 * 'Transfer-Encoding: chunked').
+	 */
+	public static interface BodyStream {
+
+		/**
+		 * Produces the next bytes of the body.
+		 * @return				the next bytes, or null if the body is ended
+		 * @throws IOException	if producing failed
+		 */
+		ByteBuffer next() throws IOException;
+
+		/**
+		 * Frees what the stream holds (called when the body is ended, or the connection is lost).
+		 */
+		void close();
+	}
+
+	// A part of the body: either bytes in a buffer, a range of the body file (sent by 'transferTo()'), or a stream
+	// (sent as chunks in 'meBuf')
+	private static class BodyPart {
+		private ByteBuffer meBuf;
+		private long mePos; // The next file position to send
+		private long meEnd; // The file position after the range
+		private BodyStream meStream;
+		private boolean meIsEnded; // The stream's last chunk is produced
+
+		BodyPart(ByteBuffer theBuf) {
+			this.meBuf = theBuf;
+		}
+
+		BodyPart(BodyStream theStream) {
+			this.meStream = theStream;
+		}
+
+		BodyPart(long startPos, long endPos) {
+			this.mePos = startPos;
+			this.meEnd = endPos;
+		}
+	}
+
 	// Constants
-	// Ready-made base responses
-	private static final String me_200_OK_STARTER = "HTTP/1.1 200 OK\r\nServer: AmazingServer\r\n";
-	private static final String me_403_FORBIDDEN = "HTTP/1.1 403 Forbidden\r\nServer: AmazingServer\r\nContent-Length: 48\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>403 Forbidden</h1></body></html>";
-	private static final String me_404_NOT_FOUND = "HTTP/1.1 404 Not Found\r\nServer: AmazingServer\r\nContent-Length: 48\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>404 Not found</h1></body></html>";
-	private static final String me_500_INTERNAL_SERVER_ERROR = "HTTP/1.1 500 Internal Server Error\r\nServer: AmazingServer\r\nContent-Length: 60\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>500 Internal Server Error</h1></body></html>";
+	// Ready-made base responses (the canned ones are in 'CannedResponses')
+	private static final String me_200_OK_STARTER = "HTTP/1.1 200 OK\r\nServer: AmazingServer\r\nAccept-Ranges: bytes\r\nVary: Accept-Encoding\r\n";
 	// Ready-made additional responses
-	private static final String me_201_CREATED_STARTER = "HTTP/1.1 201 Created\r\nServer: AmazingServer\r\nConnection: close\r\nLocation: ";
-	private static final String me_204_NO_CONTENT = "HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n";
-	private static final String me_400_BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\nServer: AmazingServer\r\nContent-Length: 48\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>400 Bad request</h1></body></html>";
-	private static final String me_405_METHOD_NOT_ALLOWED = "HTTP/1.1 405 Method Not Allowed\r\nServer: AmazingServer\r\nContent-Length: 57\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>405 Method Not Allowed</h1></body></html>";
-	private static final String me_415_UNSUPPORTED_MEDIA_TYPE = "HTTP/1.1 415 Unsupported Media Type\r\nServer: AmazingServer\r\nContent-Length: 61\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>415 Unsupported Media Type</h1></body></html>";
-	private static final String me_501_NOT_IMPLEMENTED = "HTTP/1.1 501 Not Implemented\r\nServer: AmazingServer\r\nContent-Length: 54\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>501 Not Implemented</h1></body></html>";
-	private static final String me_503_SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\nServer: AmazingServer\r\nContent-Length: 58\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>503 Service Unavailable</h1></body></html>";
-	private static final String me_505_HTTP_NOT_SUPPORTED = "HTTP/1.1 505 HTTP Version Not Supported\r\nServer: AmazingServer\r\nContent-Length: 65\r\nContent-Type: text/html\r\nConnection: close\r\n\r\n<html><body><h1>505 HTTP Version Not Supported</h1></body></html>";
+	private static final String me_201_CREATED_STARTER = "HTTP/1.1 201 Created\r\nServer: AmazingServer\r\nContent-Length: 0\r\nConnection: close\r\nLocation: ";
+	private static final String me_304_NOT_MODIFIED_STARTER = "HTTP/1.1 304 Not Modified\r\nServer: AmazingServer\r\nVary: Accept-Encoding\r\n";
+	private static final String me_206_PARTIAL_CONTENT_STARTER = "HTTP/1.1 206 Partial Content\r\nServer: AmazingServer\r\nAccept-Ranges: bytes\r\nVary: Accept-Encoding\r\n";
+	private static final String me_200_METRICS_STARTER = "HTTP/1.1 200 OK\r\nServer: AmazingServer\r\nCache-Control: no-store\r\nContent-Type: text/plain; version=0.0.4\r\nConnection: close\r\nContent-Length: ";
+	private static final String me_200_LISTING_STARTER = "HTTP/1.1 200 OK\r\nServer: AmazingServer\r\nCache-Control: no-cache\r\nConnection: close\r\nContent-Type: ";
+	private static final String me_416_RANGE_NOT_SATISFIABLE_STARTER = "HTTP/1.1 416 Range Not Satisfiable\r\nServer: AmazingServer\r\nContent-Length: 0\r\nConnection: close\r\nContent-Range: bytes */";
 	// Partials
+	private static final String me_CONNECTION_CLOSE = "Connection: close\r\n";
+	private static final String me_CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n";
 	private static final String me_CONTENT_LENGTH = "Content-Length: ";
+	private static final String me_CONTENT_RANGE = "Content-Range: bytes ";
+	private static final String me_MULTIPART_CONTENT = "Content-Type: multipart/byteranges; boundary=";
+	private static final String me_ETAG = "ETag: ";
+	private static final String me_CONTENT_ENCODING = "Content-Encoding: ";
+	private static final String me_CHUNKED = "Transfer-Encoding: chunked\r\n";
+	private static final byte me_LAST_CHUNK[] = "0\r\n\r\n".getBytes();
+	private static final String me_CODINGS[] = {"br", "gzip"}; // The content codings in the server's preference order
+	private static final String me_LAST_MODIFIED = "Last-Modified: ";
+	private static final DateTimeFormatter me_HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+	private static final int me_MAX_RANGES = 16; // More ranges than this are answered with the whole file (protects against many tiny or overlapping ranges)
 	private static final String me_HTML_CONTENT = "Content-Type: text/html\r\nConnection: close\r\n\r\n";
 	private static final String me_PNG_CONTENT = "Content-Type: image/png\r\nConnection: close\r\n\r\n";
 	private static final String me_TXT_CONTENT = "Content-Type: text/plain\r\nConnection: close\r\n\r\n";
 	//private static final String me_OTHER_CONTENT = "Content-Type: application/octet-stream\r\nConnection: close\r\n\r\n"; // Best fit recommended (can be downloaded)
 	// Fields
-	private byte[] meRespBytes; // Will hold the response bytes
+	private byte[] meRespBytes; // Will hold the response bytes (only the headers if the body is sent from a file)
+	private ByteBuffer meCanned; // A canned response (a view of the shared one, then 'meRespBytes' is null)
+	private FileChannel meBodyFile; // The file that the body is sent from (straight from the file to the socket, never through the heap)
+	private ByteBuffer meBodyBuf; // The cached or mapped file that the body is sent from (instead of 'meBodyFile')
+	private MappedFiles.Mapping meMapping; // The shared mapping that 'meBodyBuf' views (released when the body is sent)
+	private long meBodyLen; // The file's length when the response was created (a file that grows meanwhile is not sent beyond it)
+	private ArrayDeque<BodyPart> meParts = new ArrayDeque<>(); // The body's parts that are still to be sent (in order)
 	private boolean meIsNewCopy; // To indicate if the new uploaded file should be created as a new copy (in case of POST)
+	private boolean meIsKeepAlive; // To indicate if the connection stays open after this response
+	private long meBodySent; // The bytes of the body parts sent so far
+	private boolean meIsFramed; // The connection delimits the body (HTTP/2 DATA frames), so a stream is sent without the chunked coding
 
 	/**
-	 * Constructor
+	 * Constructor (the connection will be closed after this response).
 	 * @param theRequest the request object to base the response on.
 	 */
 	public MyResponse(MyRequest theRequest) {
+		this(theRequest, false);
+	}
+
+	/**
+	 * Constructor
+	 * @param theRequest	the request object to base the response on.
+	 * @param keepAlive		true if the server allows keeping the connection open after this response (the
+	 * 						client's request and the response status can still force closing it)
+	 */
+	public MyResponse(MyRequest theRequest, boolean keepAlive) {
+		long tmpStart = System.nanoTime(); // The server's own time for it (without sending it) is measured for 'OverloadControl'
+		switch (theRequest.getRequestType()) { // Errors that make the rest of the connection unreliable always close it
+			case BAD:
+			case ERROR:
+			case PAUSE:
+			case WRONG_HTTP:
+				break;
+			default:
+				this.meIsKeepAlive = keepAlive && theRequest.isKeepAlive();
+		}
 		switch (theRequest.getRequestType()) {
 			case GET: // Here we handle GET request
+				if (ServerMetrics.isEndpoint(theRequest.getRelativePath())) { // The server's own metrics (never a file)
+					this.meRespBytes = this.createMetrics();
+					break;
+				}
 				switch (theRequest.getPathType()) {
 					case FILE:
 						this.meRespBytes = this.create200Ok(theRequest);
 						break;
+					case DIRECTORY: // Listed only in the browsable directories (see 'DirectoryListings')
+						this.meRespBytes = DirectoryListings.isListable(theRequest.getAbsolutePath()) ? this.createListing(theRequest) : this.create403Forbidden();
+						break;
 					case FORBIDDEN:
-					case DIRECTORY: // We will refuse display directory content for now
 						this.meRespBytes = this.create403Forbidden();
 						break;
 					case NOT_EXIST:
@@ -103,6 +199,9 @@ public class MyResponse {
 			case BAD:
 				this.meRespBytes = this.create400BadRequest();
 		}
+		theRequest.releasePayload(); // The uploaded body is moved to its target by now (or not needed)
+		ServerMetrics.countResponse(theRequest.getRequestType(), this.getStatus());
+		OverloadControl.sampleLatency(System.nanoTime() - tmpStart);
 	}
 
 	/**
@@ -126,102 +225,515 @@ public class MyResponse {
 	}
 
 	/**
-	 * Returns the response represented in bytes
+	 * Checks if the connection should stay open for more requests after sending this response.
+	 * @return	true if the connection is persistent ('Connection: keep-alive')
+	 */
+	public boolean isKeepAlive() {
+		return this.meIsKeepAlive;
+	}
+
+	/**
+	 * Returns the response represented in bytes (if the response has a body file then these are only the
+	 * headers, and the body follows by 'sendBody()'). A canned response is copied, so to send it use
+	 * 'getResponseBuffer()' instead.
 	 * @return	the response's bytes
 	 */
 	public byte[] getResponseBytes() {
-		return this.meRespBytes;
+		if (this.meCanned == null)
+			return this.meRespBytes;
+		byte outBytes[] = new byte[this.meCanned.remaining()];
+		this.meCanned.duplicate().get(outBytes);
+		return outBytes;
+	}
+
+	/**
+	 * Returns the response's bytes to send (if the response has a body file then these are only the headers,
+	 * and the body follows by 'sendBody()').
+	 * @return	the response's bytes (a canned response is a read-only view of the shared one)
+	 */
+	public ByteBuffer getResponseBuffer() {
+		return this.meCanned != null ? this.meCanned : ByteBuffer.wrap(this.meRespBytes);
+	}
+
+	/**
+	 * Returns the response's status code (read from its status line).
+	 * @return	the status code
+	 */
+	public int getStatus() {
+		if (this.meCanned != null)
+			return (this.meCanned.get(9) - '0') * 100 + (this.meCanned.get(10) - '0') * 10 + this.meCanned.get(11) - '0';
+		return (this.meRespBytes[9] - '0') * 100 + (this.meRespBytes[10] - '0') * 10 + this.meRespBytes[11] - '0';
+	}
+
+	/**
+	 * Returns the number of the body's bytes sent so far (the response bytes are taken as all sent, so this is
+	 * exact once the whole response is sent).
+	 * @return	the body's bytes sent (not the headers)
+	 */
+	public long getBodySent() {
+		ByteBuffer tmpResp = this.meCanned != null ? this.meCanned.duplicate().rewind() : ByteBuffer.wrap(this.meRespBytes);
+		int tmpBody = tmpResp.limit(); // The headers end with an empty line, the rest is the body
+		for (int i = 3; i < tmpResp.limit(); i++) {
+			if (tmpResp.get(i) == '\n' && tmpResp.get(i - 2) == '\n' && tmpResp.get(i - 1) == '\r' && tmpResp.get(i - 3) == '\r') {
+				tmpBody = i + 1;
+				break;
+			}
+		}
+		return tmpResp.limit() - tmpBody + this.meBodySent;
+	}
+
+	/**
+	 * Makes a streamed body be sent as it is produced, without the chunked coding (for HTTP/2, whose DATA frames
+	 * delimit the body). To be called before 'sendBody()'.
+	 */
+	public void disableChunking() {
+		this.meIsFramed = true;
+	}
+
+	/**
+	 * Checks if the response's body is sent from a file or from the cache (after the response bytes).
+	 * @return	true if 'sendBody()' has to be called after sending the response bytes
+	 */
+	public boolean hasBody() {
+		return !this.meParts.isEmpty();
+	}
+
+	/**
+	 * Sends (the rest of) the body to the client: a cached or mapped file is written from its buffer, otherwise the
+	 * file's ranges are sent using 'FileChannel.transferTo()' (so the operating system can copy the file to the
+	 * socket directly), and a streamed body is sent chunk by chunk as it is produced. On a non-blocking channel it
+	 * returns as soon as the socket cannot take more, and it can be called again when it is writable. The file is
+	 * closed when it is all sent.
+	 * @param target		the client's channel
+	 * @return				true if the whole body is sent (or there is no body)
+	 * @throws IOException	if sending failed (the file is closed then)
+	 */
+	public boolean sendBody(WritableByteChannel target) throws IOException {
+		long tmpSent = 0; // Counted for the metrics and the access log
+		try {
+			BodyPart tmpPart;
+			while ((tmpPart = this.meParts.peek()) != null) {
+				if (tmpPart.meStream != null) {
+					while (true) { // Chunk by chunk, as they are produced
+						if (tmpPart.meBuf == null || !tmpPart.meBuf.hasRemaining()) {
+							if (tmpPart.meIsEnded)
+								break; // The last chunk is sent
+							tmpPart.meBuf = createChunk(tmpPart, this.meIsFramed);
+						}
+						tmpSent += write(tmpPart.meBuf, target);
+						if (tmpPart.meBuf.hasRemaining())
+							return false;
+					}
+				} else if (tmpPart.meBuf != null) {
+					tmpSent += write(tmpPart.meBuf, target);
+					if (tmpPart.meBuf.hasRemaining())
+						return false;
+				} else {
+					long tmpNum;
+					while (tmpPart.mePos < tmpPart.meEnd) {
+						tmpNum = this.meBodyFile.transferTo(tmpPart.mePos, tmpPart.meEnd - tmpPart.mePos, target);
+						if (tmpNum <= 0) // The socket is full (non-blocking), or the file was truncated meanwhile
+							break;
+						tmpPart.mePos += tmpNum;
+						tmpSent += tmpNum;
+					}
+					if (tmpPart.mePos < tmpPart.meEnd) {
+						if (this.meBodyFile.size() < tmpPart.meEnd) // The promised 'Content-Length' cannot be completed anymore
+							throw new IOException("The file was truncated while being sent.");
+						return false;
+					}
+				}
+				this.meParts.poll();
+			}
+		} catch (IOException e) {
+			this.closeBody();
+			throw e;
+		} finally {
+			ServerMetrics.addBytesOut(tmpSent);
+			this.meBodySent += tmpSent;
+		}
+		this.closeBody(); // All sent
+		return true;
+	}
+
+	/**
+	 * Closes the body file or releases its mapping (if any), without sending the rest of it if it is not all sent
+	 * (ex: the connection was lost).
+	 */
+	public void closeBody() {
+		for (BodyPart tmpPart : this.meParts) {
+			if (tmpPart.meStream != null && !tmpPart.meIsEnded)
+				tmpPart.meStream.close();
+		}
+		this.meParts.clear();
+		this.meBodyBuf = null;
+		if (this.meMapping != null) {
+			MappedFiles.release(this.meMapping);
+			this.meMapping = null;
+		}
+		if (this.meBodyFile == null)
+			return;
+		try {
+			this.meBodyFile.close();
+		} catch (IOException e) {/* Can be safely ignored */}
+		this.meBodyFile = null;
 	}
 
 
 	// vvvvvvvvvvvvvvvvvvvv Start Private Section vvvvvvvvvvvvvvvvvvvv //
 	// Contains methods that creates resposes as bytes
 
+	// Writes as much of a buffer as the channel takes, and returns the number of bytes written
+	private static int write(ByteBuffer theBuf, WritableByteChannel target) throws IOException {
+		int tmpStart = theBuf.position();
+		while (theBuf.hasRemaining() && target.write(theBuf) > 0);
+		return theBuf.position() - tmpStart;
+	}
+
+	// Returns the bytes of a ready-made response (or a part of it) with the right 'Connection' header
+	private byte[] toBytes(String readyMade) {
+		return toBytes(readyMade, this.meIsKeepAlive);
+	}
+
+	private static byte[] toBytes(String readyMade, boolean keepAlive) {
+		return (keepAlive ? readyMade.replace(me_CONNECTION_CLOSE, me_CONNECTION_KEEP_ALIVE) : readyMade).getBytes();
+	}
+
+	// Returns the headers of a '200 OK' response
+	private static byte[] create200Headers(String contentType, long contentLength, long modified, boolean keepAlive) {
+		return toBytes(me_200_OK_STARTER + createValidators(createETag(contentLength, modified, null), modified) + me_CONTENT_LENGTH + contentLength + "\r\n" + contentType, keepAlive);
+	}
+
+	// Returns the file's entity tag (derived from its size and modification time, so it needs no reading), every
+	// content coding has its own tag
+	private static String createETag(long fileSize, long modified, String coding) {
+		return "\"" + Long.toHexString(fileSize) + "-" + Long.toHexString(modified) + (coding == null ? "\"" : "-" + coding + "\"");
+	}
+
+	// Returns the 'ETag' and 'Last-Modified' headers of a file
+	private static String createValidators(String eTag, long modified) {
+		return me_ETAG + eTag + "\r\n" + me_LAST_MODIFIED + me_HTTP_DATE.format(Instant.ofEpochMilli(modified)) + "\r\n";
+	}
+
+	// Returns the headers of a '304 Not Modified' response (the validators only, no body)
+	private byte[] create304NotModified(String eTag, long modified) {
+		return this.toBytes(me_304_NOT_MODIFIED_STARTER + createValidators(eTag, modified) + me_CONNECTION_CLOSE + "\r\n");
+	}
+
 	private byte[] create200Ok(MyRequest theRequest) { // OK Essential
-		ByteArrayOutputStream outResp = new ByteArrayOutputStream(HttpServerMain.BUFSIZE); // Buffer-size is a good initial size
+		StaticCache.Entry tmpCached = theRequest.getCachedEntry();
+		String tmpContent;
+		long tmpModified;
+		if (tmpCached != null) { // A hot file (the response is sent from the cache)
+			tmpContent = tmpCached.getContent();
+			tmpModified = tmpCached.getModified();
+			byte tmpEncoded[] = this.createEncodedResponse(theRequest, tmpContent, tmpCached.getBody().capacity(), tmpModified);
+			if (tmpEncoded != null)
+				return tmpEncoded;
+			if (theRequest.isNotModified(createETag(tmpCached.getBody().capacity(), tmpModified, null), tmpModified))
+				return this.create304NotModified(createETag(tmpCached.getBody().capacity(), tmpModified, null), tmpModified);
+			this.meBodyBuf = tmpCached.getBody();
+			this.meBodyLen = this.meBodyBuf.capacity();
+			if (theRequest.getRanges() == null) { // The ready-made response
+				this.meParts.add(new BodyPart(this.meBodyBuf));
+				return tmpCached.getHeaders(this.meIsKeepAlive);
+			}
+			return this.createRangedResponse(theRequest, tmpContent, tmpModified);
+		}
+		if (theRequest.getAbsolutePath().toLowerCase().endsWith(".htm") || theRequest.getAbsolutePath().toLowerCase().endsWith(".html")) { // If html file
+			tmpContent = me_HTML_CONTENT;
+		} else if (theRequest.getAbsolutePath().toLowerCase().endsWith(".png")) { // If png file
+			tmpContent = me_PNG_CONTENT;
+		} else if (theRequest.getAbsolutePath().toLowerCase().endsWith(".txt")) {
+			tmpContent = me_TXT_CONTENT;
+		} else { // Unknown file
+			return create415UnsupportedMediaType();
+			//tmpContent = me_OTHER_CONTENT;
+		}
 		try {
-			outResp.write(me_200_OK_STARTER.getBytes());
-			byte tmpFileData[] = Files.readAllBytes(new File(theRequest.getAbsolutePath()).toPath());
-			outResp.write((me_CONTENT_LENGTH + tmpFileData.length + "\r\n").getBytes());
-			if (theRequest.getAbsolutePath().toLowerCase().endsWith(".htm") || theRequest.getAbsolutePath().toLowerCase().endsWith(".html")) { // If html file
-				outResp.write(me_HTML_CONTENT.getBytes());
-			} else if (theRequest.getAbsolutePath().toLowerCase().endsWith(".png")) { // If png file
-				outResp.write(me_PNG_CONTENT.getBytes());
-			} else if (theRequest.getAbsolutePath().toLowerCase().endsWith(".txt")) {
-				outResp.write(me_TXT_CONTENT.getBytes());
-			} else { // Unknown file
-				return create415UnsupportedMediaType();
-				//outResp.write(me_OTHER_CONTENT.getBytes());
+			BasicFileAttributes tmpAttr = Files.readAttributes(new File(theRequest.getAbsolutePath()).toPath(), BasicFileAttributes.class);
+			tmpModified = tmpAttr.lastModifiedTime().toMillis(); // Before reading, so a change while reading is noticed later
+			byte tmpEncoded[] = this.createEncodedResponse(theRequest, tmpContent, tmpAttr.size(), tmpModified);
+			if (tmpEncoded != null)
+				return tmpEncoded;
+			if (theRequest.isNotModified(createETag(tmpAttr.size(), tmpModified, null), tmpModified)) // Only a stat call, the file is not opened
+				return this.create304NotModified(createETag(tmpAttr.size(), tmpModified, null), tmpModified);
+			tmpCached = StaticCache.isCacheable(tmpAttr.size()) ? StaticCache.get(theRequest.getPathWithoutQuery(), theRequest.getAbsolutePath(), tmpModified) : null;
+			if (tmpCached != null) { // Cached already through another target (ex: '/' for '/index.htm'), it is not read again
+				this.meBodyBuf = tmpCached.getBody();
+				this.meBodyLen = this.meBodyBuf.capacity();
+				return this.createRangedResponse(theRequest, tmpContent, tmpModified);
+			}
+			this.meBodyFile = FileChannel.open(new File(theRequest.getAbsolutePath()).toPath(), StandardOpenOption.READ);
+			this.meBodyLen = this.meBodyFile.size();
+			if (StaticCache.isCacheable(this.meBodyLen)) { // Read it once into the cache, then it is served from there
+				ByteBuffer tmpBody = ByteBuffer.allocateDirect((int) this.meBodyLen);
+				while (tmpBody.hasRemaining() && this.meBodyFile.read(tmpBody) >= 0);
+				this.closeBody();
+				if (!tmpBody.hasRemaining()) { // Not truncated meanwhile
+					tmpCached = new StaticCache.Entry(theRequest.getAbsolutePath(), tmpBody.flip(), create200Headers(tmpContent, tmpBody.limit(), tmpModified, false),
+							create200Headers(tmpContent, tmpBody.limit(), tmpModified, true), tmpContent, tmpModified);
+					StaticCache.put(theRequest.getPathWithoutQuery(), tmpCached);
+					this.meBodyBuf = tmpCached.getBody();
+				} else {
+					this.meBodyFile = FileChannel.open(new File(theRequest.getAbsolutePath()).toPath(), StandardOpenOption.READ);
+					this.meBodyLen = this.meBodyFile.size();
+				}
+			} else if (MappedFiles.isMappable(this.meBodyLen)) { // A big file is sent from the mapping that all its downloads share
+				this.closeBody();
+				this.meMapping = MappedFiles.acquire(theRequest.getAbsolutePath(), tmpModified);
+				this.meBodyBuf = this.meMapping.getBody();
+				this.meBodyLen = this.meMapping.getSize();
 			}
-			outResp.write(tmpFileData);
 		} catch (IOException e) {
+			this.closeBody();
 			return this.create403Forbidden(); // If 'IOException' thrown then reading is forbidden on the file (since it is already exists)
 		}
-		return outResp.toByteArray();
+		return this.createRangedResponse(theRequest, tmpContent, tmpModified);
+	}
+
+	// Creates the response with an encoded variant of the file ('304 Not Modified' if the client has it already) if
+	// the client accepts an encoding that the file has a variant in, or returns null to send the file as it is (always
+	// for ranges, they are served from the file as it is)
+	private byte[] createEncodedResponse(MyRequest theRequest, String contentPart, long fileSize, long modified) {
+		if (theRequest.getRanges() != null || !CompressedVariants.isWorthEncoding(fileSize))
+			return null;
+		boolean tmpIsCompressible = me_HTML_CONTENT.equals(contentPart) || me_TXT_CONTENT.equals(contentPart); // PNG is already compressed
+		for (String tmpCoding : me_CODINGS) {
+			if (!theRequest.acceptsEncoding(tmpCoding))
+				continue;
+			CompressedVariants.Variant tmpVar = CompressedVariants.get(theRequest.getAbsolutePath(), tmpCoding, fileSize, modified, tmpIsCompressible);
+			boolean tmpIsStreamed = tmpVar == null && "gzip".equals(tmpCoding) && tmpIsCompressible && CompressedVariants.isStreamed(fileSize);
+			if (tmpVar == null && !tmpIsStreamed)
+				continue;
+			String tmpTag = createETag(fileSize, modified, tmpCoding);
+			if (theRequest.isNotModified(tmpTag, modified))
+				return this.create304NotModified(tmpTag, modified);
+			if (tmpIsStreamed) { // Too big to be compressed at once, so it is compressed while it is sent (its length is not known)
+				try {
+					this.meParts.add(new BodyPart(new GzipBodyStream(new File(theRequest.getAbsolutePath()).toPath())));
+				} catch (IOException e) {
+					return null; // Then the file as it is (it fails there too if it cannot be read)
+				}
+				return this.toBytes(me_200_OK_STARTER + createValidators(tmpTag, modified) + me_CONTENT_ENCODING + tmpCoding + "\r\n" + me_CHUNKED + contentPart);
+			}
+			if (tmpVar.getBody() != null) {
+				this.meParts.add(new BodyPart(tmpVar.getBody()));
+			} else { // A big precompressed file
+				try {
+					this.meBodyFile = FileChannel.open(tmpVar.getFile(), StandardOpenOption.READ);
+				} catch (IOException e) { // Removed meanwhile (then another coding, or the file as it is)
+					CompressedVariants.invalidate(theRequest.getAbsolutePath());
+					continue;
+				}
+				this.meParts.add(new BodyPart(0, tmpVar.getSize()));
+			}
+			return this.toBytes(me_200_OK_STARTER + createValidators(tmpTag, modified) + me_CONTENT_ENCODING + tmpCoding + "\r\n"
+					+ me_CONTENT_LENGTH + tmpVar.getSize() + "\r\n" + contentPart);
+		}
+		return null;
+	}
+
+	// Creates the response of a file whose body source is ready: '206 Partial Content' (one range, or several as
+	// 'multipart/byteranges') if satisfiable ranges are asked for, '416 Range Not Satisfiable' if none of them is,
+	// otherwise '200 OK' with the whole file
+	private byte[] createRangedResponse(MyRequest theRequest, String contentPart, long modified) {
+		List<long[]> tmpRanges = this.resolveRanges(theRequest, modified);
+		if (tmpRanges == null) { // The whole file
+			this.addBodyPart(0, this.meBodyLen);
+			return create200Headers(contentPart, this.meBodyLen, modified, this.meIsKeepAlive);
+		}
+		if (tmpRanges.isEmpty()) {
+			this.closeBody();
+			return this.toBytes(me_416_RANGE_NOT_SATISFIABLE_STARTER + this.meBodyLen + "\r\n\r\n");
+		}
+		if (tmpRanges.size() == 1) {
+			long tmpRng[] = tmpRanges.get(0);
+			this.addBodyPart(tmpRng[0], tmpRng[1] + 1);
+			return this.toBytes(me_206_PARTIAL_CONTENT_STARTER + createValidators(createETag(this.meBodyLen, modified, null), modified) + me_CONTENT_RANGE + tmpRng[0] + "-" + tmpRng[1] + "/" + this.meBodyLen + "\r\n"
+					+ me_CONTENT_LENGTH + (tmpRng[1] + 1 - tmpRng[0]) + "\r\n" + contentPart);
+		}
+		String tmpBoundary = UUID.randomUUID().toString();
+		String tmpType = contentPart.substring(0, contentPart.indexOf("\r\n") + 2); // Only the 'Content-Type' header
+		long tmpLen = 0;
+		for (long tmpRng[] : tmpRanges) {
+			ByteBuffer tmpHead = ByteBuffer.wrap(("\r\n--" + tmpBoundary + "\r\n" + tmpType + me_CONTENT_RANGE + tmpRng[0] + "-" + tmpRng[1] + "/" + this.meBodyLen + "\r\n\r\n").getBytes());
+			tmpLen += tmpHead.remaining() + tmpRng[1] + 1 - tmpRng[0];
+			this.meParts.add(new BodyPart(tmpHead));
+			this.addBodyPart(tmpRng[0], tmpRng[1] + 1);
+		}
+		ByteBuffer tmpEnd = ByteBuffer.wrap(("\r\n--" + tmpBoundary + "--\r\n").getBytes());
+		tmpLen += tmpEnd.remaining();
+		this.meParts.add(new BodyPart(tmpEnd));
+		return this.toBytes(me_206_PARTIAL_CONTENT_STARTER + createValidators(createETag(this.meBodyLen, modified, null), modified) + me_CONTENT_LENGTH + tmpLen + "\r\n" + me_MULTIPART_CONTENT + tmpBoundary + "\r\n" + me_CONNECTION_CLOSE + "\r\n");
+	}
+
+	// Adds a range of the file to the body (a view of the buffer if the file is cached or mapped)
+	private void addBodyPart(long startPos, long endPos) {
+		if (this.meBodyBuf == null) {
+			this.meParts.add(new BodyPart(startPos, endPos));
+		} else {
+			ByteBuffer tmpView = this.meBodyBuf.duplicate();
+			tmpView.limit((int) endPos).position((int) startPos);
+			this.meParts.add(new BodyPart(tmpView));
+		}
+	}
+
+	// Returns the satisfiable ranges asked for (as {first, last} positions), an empty list if none of them is
+	// satisfiable, or null if the whole file is to be sent (no 'Range', too many ranges, or an 'If-Range' that
+	// does not match the file anymore)
+	private List<long[]> resolveRanges(MyRequest theRequest, long modified) {
+		List<long[]> tmpAsked = theRequest.getRanges();
+		if (tmpAsked == null || tmpAsked.size() > me_MAX_RANGES || !theRequest.isIfRangeMatching(createETag(this.meBodyLen, modified, null), modified))
+			return null;
+		List<long[]> outRanges = new ArrayList<>(tmpAsked.size());
+		for (long tmpRng[] : tmpAsked) {
+			if (tmpRng[0] < 0) { // Suffix range (the last bytes)
+				if (tmpRng[1] > 0 && this.meBodyLen > 0)
+					outRanges.add(new long[] {Math.max(0, this.meBodyLen - tmpRng[1]), this.meBodyLen - 1});
+			} else if (tmpRng[0] < this.meBodyLen) {
+				outRanges.add(new long[] {tmpRng[0], tmpRng[1] < 0 || tmpRng[1] >= this.meBodyLen ? this.meBodyLen - 1 : tmpRng[1]});
+			}
+		}
+		return outRanges;
 	}
 
 	private byte[] create201Created(MyRequest theRequest) {
-		ByteArrayOutputStream outResp = new ByteArrayOutputStream(HttpServerMain.BUFSIZE); // Buffer-size is a good initial size
+		if (theRequest.getPayloadFile() == null)
+			return this.create403Forbidden(); // The uploaded body could not be written
+		String tmpLocation;
 		try {
 			if (this.meIsNewCopy) { // In case of POST upload and a new copy is needed
 				String tmpNew = theRequest.getAbsolutePath().substring(0, theRequest.getAbsolutePath().lastIndexOf('/') + 1) + "copy-" + UUID.randomUUID().toString() + "-" + theRequest.getAbsolutePath().substring(theRequest.getAbsolutePath().lastIndexOf('/') + 1);
-				Files.write(new File(tmpNew).toPath(), theRequest.getPayloadData());
-				outResp.write(me_201_CREATED_STARTER.getBytes());
-				outResp.write((theRequest.getRelativePath().substring(0, theRequest.getRelativePath().lastIndexOf('/') + 1) + tmpNew.substring(tmpNew.lastIndexOf('/') + 1)).getBytes());
+				Files.move(theRequest.getPayloadFile(), new File(tmpNew).toPath(), StandardCopyOption.ATOMIC_MOVE); // The upload is already in the same directory
+				PathCache.invalidate(tmpNew);
+				DirectoryListings.update(tmpNew); // Patched into its directory's listing (if it is kept)
+				tmpLocation = theRequest.getRelativePath().substring(0, theRequest.getRelativePath().lastIndexOf('/') + 1) + tmpNew.substring(tmpNew.lastIndexOf('/') + 1);
 			} else { // Normal situation of POST or PUT
-				Files.write(new File(theRequest.getAbsolutePath()).toPath(), theRequest.getPayloadData());
-				outResp.write(me_201_CREATED_STARTER.getBytes());
-				outResp.write(theRequest.getRelativePath().getBytes());
+				FileWrites.replace(new File(theRequest.getAbsolutePath()).toPath(), theRequest.getPayloadFile()); // Ordered with the other writes to it
+				PathCache.invalidate(theRequest.getAbsolutePath()); // It is not a missing file anymore
+				DirectoryListings.update(theRequest.getAbsolutePath()); // Patched into its directory's listing (if it is kept)
+				StaticCache.invalidate(theRequest.getAbsolutePath()); // A new file can change what a cached directory target leads to
+				MappedFiles.invalidate(theRequest.getAbsolutePath());
+				CompressedVariants.invalidate(theRequest.getAbsolutePath()); // Ex: a new precompressed sibling
+				tmpLocation = theRequest.getRelativePath();
 			}
-			outResp.write("\r\n\r\n".getBytes());
 		} catch (IOException e) {
 			return this.create403Forbidden(); // If 'IOException' thrown then writing is forbidden on the file (since it is already exists)
 		}
-		return outResp.toByteArray();
+		return this.toBytes(me_201_CREATED_STARTER + tmpLocation + "\r\n\r\n");
 	}
 
 	private byte[] create204NoContent(MyRequest theRequest) {
+		if (theRequest.getPayloadFile() == null)
+			return this.create403Forbidden(); // The uploaded body could not be written
 		try {
-			if (theRequest.getRequestType() == RequestType.PUT) { // If PUT then truncate (overwrite the file)
-				Files.write(new File(theRequest.getAbsolutePath()).toPath(), theRequest.getPayloadData());
-			} else { // Then it's POST (append to file)
-				Files.write(new File(theRequest.getAbsolutePath()).toPath(), theRequest.getPayloadData(), StandardOpenOption.APPEND);
+			if (theRequest.getRequestType() == RequestType.PUT) { // If PUT then overwrite the file (replaced at once, so readers never see a partial file)
+				FileWrites.replace(new File(theRequest.getAbsolutePath()).toPath(), theRequest.getPayloadFile());
+			} else { // Then it's POST (append to file, batched with the concurrent appends)
+				FileWrites.append(new File(theRequest.getAbsolutePath()).toPath(), theRequest.getPayloadFile());
 			}
 		} catch (IOException e) {
 			return this.create403Forbidden(); // If 'IOException' thrown then writing is forbidden on the file (since it is already exists)
+		} finally { // Also after a failure (a failed append can be partly written)
+			StaticCache.invalidate(theRequest.getAbsolutePath()); // The cached copy is outdated now
+			DirectoryListings.update(theRequest.getAbsolutePath()); // Its size and time changed
+			MappedFiles.invalidate(theRequest.getAbsolutePath()); // So is the mapping (its current downloads keep the old one)
+			CompressedVariants.invalidate(theRequest.getAbsolutePath()); // And the encoded variants
 		}
-		return me_204_NO_CONTENT.getBytes();
+		return this.createCanned(204);
+	}
+
+	// A page of a directory's listing (the page's bytes are shared with the listing's cache, see 'DirectoryListings')
+	private byte[] createListing(MyRequest theRequest) {
+		String tmpAccept = theRequest.getHeader("Accept");
+		String tmpFormat = theRequest.getQueryParameter("format");
+		boolean tmpIsJson = tmpFormat != null ? "json".equalsIgnoreCase(tmpFormat) : tmpAccept != null && tmpAccept.contains("application/json") && !tmpAccept.contains("text/html");
+		int tmpPage = toNumber(theRequest.getQueryParameter("page"), 1, 1, Integer.MAX_VALUE);
+		int tmpSize = toNumber(theRequest.getQueryParameter("size"), 100, 1, DirectoryListings.MAX_PAGE_SIZE);
+		byte tmpBody[];
+		try {
+			tmpBody = DirectoryListings.getPage(theRequest.getAbsolutePath(), theRequest.getPathWithoutQuery(), tmpIsJson,
+					DirectoryListings.Sort.fromName(theRequest.getQueryParameter("sort")), "desc".equalsIgnoreCase(theRequest.getQueryParameter("order")), tmpPage, tmpSize);
+		} catch (IOException e) {
+			return this.create403Forbidden(); // The directory cannot be read
+		}
+		this.meParts.add(new BodyPart(ByteBuffer.wrap(tmpBody).asReadOnlyBuffer()));
+		return this.toBytes(me_200_LISTING_STARTER + (tmpIsJson ? "application/json" : "text/html; charset=utf-8") + "\r\n" + me_CONTENT_LENGTH + tmpBody.length + "\r\n\r\n");
+	}
+
+	// A query parameter's number, or the default one if it is missing or not a number (kept within the limits)
+	private static int toNumber(String value, int defValue, int min, int max) {
+		if (value == null)
+			return defValue;
+		try {
+			return Math.max(min, Math.min(max, Integer.parseInt(value.trim())));
+		} catch (NumberFormatException e) {
+			return defValue;
+		}
+	}
+
+	// The metrics as they are now (see 'ServerMetrics')
+	private byte[] createMetrics() {
+		String tmpBody = ServerMetrics.toPrometheus();
+		return this.toBytes(me_200_METRICS_STARTER + tmpBody.length() + "\r\n\r\n" + tmpBody);
+	}
+
+	// Takes a canned response (then the response has no bytes of its own, see 'getResponseBuffer()')
+	private byte[] createCanned(int status) {
+		this.meCanned = CannedResponses.get(status, this.meIsKeepAlive);
+		return null;
 	}
 
 	private byte[] create403Forbidden() {
-		return me_403_FORBIDDEN.getBytes();
+		return this.createCanned(403);
 	}
 
 	private byte[] create404NotFound() {
-		return me_404_NOT_FOUND.getBytes();
+		return this.createCanned(404);
 	}
 
 	private byte[] create500InternalServerError() {
-		return me_500_INTERNAL_SERVER_ERROR.getBytes();
+		return this.createCanned(500);
 	}
 
 	private byte[] create400BadRequest() {
-		return me_400_BAD_REQUEST.getBytes();
+		return this.createCanned(400);
 	}
 
 	private byte[] create501NotImplemented() {
-		return me_501_NOT_IMPLEMENTED.getBytes();
+		return this.createCanned(501);
 	}
 
 	private byte[] create503ServiceUnavailable() {
-		return me_503_SERVICE_UNAVAILABLE.getBytes();
+		return this.createCanned(503);
 	}
 
-	private byte[] create405NotAllowed() { return me_405_METHOD_NOT_ALLOWED.getBytes(); }
+	private byte[] create405NotAllowed() { return this.createCanned(405); }
+
+	private byte[] create505WrongHTTPVer() { return this.createCanned(505); }
 
-	private byte[] create505WrongHTTPVer() { return me_505_HTTP_NOT_SUPPORTED.getBytes(); }
+	private byte[] create415UnsupportedMediaType() { return this.createCanned(415); }
 
-	private byte[] create415UnsupportedMediaType() { return me_415_UNSUPPORTED_MEDIA_TYPE.getBytes(); }
+	// Produces the next chunk of a streamed part (the chunk's size line, its bytes and CRLF), or the last chunk when
+	// the stream is ended (only the bytes if the body is framed by the connection)
+	private static ByteBuffer createChunk(BodyPart thePart, boolean isFramed) throws IOException {
+		ByteBuffer tmpData;
+		do {
+			tmpData = thePart.meStream.next();
+		} while (tmpData != null && !tmpData.hasRemaining()); // An empty chunk would end the body
+		if (tmpData == null) {
+			thePart.meStream.close();
+			thePart.meIsEnded = true;
+			return isFramed ? ByteBuffer.allocate(0) : ByteBuffer.wrap(me_LAST_CHUNK);
+		}
+		if (isFramed)
+			return tmpData;
+		byte tmpHead[] = (Integer.toHexString(tmpData.remaining()) + "\r\n").getBytes();
+		ByteBuffer outChunk = ByteBuffer.allocate(tmpHead.length + tmpData.remaining() + 2);
+		outChunk.put(tmpHead).put(tmpData).put((byte) '\r').put((byte) '\n').flip();
+		return outChunk;
+	}
 
 	// ^^^^^^^^^^^^^^^^^^^^  End Private Section  ^^^^^^^^^^^^^^^^^^^^ //
 }
@@ -0,0 +1,485 @@
+package httpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking connection engine (an alternative to a thread per connection). The acceptors (a selector per
+ * listening socket, see 'HttpServerMain') accept the connections and hand them (round-robin) to several selector
+ * threads that handle the read and write readiness,
+ * so an idle connection costs only a registered key instead of a whole blocked thread. What blocks or takes time
+ * (parsing, the files, the uploads, compression) is done by a pool of workers, so a slow request never holds up
+ * the other connections of its selector thread. Persistent connections follow the same limits as
+ * 'ClientConnection' (idle timeout and max requests per connection).
+ * Startup options: 'selectors' (the number of selector threads) and 'workers' (the number of worker threads).
+ */
+public class NioEngine implements Runnable {
+	// Fields
+	private ServerSocketChannel meServerChannels[]; // The server's listening channels (one per acceptor)
+	private SelectorLoop meLoops[]; // The selector threads that serve the accepted connections
+	private ThreadPoolExecutor meWorkers; // Serve the connections handed over by the selector threads
+
+	/**
+	 * Constructor.
+	 * @param serverChannels	the server's (bound) listening channels, one per acceptor thread (the same channel can be shared)
+	 * @param selectorsNum		the number of selector threads (normally one per core)
+	 */
+	public NioEngine(ServerSocketChannel serverChannels[], int selectorsNum) {
+		this.meServerChannels = serverChannels;
+		if (selectorsNum < 1) {
+			HttpServerMain.printErrWarning("The number of selector threads must be positive. Using 1.", false);
+			selectorsNum = 1;
+		}
+		this.meLoops = new SelectorLoop[selectorsNum];
+		int tmpWorkers = ServerConfig.getInt("workers", Runtime.getRuntime().availableProcessors() * 16);
+		if (tmpWorkers < 1) {
+			HttpServerMain.printErrWarning("The number of worker threads must be positive. Using 1.", false);
+			tmpWorkers = 1;
+		}
+		AtomicInteger tmpCount = new AtomicInteger();
+		this.meWorkers = new ThreadPoolExecutor(tmpWorkers, tmpWorkers, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), // Unbounded, but a connection has a single task at a time
+				tmpTask -> new Thread(tmpTask, "nio-worker-" + tmpCount.getAndIncrement()));
+		this.meWorkers.allowCoreThreadTimeOut(true); // Idle workers are not kept forever
+		OverloadControl.watch(this.meWorkers.getQueue());
+	}
+
+	/**
+	 * Starts the selector threads and the acceptors, and keeps accepting connections (the first acceptor runs on the
+	 * calling thread) until the server's channels are closed.
+	 */
+	@Override
+	public void run() {
+		Selector tmpAccSels[] = new Selector[this.meServerChannels.length];
+		try {
+			for (int i = 0; i < this.meLoops.length; i++) {
+				this.meLoops[i] = new SelectorLoop(Selector.open(), this.meWorkers);
+				Thread tmpTh = new Thread(this.meLoops[i], "nio-selector-" + i);
+				tmpTh.setDaemon(true);
+				tmpTh.start();
+			}
+			for (int i = 0; i < tmpAccSels.length; i++) {
+				tmpAccSels[i] = Selector.open();
+				this.meServerChannels[i].configureBlocking(false);
+				this.meServerChannels[i].register(tmpAccSels[i], SelectionKey.OP_ACCEPT);
+			}
+		} catch (IOException e) {
+			HttpServerMain.printErrWarning("Cannot open the NIO selectors.", true);
+			return;
+		}
+		System.out.println("Connection engine: NIO with " + tmpAccSels.length + " acceptor(s) and " + this.meLoops.length + " selector thread(s) and " + this.meWorkers.getMaximumPoolSize() + " worker thread(s).");
+		for (int i = 1; i < tmpAccSels.length; i++) {
+			int tmpIndex = i;
+			new Thread(() -> this.acceptLoop(this.meServerChannels[tmpIndex], tmpAccSels[tmpIndex], tmpIndex), "nio-acceptor-" + i).start();
+		}
+		this.acceptLoop(this.meServerChannels[0], tmpAccSels[0], 0);
+	}
+
+	// Accepts the connections of a listening channel and hands them to the selector threads in turns (each acceptor
+	// starts its turns at another selector thread)
+	private void acceptLoop(ServerSocketChannel theChannel, Selector theSelector, int nextLoop) {
+		nextLoop %= this.meLoops.length;
+		while (theChannel.isOpen()) {
+			try {
+				theSelector.select();
+				theSelector.selectedKeys().clear();
+				SocketChannel tmpCh;
+				while ((tmpCh = theChannel.accept()) != null) { // Accept all the pending connections
+					if (!ClientLimits.admitConnection(tmpCh.socket().getInetAddress())) {
+						ClientConnection.reject(tmpCh.socket(), 429); // Still blocking, and a new socket takes it at once
+						continue;
+					}
+					HttpServerMain.configureSocket(tmpCh);
+					tmpCh.configureBlocking(false);
+					this.meLoops[nextLoop].register(tmpCh);
+					nextLoop = (nextLoop + 1) % this.meLoops.length;
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				if (theChannel.isOpen()) {
+					HttpServerMain.printErrWarning("Accepting a new client failed.", false);
+				} else {
+					System.out.println("Canceling the wait for connections. Exiting..."); // Normal exiting
+				}
+			} catch (SecurityException e) {
+				HttpServerMain.printErrWarning("Security violation does not allow accepting this new client.", false);
+			}
+		}
+	}
+
+	/**
+	 * A selector thread that serves the read and write readiness of its registered connections. It only moves the
+	 * received bytes into the connections' buffers; parsing them, creating the responses and writing them (with
+	 * their files, uploads and compression) is handed to the workers, a single task at a time per connection.
+	 */
+	private static class SelectorLoop implements Runnable {
+		// Fields
+		private Selector meSelector;
+		private Executor meWorkers; // Serve the connections that have received bytes (or can write again)
+		private Queue<NioConnection> mePending = new ConcurrentLinkedQueue<>(); // Accepted connections waiting to be registered
+		private Queue<NioConnection> meReady = new ConcurrentLinkedQueue<>(); // Connections given back by the workers, waiting for their interest ops
+		private long meLastSweep = System.currentTimeMillis(); // The last time idle connections were looked for
+
+		SelectorLoop(Selector theSelector, Executor theWorkers) {
+			this.meSelector = theSelector;
+			this.meWorkers = theWorkers;
+		}
+
+		// Hands an accepted channel to this selector thread (registering must happen on the selector's own thread)
+		void register(SocketChannel theChannel) {
+			this.mePending.add(new NioConnection(theChannel));
+			this.meSelector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (this.meSelector.isOpen()) {
+				try {
+					this.meSelector.select(1000); // Wake up at least every second to close the idle connections
+					NioConnection tmpConn;
+					while ((tmpConn = this.mePending.poll()) != null) {
+						tmpConn.meKey = tmpConn.meChannel.register(this.meSelector, SelectionKey.OP_READ, tmpConn);
+						ServerMetrics.connectionOpened(tmpConn.meAcceptedAt);
+					}
+					while ((tmpConn = this.meReady.poll()) != null) {
+						tmpConn.meIsBusy = false;
+						tmpConn.meLastActive = System.currentTimeMillis();
+						if (tmpConn.meKey.isValid())
+							tmpConn.meKey.interestOps(tmpConn.meNextOps);
+					}
+					Iterator<SelectionKey> tmpIter = this.meSelector.selectedKeys().iterator();
+					while (tmpIter.hasNext()) {
+						SelectionKey tmpKey = tmpIter.next();
+						tmpIter.remove();
+						tmpConn = (NioConnection) tmpKey.attachment();
+						try {
+							this.onReady(tmpKey, tmpConn);
+						} catch (IOException | RuntimeException e) { // Connection timed out or terminated
+							tmpConn.close();
+						}
+					}
+					this.closeIdle();
+				} catch (IOException | ClosedSelectorException e) {
+					HttpServerMain.printErrWarning("A selector thread failed.", false);
+					return;
+				}
+			}
+		}
+
+		// Reads what fits in the connection's buffer (a single read, so a connection holds at most one pooled
+		// buffer, and an upload goes to its sink a buffer at a time), and hands the connection to a worker
+		private void onReady(SelectionKey theKey, NioConnection theConn) throws IOException {
+			if (theKey.isReadable()) {
+				if (theConn.meInBuf == null) {
+					theConn.meInBuf = BufferPool.acquire();
+				} else {
+					theConn.meInBuf.compact();
+				}
+				int tmpNum = theConn.meChannel.read(theConn.meInBuf);
+				theConn.meInBuf.flip();
+				if (tmpNum < 0) { // The other side has closed the connection
+					theConn.close();
+					return;
+				}
+				if (!theConn.meInBuf.hasRemaining()) { // Nothing is kept for idle connections
+					BufferPool.release(theConn.meInBuf);
+					theConn.meInBuf = null;
+				}
+				if (tmpNum == 0 && !theKey.isWritable())
+					return;
+				if (theConn.meHttp2 == null && tmpNum > 0) {
+					if (theConn.mePhaseStart == 0)
+						theConn.mePhaseStart = System.currentTimeMillis();
+					theConn.mePhaseBytes += tmpNum;
+				}
+				ServerMetrics.addBytesIn(tmpNum);
+			}
+			theConn.meLastActive = System.currentTimeMillis(); // A slow reader is not idle either
+			theConn.meIsBusy = true;
+			theKey.interestOps(0); // Until the worker gives it back
+			this.meWorkers.execute(new ServeTask(this, theConn));
+		}
+
+		// Serves a connection on a worker, then gives it back to this selector thread with the readiness it waits for
+		private void serve(NioConnection theConn) {
+			int tmpOps;
+			try {
+				tmpOps = theConn.serve();
+			} catch (IOException | RuntimeException e) { // Connection timed out or terminated
+				tmpOps = -1;
+			}
+			if (tmpOps < 0) {
+				theConn.close();
+				return;
+			}
+			theConn.meNextOps = tmpOps;
+			this.meReady.add(theConn);
+			this.meSelector.wakeup();
+		}
+
+		// Closes the connections that were idle for longer than the keep-alive timeout, and rejects the ones whose
+		// request is received too slowly (see 'ClientLimits', checked about every second); the connections being
+		// served by a worker are left alone
+		private void closeIdle() {
+			long tmpNow = System.currentTimeMillis();
+			if (tmpNow - this.meLastSweep < 1000)
+				return;
+			this.meLastSweep = tmpNow;
+			for (SelectionKey tmpKey : this.meSelector.keys()) {
+				NioConnection tmpConn = (NioConnection) tmpKey.attachment();
+				if (tmpConn == null || tmpConn.meIsBusy || !tmpKey.isValid())
+					continue;
+				if (tmpConn.isLate(tmpNow)) {
+					tmpConn.reject(408);
+				} else if (tmpNow - tmpConn.meLastActive > ClientConnection.KEEP_ALIVE_TIMEOUT) {
+					tmpConn.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A connection handed to the workers: its wait in their queue is the queueing delay of 'OverloadControl'.
+	 */
+	private static class ServeTask implements Runnable, OverloadControl.Queued {
+		// Fields
+		private SelectorLoop meLoop;
+		private NioConnection meConn;
+		private long meQueuedAt = System.nanoTime();
+
+		ServeTask(SelectorLoop theLoop, NioConnection theConn) {
+			this.meLoop = theLoop;
+			this.meConn = theConn;
+		}
+
+		@Override
+		public long getQueuedAt() {
+			return this.meQueuedAt;
+		}
+
+		@Override
+		public void run() {
+			OverloadControl.sample(System.nanoTime() - this.meQueuedAt);
+			this.meLoop.serve(this.meConn);
+		}
+	}
+
+	/**
+	 * The state of one connection served by a selector thread.
+	 */
+	private static class NioConnection {
+		// Fields
+		private SocketChannel meChannel;
+		private SelectionKey meKey; // Set when the selector thread registers it
+		private ByteBuffer meInBuf; // The received bytes that are not parsed yet (taken from the pool on the first received bytes, and given back when they are all parsed, so idle connections hold none)
+		private RequestParser meParser = new RequestParser(); // Parses the requests of this connection incrementally
+		private MyRequest meRequest; // The request whose body is being received
+		private ByteBuffer meRespBuf; // The response that is being sent (null once it is all sent)
+		private MyResponse meResp; // The response that is being sent (its body file, if any, follows 'meRespBuf')
+		private MyRequest meRespRequest; // The request that 'meResp' answers (for the access log)
+		private boolean meIsKeepAlive = true; // Does the connection stay open after the current response
+		private int meCount; // Requests served on this connection
+		private long meLastActive = System.currentTimeMillis(); // The last time something was received or sent
+		private long meAcceptedAt = ServerMetrics.now(); // The time it was accepted (its wait until its selector thread registers it is measured)
+		private long meParseTime; // The time spent parsing the current request (for the metrics)
+		private long meRespStart; // The time the current request was complete
+		private boolean meIsOpen = true;
+		private boolean meIsRejected; // A rejection is sent (then the channel is closed by 'LingeringClose')
+		private Http2Connection meHttp2; // Not null once the connection continues as HTTP/2 (then it takes all the received bytes)
+		private long mePhaseStart; // The time the current request's head (then body) started to be received (0 if none)
+		private long mePhaseBytes; // The bytes received since then
+		private boolean meIsBusy; // Handed to a worker (only the selector thread uses it)
+		private int meNextOps; // The interest ops the worker gives it back with
+
+		NioConnection(SocketChannel theChannel) {
+			this.meChannel = theChannel;
+		}
+
+		// Handles the received bytes and continues sending (on a worker), and returns the readiness to wait for
+		// next (-1 if the connection is over)
+		int serve() throws IOException {
+			if (this.meHttp2 != null) {
+				if (this.meInBuf != null) {
+					this.meHttp2.receive(this.meInBuf); // Takes the complete frames at once
+					BufferPool.release(this.meInBuf);
+					this.meInBuf = null;
+				}
+				return this.serveHttp2();
+			}
+			if (this.meRespBuf != null) { // A response waited for the socket to be writable
+				if (!this.writeResponse())
+					return SelectionKey.OP_WRITE;
+				if (!this.meIsKeepAlive)
+					return -1;
+			}
+			while (this.nextResponse()) { // Pipelined requests need no more reading
+				if (!this.writeResponse())
+					return SelectionKey.OP_WRITE; // Continue when the socket is writable again
+				if (!this.meIsKeepAlive)
+					return -1;
+			}
+			if (this.meHttp2 != null) // The last request started HTTP/2
+				return this.serveHttp2();
+			return SelectionKey.OP_READ;
+		}
+
+		// Writes a round of HTTP/2 frames (one at a time, so the client's new frames are read in between: its window
+		// updates can open the windows of the waiting streams, unless too many frames wait to be sent already)
+		private int serveHttp2() throws IOException {
+			if (this.meHttp2.canSend()) {
+				this.meHttp2.send(this.meChannel);
+				if (this.meHttp2.canSend()) // Continue when the socket is writable again
+					return this.meHttp2.canReceive() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_WRITE;
+			}
+			return this.meHttp2.isClosed() ? -1 : SelectionKey.OP_READ;
+		}
+
+		// Creates the response of the next completely received request (the same way 'ClientConnection' does), or
+		// returns false if there is no complete request yet
+		boolean nextResponse() {
+			if (this.meInBuf == null)
+				return false;
+			MyResponse tmpResp;
+			try { // A try-catch just to anticipate '500 Internal Server Error'
+				long tmpStart = ServerMetrics.now();
+				boolean tmpIsDone = this.meParser.parse(this.meInBuf); // Keeps its state, so a partial request is continued with the next bytes
+				this.meParseTime += ServerMetrics.now() - tmpStart;
+				if (tmpIsDone && this.meRequest == null) { // The headers are received (then the request takes over the body)
+					int tmpRejection = !ClientLimits.admitRequest(this.meChannel.socket().getInetAddress()) ? 429
+							: !OverloadControl.admit(this.meParser.getMethod()) ? 503 : 0;
+					if (tmpRejection != 0) {
+						this.meRespBuf = CannedResponses.getRejection(tmpRejection); // Sent without a response (see 'writeResponse()')
+						this.meIsKeepAlive = false;
+						this.meIsRejected = true;
+						this.mePhaseStart = 0;
+						ServerMetrics.countRejected(tmpRejection);
+						return true;
+					}
+					this.meRequest = new MyRequest(this.meParser);
+					this.mePhaseStart = System.currentTimeMillis(); // The body's deadline (if any) starts now
+					this.mePhaseBytes = 0;
+					if (this.meParser.getState() == RequestParser.State.BODY) {
+						tmpStart = ServerMetrics.now();
+						tmpIsDone = this.meParser.parse(this.meInBuf);
+						this.meParseTime += ServerMetrics.now() - tmpStart;
+					}
+				}
+				if (!this.meInBuf.hasRemaining()) { // Nothing is kept for idle connections
+					BufferPool.release(this.meInBuf);
+					this.meInBuf = null;
+				}
+				if (!tmpIsDone)
+					return false;
+				ServerMetrics.recordParse(this.meParseTime);
+				this.meRespStart = ServerMetrics.now();
+				if (Http2Connection.isHttp2Start(this.meRequest)) { // The rest of the connection is HTTP/2
+					this.meHttp2 = new Http2Connection(this.meChannel.socket().getInetAddress(), this.meRequest);
+					this.meRequest = null;
+					this.meParseTime = 0;
+					if (this.meInBuf != null) { // What was received after the request that started it
+						this.meHttp2.receive(this.meInBuf);
+						BufferPool.release(this.meInBuf);
+						this.meInBuf = null;
+					}
+					return false;
+				}
+				if (HttpServerMain.getIsPause()) {
+					this.meRequest.releasePayload();
+					tmpResp = new MyResponse(MyRequest.PAUSE); // Imaginary request
+				} else {
+					this.meRequest.finishBody();
+					tmpResp = new MyResponse(this.meRequest, ++this.meCount < ClientConnection.KEEP_ALIVE_MAX);
+				}
+			} catch (Exception e) {
+				if (this.meRequest != null)
+					this.meRequest.releasePayload();
+				this.meRespStart = ServerMetrics.now();
+				tmpResp = new MyResponse(MyRequest.ERROR); // Imaginary request
+			}
+			this.meRespRequest = this.meRequest != null ? this.meRequest : MyRequest.ERROR; // Logged with the request that was received (if any)
+			this.meRequest = null;
+			this.meParseTime = 0;
+			this.mePhaseStart = 0;
+			this.mePhaseBytes = 0;
+			this.meParser.reset(); // Ready for the next request
+			this.meRespBuf = tmpResp.getResponseBuffer();
+			this.meResp = tmpResp;
+			this.meIsKeepAlive = tmpResp.isKeepAlive();
+			return true;
+		}
+
+		// Writes as much of the current response as the socket accepts (the body file goes straight from the file
+		// to the socket), and returns true if it is all sent
+		boolean writeResponse() throws IOException {
+			if (this.meRespBuf.hasRemaining()) {
+				ServerMetrics.addBytesOut(this.meChannel.write(this.meRespBuf));
+				if (this.meRespBuf.hasRemaining())
+					return false;
+			}
+			if (this.meResp != null && !this.meResp.sendBody(this.meChannel))
+				return false;
+			this.meRespBuf = null;
+			if (this.meResp == null) // A rejection (then the connection is closed)
+				return true;
+			ServerMetrics.recordResponse(this.meRespStart);
+			AccessLog.log(this.meChannel.socket().getInetAddress(), this.meRespRequest, this.meResp);
+			this.meResp = null;
+			this.meRespRequest = null;
+			if (this.mePhaseStart != 0) // The next request's bytes came meanwhile, its deadline starts when it can be served
+				this.mePhaseStart = System.currentTimeMillis();
+			return true;
+		}
+
+		// Is the current request received too slowly (its deadline is checked only while no response is being sent)
+		boolean isLate(long now) {
+			return this.mePhaseStart != 0 && this.meHttp2 == null && this.meResp == null
+					&& now > ClientLimits.getDeadline(this.mePhaseStart, this.mePhaseBytes, this.meRequest != null);
+		}
+
+		// Sends a canned response if the socket takes it at once, and closes the connection (see 'ClientLimits')
+		void reject(int status) {
+			try {
+				this.meChannel.write(CannedResponses.getRejection(status));
+			} catch (IOException e) {/* Can be safely ignored (it is closed anyway) */}
+			this.meIsRejected = true;
+			ServerMetrics.countRejected(status);
+			this.close();
+		}
+
+		void close() {
+			if (!this.meIsOpen) // Closed already (ex: by the idle sweep after a failure)
+				return;
+			this.meIsOpen = false;
+			ServerMetrics.connectionClosed();
+			if (this.meRequest != null) // Lost while receiving the body
+				this.meRequest.releasePayload();
+			if (this.meResp != null) { // Lost while sending the body file
+				this.meResp.closeBody();
+				AccessLog.log(this.meChannel.socket().getInetAddress(), this.meRespRequest, this.meResp);
+			}
+			if (this.meHttp2 != null)
+				this.meHttp2.close();
+			BufferPool.release(this.meInBuf);
+			this.meInBuf = null;
+			if (this.meIsRejected) { // The request was not read (see 'LingeringClose')
+				this.meKey.cancel();
+				LingeringClose.close(this.meChannel);
+				return;
+			}
+			try {
+				this.meChannel.close(); // Also cancels the channel's key
+			} catch (IOException e) {/* Can be safely ignored */}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package httpServer;
+
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Automatic load shedding, driven by the queueing delay (as in CoDel): the time a connection waits in the workers'
+ * queue until a worker starts it (measured when it starts, and for the oldest one still queued, see 'watch()'), and
+ * the requests' latency on the server (the time to create a response, without sending it: a slow client or a big
+ * download is not the server's load). A burst drains within an interval, so the interval's shortest delay stays
+ * small; when even the shortest delay of an interval is over the target, the queue is standing (the server is given
+ * more than it can serve). The latency is the signal when nothing is queued (ex: a thread per connection, or workers
+ * that are all busy on the CPU): when even the fastest response of an interval is over its own target, every
+ * request waits. Then a fraction of the new requests is answered '503 Service Unavailable' (with 'Retry-After') as
+ * soon as their head is received, before any work is done for them. The fraction grows by a step with every
+ * standing interval and halves with every good one, so the server recovers on its own, and the delay (so the tail
+ * latency) stays near the target instead of growing with the queue. The uploads are shed at twice the fraction (they
+ * cost the most), and some requests always go through (to keep measuring). This is independent of the maintenance
+ * pause (see 'HttpServerMain.getIsPause()').
+ * Startup options: 'overload' ('off' disables the shedding), 'overload.target', 'overload.latency' (ms, 0 disables
+ * the latency signal) and 'overload.interval' (ms).
+ */
+public class OverloadControl {
+	// Constants
+	private static final boolean me_IS_ENABLED = ServerConfig.getBoolean("overload", true);
+	private static final long me_TARGET = Math.max(ServerConfig.getLong("overload.target", 10), 0) * 1_000_000L; // ns
+	private static final long me_LATENCY = Math.max(ServerConfig.getLong("overload.latency", 50), 0) * 1_000_000L; // ns (0 if not used)
+	private static final long me_INTERVAL = Math.max(ServerConfig.getLong("overload.interval", 100), 1) * 1_000_000L; // ns
+	private static final double me_STEP = 0.1; // Added to the fraction after every standing interval
+	private static final double me_MAX_FRACTION = 0.9;
+	private static final int me_MIN_SAMPLES = 4; // An interval with fewer delays (or latencies) is not judged by them (ex: a single slow start on an idle server)
+	// Fields
+	private static final AtomicLong meIntervalEnd = new AtomicLong(System.nanoTime() + me_INTERVAL);
+	private static final AtomicLong meIntervalMin = new AtomicLong(Long.MAX_VALUE); // The shortest delay (ns) of the current interval
+	private static final AtomicInteger meIntervalCount = new AtomicInteger(); // The delays of the current interval
+	private static final AtomicLong meIntervalLatency = new AtomicLong(Long.MAX_VALUE); // The shortest latency (ns) of the current interval
+	private static final AtomicInteger meIntervalLatencies = new AtomicInteger(); // The latencies of the current interval
+	private static volatile Queue<Runnable> meQueue; // The workers' queue (its oldest task's wait is measured, if it is 'Queued')
+	private static volatile double meFraction; // Of the new requests to shed (only the thread that ends an interval changes it)
+
+	/**
+	 * A task waiting in the workers' queue, that knows since when.
+	 */
+	public interface Queued {
+		/**
+		 * Returns the time it was queued.
+		 * @return	the time (from 'System.nanoTime()')
+		 */
+		long getQueuedAt();
+	}
+
+	private OverloadControl() {} // Static holder only
+
+	/**
+	 * Sets the workers' queue to look into when an interval ends: the wait of its oldest task is a delay too, so a
+	 * queue that does not move (ex: all the workers held by persistent connections) is seen as standing, although
+	 * no task starts to be measured.
+	 * @param theQueue	the queue (its tasks that implement 'Queued' are measured)
+	 */
+	public static void watch(Queue<Runnable> theQueue) {
+		meQueue = theQueue;
+	}
+
+	/**
+	 * Records a queueing delay.
+	 * @param delayNanos	the time (ns) a connection waited to be served
+	 */
+	public static void sample(long delayNanos) {
+		if (!me_IS_ENABLED)
+			return;
+		meIntervalMin.accumulateAndGet(delayNanos, Math::min);
+		meIntervalCount.incrementAndGet();
+		roll(System.nanoTime());
+	}
+
+	/**
+	 * Records a request's latency on the server.
+	 * @param latencyNanos	the time (ns) to create its response (from the complete request until its headers are ready)
+	 */
+	public static void sampleLatency(long latencyNanos) {
+		if (!me_IS_ENABLED || me_LATENCY == 0)
+			return;
+		meIntervalLatency.accumulateAndGet(latencyNanos, Math::min);
+		meIntervalLatencies.incrementAndGet();
+		roll(System.nanoTime());
+	}
+
+	/**
+	 * Decides if a new request is served or shed (to be called when its head is received).
+	 * @param method	the request's method
+	 * @return			true if it is served, false if it should be answered '503 Service Unavailable'
+	 */
+	public static boolean admit(String method) {
+		if (!me_IS_ENABLED)
+			return true;
+		roll(System.nanoTime()); // Also without samples (a queue that does not move gives none)
+		double tmpFraction = meFraction;
+		if (tmpFraction == 0)
+			return true;
+		if ("PUT".equals(method) || "POST".equals(method))
+			tmpFraction *= 2;
+		return ThreadLocalRandom.current().nextDouble() >= tmpFraction;
+	}
+
+	/**
+	 * Returns the fraction of the new requests being shed now (for the metrics).
+	 * @return	the fraction in percent
+	 */
+	public static long getSheddingPercent() {
+		return Math.round(meFraction * 100);
+	}
+
+	// Ends the current interval if its time is over (a single thread does it), and adapts the fraction by its delays
+	private static void roll(long now) {
+		long tmpEnd = meIntervalEnd.get();
+		if (now - tmpEnd < 0 || !meIntervalEnd.compareAndSet(tmpEnd, now + me_INTERVAL))
+			return;
+		long tmpMin = meIntervalMin.getAndSet(Long.MAX_VALUE);
+		if (meIntervalCount.getAndSet(0) < me_MIN_SAMPLES)
+			tmpMin = Long.MAX_VALUE;
+		tmpMin = Math.min(tmpMin, getOldestWait(now)); // A waiting connection counts alone (it is seen in the queue, not sampled)
+		long tmpLatency = meIntervalLatency.getAndSet(Long.MAX_VALUE);
+		if (meIntervalLatencies.getAndSet(0) < me_MIN_SAMPLES)
+			tmpLatency = Long.MAX_VALUE;
+		double tmpFraction = meFraction;
+		if (tmpMin != Long.MAX_VALUE && tmpMin > me_TARGET || tmpLatency != Long.MAX_VALUE && tmpLatency > me_LATENCY) { // Standing
+			tmpFraction = Math.min(tmpFraction + me_STEP, me_MAX_FRACTION);
+		} else {
+			tmpFraction /= 2;
+			tmpFraction /= Math.pow(2, Math.min((now - tmpEnd) / me_INTERVAL, 64)); // The intervals without any request were good too (nothing waited)
+		}
+		meFraction = tmpFraction < 0.01 ? 0 : tmpFraction;
+	}
+
+	// Returns how long the oldest task of the workers' queue has waited so far (Long.MAX_VALUE if none is queued)
+	private static long getOldestWait(long now) {
+		Queue<Runnable> tmpQueue = meQueue;
+		Runnable tmpOldest = tmpQueue == null ? null : tmpQueue.peek();
+		return tmpOldest instanceof Queued ? now - ((Queued) tmpOldest).getQueuedAt() : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,262 @@
+package httpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import httpServer.MyRequest.PathType;
+
+/**
+ * A cache of the resolved request targets: the canonical path that a target leads to, its path type, and (for
+ * GET) the index file that a directory leads to. Resolving a target costs several file system calls
+ * (canonicalizing, then probing the file and the index files), so a cached target is resolved by a hash lookup
+ * instead. The server's root is canonicalized once. A 'WatchService' on the root's tree drops the entries of the
+ * created and deleted paths (and of their directories, and of the trees under them), and the server's own uploads
+ * drop them at once (so a new file is never answered '404 Not Found' after its '201 Created'). The entries are
+ * also kept by the paths they depend on, so a change drops only its own entries without looking at the others. A
+ * modified file resolves the same, so it drops no entry, and the uploads' temporary files are ignored. The watcher
+ * also drops the changed files from 'StaticCache', and patches them into 'DirectoryListings'.
+ * Startup option: 'pathcache.size' (the most cached targets, 0 disables the cache).
+ */
+public class PathCache {
+
+	/**
+	 * A resolved target.
+	 */
+	public static class Resolved {
+		// Fields
+		private String meAbsPath; // The canonical path (a URL path)
+		private PathType mePathType;
+		private String meGetPath; // The same, or the directory's index file (for GET)
+		private PathType meGetType;
+
+		/**
+		 * Returns the canonical path that the target leads to.
+		 * @param isGet	true for GET (a directory leads to its index file, if any)
+		 * @return		the canonical path (a URL path)
+		 */
+		public String getAbsolutePath(boolean isGet) {
+			return isGet ? this.meGetPath : this.meAbsPath;
+		}
+
+		/**
+		 * Returns the type of the path that the target leads to.
+		 * @param isGet	true for GET (a directory leads to its index file, if any)
+		 * @return		the path's type
+		 */
+		public PathType getPathType(boolean isGet) {
+			return isGet ? this.meGetType : this.mePathType;
+		}
+	}
+
+	// Constants
+	private static final String me_ROOT = HttpServerMain.getAbsoluteUrlPath("/"); // Canonicalized once
+	private static final int me_MAX_ENTRIES = Math.max(ServerConfig.getInt("pathcache.size", 10000), 0);
+	// Fields
+	private static final ConcurrentHashMap<String, Resolved> meEntries = new ConcurrentHashMap<>(); // By request target (as received)
+	private static final ConcurrentHashMap<String, Set<String>> meDependents = new ConcurrentHashMap<>(); // The targets by the paths they depend on: their paths, and their directories as "dir/" (a tree that goes)
+	private static final AtomicLong meGeneration = new AtomicLong(); // Changes with every invalidation (so a resolving that overlaps one is not cached)
+
+	static {
+		if (me_MAX_ENTRIES > 0 && me_ROOT != null) {
+			try {
+				WatchService tmpWatcher = FileSystems.getDefault().newWatchService();
+				registerTree(tmpWatcher, Paths.get(new File(me_ROOT).getAbsolutePath()));
+				Thread tmpTh = new Thread(() -> watchLoop(tmpWatcher), "path-watch");
+				tmpTh.setDaemon(true);
+				tmpTh.start();
+			} catch (IOException | UnsupportedOperationException e) {
+				HttpServerMain.printErrWarning("Cannot watch the server's root for changes. Path resolution is not cached.", false);
+				meEntries.clear();
+				meGeneration.set(-1); // Disables caching
+			}
+		}
+	}
+
+	private PathCache() {} // Static holder only
+
+	/**
+	 * Returns the server root's canonical path.
+	 * @return	the root's canonical path (a URL path ending with '/')
+	 */
+	public static String getRoot() {
+		return me_ROOT;
+	}
+
+	/**
+	 * Resolves a request target (from the cache if it was resolved before).
+	 * @param target	the request's target (as received)
+	 * @return			the resolved target, or null if it cannot be resolved (ex: invalid characters)
+	 */
+	public static Resolved resolve(String target) {
+		Resolved outRes = meEntries.get(target);
+		if (outRes != null)
+			return outRes;
+		long tmpGen = meGeneration.get();
+		String tmpAbs = HttpServerMain.getAbsoluteUrlPath(target);
+		if (tmpAbs == null)
+			return null;
+		outRes = create(tmpAbs);
+		if (me_MAX_ENTRIES == 0 || tmpGen < 0)
+			return outRes;
+		if (meEntries.size() >= me_MAX_ENTRIES || meDependents.size() >= me_MAX_ENTRIES * 4) // Full (ex: many random targets), start over
+			clear();
+		meEntries.put(target, outRes);
+		addDependent(target, outRes);
+		if (meGeneration.get() != tmpGen) // Something changed while resolving, so it may be outdated already
+			meEntries.remove(target, outRes);
+		return outRes;
+	}
+
+	/**
+	 * Drops the targets that depend on a path (to be called when a file is created, deleted or replaced).
+	 * @param absPath	the path's canonical path (a URL path)
+	 */
+	public static void invalidate(String absPath) {
+		if (meGeneration.get() < 0)
+			return;
+		meGeneration.incrementAndGet();
+		String tmpPath = stripSlash(absPath);
+		dropDependents(tmpPath);
+		dropDependents(tmpPath + "/"); // The tree under it (if it is a directory)
+		dropDependents(tmpPath.substring(0, Math.max(tmpPath.lastIndexOf('/'), 0))); // Its directory (its index file may have changed)
+	}
+
+	// Remembers the paths that a cached target depends on
+	private static void addDependent(String target, Resolved theRes) {
+		String tmpPath = stripSlash(theRes.meAbsPath);
+		addDependent(tmpPath, target);
+		addDependent(stripSlash(theRes.meGetPath), target);
+		if (!tmpPath.startsWith(me_ROOT))
+			return;
+		for (int i = tmpPath.indexOf('/', me_ROOT.length()); i > 0; i = tmpPath.indexOf('/', i + 1))
+			addDependent(tmpPath.substring(0, i + 1), target); // Its directories under the root
+	}
+
+	private static void addDependent(String thePath, String target) {
+		meDependents.computeIfAbsent(thePath, tmpPath -> ConcurrentHashMap.newKeySet()).add(target);
+	}
+
+	// Drops the targets that depend on a path (some may have been dropped already, or resolved again since)
+	private static void dropDependents(String thePath) {
+		Set<String> tmpTargets = meDependents.remove(thePath);
+		if (tmpTargets != null) {
+			for (String tmpTarget : tmpTargets)
+				meEntries.remove(tmpTarget);
+		}
+	}
+
+	private static void clear() {
+		meEntries.clear();
+		meDependents.clear();
+	}
+
+	// Resolves a canonical path: its type, and for GET, the index file of a directory (if it has one)
+	private static Resolved create(String absPath) {
+		Resolved outRes = new Resolved();
+		outRes.meAbsPath = absPath;
+		outRes.mePathType = classify(absPath);
+		outRes.meGetPath = absPath;
+		outRes.meGetType = outRes.mePathType;
+		while (outRes.meGetType == PathType.DIRECTORY) {
+			Path tmpPath = Paths.get(new File(outRes.meGetPath).getAbsolutePath());
+			String tmpIndex; // The next check is better than using 'startsWith' to avoid files like 'index.htmAA'
+			if (Files.exists(Paths.get(tmpPath.toString(), "index.htm"))) {
+				tmpIndex = "index.htm";
+			} else if (Files.exists(Paths.get(tmpPath.toString(), "index.html"))) {
+				tmpIndex = "index.html";
+			} else {
+				break;
+			}
+			outRes.meGetPath += outRes.meGetPath.endsWith("/") ? tmpIndex : "/" + tmpIndex; // Just in case
+			outRes.meGetType = classify(outRes.meGetPath);
+		}
+		return outRes;
+	}
+
+	// Classifies a canonical path (using both Paths and Files gives more control to catch the forbidden situations)
+	private static PathType classify(String absPath) {
+		if (me_ROOT == null || !absPath.startsWith(me_ROOT))
+			return PathType.FORBIDDEN;
+		Path tmpPath = Paths.get(new File(absPath).getAbsolutePath()); // To get specific OS path
+		if (Files.exists(tmpPath)) {
+			if (Files.isDirectory(tmpPath))
+				return PathType.DIRECTORY;
+			if (!tmpPath.toFile().canRead()) // There seem to be a bug (http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6203387) that prevents the detection
+				return PathType.FORBIDDEN;
+			return PathType.FILE;
+		}
+		if (!Files.notExists(tmpPath)) // If 'exists' and 'notExists' return 'false' then the access to file is forbidden
+			return PathType.FORBIDDEN;
+		return PathType.NOT_EXIST;
+	}
+
+	// The watcher's thread: drops the entries of what changed (new directories are watched too)
+	private static void watchLoop(WatchService theWatcher) {
+		while (true) {
+			WatchKey tmpKey;
+			try {
+				tmpKey = theWatcher.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Path tmpDir = (Path) tmpKey.watchable();
+			for (WatchEvent<?> tmpEvent : tmpKey.pollEvents()) {
+				if (tmpEvent.kind() == StandardWatchEventKinds.OVERFLOW) { // Events were lost, so anything may have changed
+					meGeneration.incrementAndGet();
+					clear();
+					DirectoryListings.clear();
+					continue;
+				}
+				Path tmpChanged = tmpDir.resolve((Path) tmpEvent.context());
+				if (tmpChanged.getFileName().toString().startsWith(UploadSink.TEMP_PREFIX)) // An upload in progress (it is seen again when it is moved in place)
+					continue;
+				if (tmpEvent.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(tmpChanged)) {
+					try {
+						registerTree(theWatcher, tmpChanged);
+					} catch (IOException e) {
+						HttpServerMain.printErrWarning("Cannot watch the new directory '" + tmpChanged + "' for changes.", false);
+					}
+				}
+				try {
+					String tmpAbs = tmpChanged.toFile().getCanonicalFile().toURI().getPath();
+					if (tmpEvent.kind() != StandardWatchEventKinds.ENTRY_MODIFY) // A new content does not change how the targets resolve
+						invalidate(tmpAbs);
+					StaticCache.invalidate(tmpAbs); // Without waiting for its next revalidation
+					DirectoryListings.update(tmpAbs);
+				} catch (IOException e) {
+					meGeneration.incrementAndGet();
+					clear();
+				}
+			}
+			tmpKey.reset(); // Not valid anymore if its directory was deleted (then it is just dropped)
+		}
+	}
+
+	private static void registerTree(WatchService theWatcher, Path theDir) throws IOException {
+		Files.walkFileTree(theDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path tmpDir, BasicFileAttributes tmpAttrs) throws IOException {
+				tmpDir.register(theWatcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static String stripSlash(String thePath) {
+		return thePath.endsWith("/") && thePath.length() > 1 ? thePath.substring(0, thePath.length() - 1) : thePath;
+	}
+}
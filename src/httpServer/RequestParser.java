@@ -0,0 +1,441 @@
+package httpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An incremental HTTP request parser that works on the raw received bytes. It keeps its state between the
+ * reads, so every received byte is looked at once (the end of the headers and the end of the body are found
+ * without re-scanning what was received before), and the result is a structured request line and header map.
+ */
+public class RequestParser {
+
+	/**
+	 * A receiver of the request's body while it is being received (so the body does not have to be held in memory).
+	 */
+	public static interface BodySink {
+
+		/**
+		 * Takes the next received bytes of the body (all of them, from the buffer's position to its limit).
+		 * @param data	the received body bytes
+		 */
+		void write(ByteBuffer data);
+	}
+
+	/**
+	 * An enumeration of the parser's states.
+	 */
+	public static enum State {
+
+		/**
+		 * Waiting for the request line.
+		 */
+		REQUEST_LINE,
+
+		/**
+		 * Receiving the header lines.
+		 */
+		HEADERS,
+
+		/**
+		 * Receiving the body (the headers are complete). Parsing stops when this state is reached, until the body's
+		 * receiver is set by 'setBodySink()'.
+		 */
+		BODY,
+
+		/**
+		 * The whole request is received.
+		 */
+		DONE,
+
+		/**
+		 * The request is malformed (and the rest of the connection cannot be trusted).
+		 */
+		ERROR
+	}
+
+	// The parts of a chunked body (RFC 7230, 4.1)
+	private static enum Chunk { SIZE, DATA, DATA_END, TRAILER }
+
+	// Constants
+	private static final int me_MAX_LINE = 8192; // The longest accepted request line or header line
+	private static final int me_MAX_HEADERS = 100; // The max number of header lines
+	private static final String me_METHODS[] = {"GET", "PUT", "POST", "HEAD", "DELETE", "OPTIONS"}; // Shared instead of created per request
+	private static final String me_VERSIONS[] = {"HTTP/1.1", "HTTP/1.0"};
+	private static final String me_HEADER_NAMES[] = {"host", "user-agent", "accept", "accept-encoding", "accept-language", "connection",
+			"content-length", "content-type", "transfer-encoding", "range", "if-range", "if-none-match", "if-modified-since",
+			"cache-control", "expect", "referer", "cookie", "upgrade-insecure-requests", "pragma"}; // The common ones (lower-cased)
+	// Fields
+	private State meState = State.REQUEST_LINE;
+	private byte[] meLineBuf = new byte[128]; // The current (not yet complete) line
+	private int meLineLen; // The number of bytes in 'meLineBuf'
+	private String meMethod;
+	private String meTarget;
+	private String meVersion;
+	private Map<String, String> meHeaders = new HashMap<>(); // Header names are lower-cased
+	private long meBodyLeft; // The body bytes still to be received (of the current chunk if the body is chunked)
+	private Chunk meChunk; // The part of the chunked body being received (null if the body is not chunked)
+	private int meTrailers; // The number of trailer lines received (limited like the headers)
+	private boolean meIsSinkAwaited; // The headers are complete, and the body's receiver is not set yet
+	private BodySink meBodySink; // Receives the body (if null then the body is held in memory)
+	private byte[] meBody; // The received body if held in memory (grows while received, so a false 'Content-Length' cannot reserve memory)
+	private int meBodyLen; // The number of bytes in 'meBody'
+
+	/**
+	 * Parses a complete request string (a missing end of the headers is added, so it also works for the
+	 * imaginary requests like "PAUSE / HTTP/1.1").
+	 * @param reqString	the request's string
+	 * @return			the parser holding the parsed request
+	 */
+	public static RequestParser fromString(String reqString) {
+		RequestParser outParser = new RequestParser();
+		ByteBuffer tmpData = ByteBuffer.wrap(reqString.getBytes(StandardCharsets.ISO_8859_1));
+		if (outParser.parse(tmpData) && outParser.meState == State.BODY) {
+			outParser.setBodySink(null); // Held in memory
+			outParser.parse(tmpData);
+		} else if (outParser.meState != State.BODY && outParser.meState != State.DONE && outParser.meState != State.ERROR) {
+			outParser.parse(ByteBuffer.wrap(outParser.meLineLen > 0 ? "\r\n\r\n".getBytes() : "\r\n".getBytes()));
+		}
+		return outParser;
+	}
+
+	/**
+	 * Parses the received bytes (from the buffer's position to its limit). Parsing stops right after the end of
+	 * the request, so the bytes of the next (pipelined) request are left in the buffer. It also stops when the
+	 * headers are complete and a body follows, to let the caller decide where the body goes ('setBodySink()').
+	 * @param data	the received bytes
+	 * @return		true if parsing is finished (the whole request is received, or it is malformed) or is waiting for the
+	 * 				body's receiver, false if more bytes are needed
+	 */
+	public boolean parse(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			switch (this.meState) {
+				case REQUEST_LINE:
+				case HEADERS:
+					if (!this.readLine(data))
+						return this.meState == State.ERROR;
+					if (this.meState == State.REQUEST_LINE) {
+						this.parseRequestLine();
+					} else {
+						this.parseHeaderLine();
+					}
+					this.meLineLen = 0;
+					break;
+				case BODY:
+					if (this.meIsSinkAwaited)
+						return true;
+					if (this.meChunk != null && this.meChunk != Chunk.DATA) { // The chunks' sizes, ends and trailers are lines
+						if (!this.readLine(data))
+							return this.meState == State.ERROR;
+						this.parseChunkLine();
+						this.meLineLen = 0;
+						break;
+					}
+					int tmpNum = (int) Math.min(this.meBodyLeft, data.remaining());
+					if (this.meBodySink != null) {
+						int tmpLimit = data.limit();
+						data.limit(data.position() + tmpNum); // Only this request's bytes
+						this.meBodySink.write(data);
+						data.limit(tmpLimit);
+					} else {
+						if (this.meBodyLen + (long) tmpNum > Integer.MAX_VALUE - 8) { // A chunked body too big to be held in memory
+							this.meState = State.ERROR;
+							return true;
+						}
+						if (this.meBodyLen + tmpNum > this.meBody.length)
+							this.meBody = Arrays.copyOf(this.meBody, (int) Math.min(Math.max(this.meBody.length * 2L, this.meBodyLen + tmpNum), this.meBodyLen + this.meBodyLeft));
+						data.get(this.meBody, this.meBodyLen, tmpNum);
+						this.meBodyLen += tmpNum;
+					}
+					this.meBodyLeft -= tmpNum;
+					if (this.meBodyLeft == 0) {
+						if (this.meChunk != null) {
+							this.meChunk = Chunk.DATA_END;
+						} else {
+							this.meState = State.DONE;
+						}
+					}
+					break;
+				default: // DONE or ERROR
+					return true;
+			}
+		}
+		return this.meState == State.DONE || this.meState == State.ERROR || this.meIsSinkAwaited;
+	}
+
+	/**
+	 * Sets where the body goes once the headers are complete (parsing can then continue).
+	 * @param theSink	the body's receiver, or null to hold the body in memory (see 'getBody()')
+	 */
+	public void setBodySink(BodySink theSink) {
+		this.meBodySink = theSink;
+		if (theSink == null && this.meIsSinkAwaited) {
+			if (this.meBodyLeft > Integer.MAX_VALUE - 8) // Too big to be held in memory
+				this.meState = State.ERROR;
+			else
+				this.meBody = new byte[this.meChunk != null ? HttpServerMain.BUFSIZE : (int) Math.min(this.meBodyLeft, HttpServerMain.BUFSIZE * 16)];
+		}
+		this.meIsSinkAwaited = false;
+	}
+
+	/**
+	 * Prepares this parser for the next request on the same connection.
+	 */
+	public void reset() {
+		this.meState = State.REQUEST_LINE;
+		this.meLineLen = 0;
+		this.meMethod = null;
+		this.meTarget = null;
+		this.meVersion = null;
+		this.meHeaders = new HashMap<>(); // A new map, since the finished request keeps the old one
+		this.meBodyLeft = 0;
+		this.meChunk = null;
+		this.meTrailers = 0;
+		this.meIsSinkAwaited = false;
+		this.meBodySink = null;
+		this.meBody = null;
+		this.meBodyLen = 0;
+	}
+
+	// Moves the bytes of the current line into the line buffer, and returns true if the line is complete (without the CRLF)
+	private boolean readLine(ByteBuffer data) {
+		int tmpPos = data.position();
+		int tmpEnd = data.limit();
+		int tmpInd = tmpPos;
+		while (tmpInd < tmpEnd && data.get(tmpInd) != '\n')
+			tmpInd++;
+		boolean outIsEnded = tmpInd < tmpEnd;
+		int tmpNum = tmpInd - tmpPos;
+		if (this.meLineLen + tmpNum > me_MAX_LINE) {
+			this.meState = State.ERROR;
+			return false;
+		}
+		if (this.meLineLen + tmpNum > this.meLineBuf.length)
+			this.meLineBuf = Arrays.copyOf(this.meLineBuf, Math.min(Math.max(this.meLineBuf.length * 2, this.meLineLen + tmpNum), me_MAX_LINE));
+		data.get(this.meLineBuf, this.meLineLen, tmpNum);
+		this.meLineLen += tmpNum;
+		if (outIsEnded) {
+			data.get(); // Skip the LF
+			if (this.meLineLen > 0 && this.meLineBuf[this.meLineLen - 1] == '\r')
+				this.meLineLen--; // Bare LF line endings are tolerated
+		}
+		return outIsEnded;
+	}
+
+	// Splits the request line into method, target and version
+	private void parseRequestLine() {
+		if (this.meLineLen == 0) // Empty lines before a request are ignored
+			return;
+		int tmpFirst = indexOf(this.meLineBuf, ' ', 0, this.meLineLen);
+		int tmpSecond = indexOf(this.meLineBuf, ' ', tmpFirst + 1, this.meLineLen);
+		if (tmpFirst < 1 || tmpSecond < 0 || tmpSecond == tmpFirst + 1) {
+			this.meState = State.ERROR;
+			return;
+		}
+		this.meMethod = toString(this.meLineBuf, 0, tmpFirst, me_METHODS, false);
+		this.meTarget = new String(this.meLineBuf, tmpFirst + 1, tmpSecond - tmpFirst - 1, StandardCharsets.ISO_8859_1);
+		this.meVersion = toString(this.meLineBuf, tmpSecond + 1, this.meLineLen, me_VERSIONS, false);
+		this.meState = State.HEADERS;
+	}
+
+	// Adds a header line to the header map, or ends the headers if it is the empty line
+	private void parseHeaderLine() {
+		if (this.meLineLen == 0) { // The end of the headers
+			this.startBody();
+			return;
+		}
+		int tmpInd = indexOf(this.meLineBuf, ':', 0, this.meLineLen);
+		if (tmpInd < 1 || this.meHeaders.size() >= me_MAX_HEADERS || !isToken(this.meLineBuf, 0, tmpInd)) {
+			// No white space before the ':' and no folded (obs-fold) lines (RFC 9112, 5.1 and 5.2): a proxy could
+			// read them differently (request smuggling), so they are refused instead of trimmed
+			this.meState = State.ERROR;
+			return;
+		}
+		String tmpName = toString(this.meLineBuf, 0, tmpInd, me_HEADER_NAMES, true);
+		String tmpValue = toString(this.meLineBuf, tmpInd + 1, this.meLineLen, null, false);
+		this.meHeaders.merge(tmpName, tmpValue, (tmpOld, tmpNew) -> tmpOld + ", " + tmpNew); // Repeated headers are combined
+	}
+
+	// Checks that a part of the line is a token (ex: a header's name): no white space, control or separator characters
+	private static boolean isToken(byte[] theBuf, int startPos, int endPos) {
+		for (int i = startPos; i < endPos; i++) {
+			int tmpChar = theBuf[i] & 0xFF;
+			if (tmpChar <= ' ' || tmpChar >= 0x7F || "\"(),/:;<=>?@[\\]{}".indexOf(tmpChar) >= 0)
+				return false;
+		}
+		return true;
+	}
+
+	// Returns the position of a byte in a part of the line, or -1 if it is not there
+	private static int indexOf(byte[] theBuf, char theChar, int startPos, int endPos) {
+		for (int i = startPos; i < endPos; i++) {
+			if (theBuf[i] == theChar)
+				return i;
+		}
+		return -1;
+	}
+
+	// Returns a part of the line as a string without its surrounding white space: one of the known strings if it
+	// matches one of them (then nothing is created), otherwise a new string (lower-cased if 'isName')
+	private static String toString(byte[] theBuf, int startPos, int endPos, String[] known, boolean isName) {
+		while (startPos < endPos && theBuf[startPos] <= ' ')
+			startPos++;
+		while (endPos > startPos && theBuf[endPos - 1] <= ' ')
+			endPos--;
+		int tmpLen = endPos - startPos;
+		if (known != null) {
+			for (String tmpKnown : known) {
+				if (tmpKnown.length() != tmpLen)
+					continue;
+				int i = 0;
+				while (i < tmpLen && (isName ? Character.toLowerCase((char) (theBuf[startPos + i] & 0xFF)) : (char) (theBuf[startPos + i] & 0xFF)) == tmpKnown.charAt(i))
+					i++;
+				if (i == tmpLen)
+					return tmpKnown;
+			}
+		}
+		String outStr = new String(theBuf, startPos, tmpLen, StandardCharsets.ISO_8859_1);
+		return isName ? outStr.toLowerCase(Locale.ROOT) : outStr;
+	}
+
+	// Decides how the body is delimited once the headers are complete
+	private void startBody() {
+		String tmpCoding = this.meHeaders.get("transfer-encoding");
+		if (tmpCoding != null) {
+			// Only 'chunked' alone is supported (other codings cannot be decoded here), and a 'Content-Length' next
+			// to it is refused, since the two could be read differently by a proxy (request smuggling)
+			if (!"chunked".equalsIgnoreCase(tmpCoding.trim()) || this.meHeaders.containsKey("content-length")) {
+				this.meState = State.ERROR;
+				return;
+			}
+			this.meChunk = Chunk.SIZE;
+			this.meIsSinkAwaited = true;
+			this.meState = State.BODY;
+			return;
+		}
+		String tmpLen = this.meHeaders.get("content-length");
+		if (tmpLen == null) {
+			this.meState = State.DONE;
+			return;
+		}
+		try {
+			if (tmpLen.isEmpty() || tmpLen.length() > 18 || tmpLen.charAt(0) < '0' || tmpLen.charAt(0) > '9') // Digits only (not "+5")
+				throw new NumberFormatException();
+			this.meBodyLeft = Long.parseLong(tmpLen);
+		} catch (NumberFormatException e) { // Also catches repeated (combined) different lengths
+			this.meState = State.ERROR;
+			return;
+		}
+		if (this.meBodyLeft < 0) {
+			this.meState = State.ERROR;
+		} else if (this.meBodyLeft == 0) {
+			this.meState = State.DONE;
+		} else {
+			this.meIsSinkAwaited = true;
+			this.meState = State.BODY;
+		}
+	}
+
+	// Handles a line of a chunked body: a chunk's size (its extensions are ignored), the end of a chunk's data, or a trailer
+	private void parseChunkLine() {
+		switch (this.meChunk) {
+			case SIZE:
+				int tmpEnd = 0;
+				while (tmpEnd < this.meLineLen && this.meLineBuf[tmpEnd] != ';')
+					tmpEnd++;
+				String tmpSize = new String(this.meLineBuf, 0, tmpEnd, StandardCharsets.ISO_8859_1).trim();
+				try {
+					if (tmpSize.isEmpty() || tmpSize.length() > 15 || tmpSize.charAt(0) == '-' || tmpSize.charAt(0) == '+') // Limited to stay positive
+						throw new NumberFormatException();
+					this.meBodyLeft = Long.parseLong(tmpSize, 16);
+				} catch (NumberFormatException e) {
+					this.meState = State.ERROR;
+					return;
+				}
+				this.meChunk = this.meBodyLeft == 0 ? Chunk.TRAILER : Chunk.DATA; // The last chunk has size 0
+				break;
+			case DATA_END:
+				if (this.meLineLen != 0) { // The data was longer than its size
+					this.meState = State.ERROR;
+					return;
+				}
+				this.meChunk = Chunk.SIZE;
+				break;
+			default: // TRAILER (trailers are ignored)
+				if (this.meLineLen == 0) {
+					this.meState = State.DONE;
+				} else if (++this.meTrailers > me_MAX_HEADERS) {
+					this.meState = State.ERROR;
+				}
+		}
+	}
+
+	/**
+	 * Returns the current state of this parser.
+	 * @return	the parser's state
+	 */
+	public State getState() {
+		return this.meState;
+	}
+
+	/**
+	 * Returns the request's method (ex: "GET").
+	 * @return	the method, or null if the request line is not parsed
+	 */
+	public String getMethod() {
+		return this.meMethod;
+	}
+
+	/**
+	 * Returns the request's target (the URL's path and query).
+	 * @return	the target, or null if the request line is not parsed
+	 */
+	public String getTarget() {
+		return this.meTarget;
+	}
+
+	/**
+	 * Returns the request's HTTP version (ex: "HTTP/1.1").
+	 * @return	the version, or null if the request line is not parsed
+	 */
+	public String getVersion() {
+		return this.meVersion;
+	}
+
+	/**
+	 * Returns the request's headers (the names are lower-cased, and repeated headers are combined with ", ").
+	 * @return	the header map
+	 */
+	public Map<String, String> getHeaders() {
+		return this.meHeaders;
+	}
+
+	/**
+	 * Returns the request's body (if it was held in memory).
+	 * @return	the body's bytes (an empty array if there is no body, or it went to a body sink)
+	 */
+	public byte[] getBody() {
+		if (this.meBody == null)
+			return new byte[0];
+		return this.meBodyLen == this.meBody.length ? this.meBody : Arrays.copyOf(this.meBody, this.meBodyLen);
+	}
+
+	/**
+	 * Returns the request's line and headers as text (the body is only summarized).
+	 * @return	the request's text
+	 */
+	@Override
+	public String toString() {
+		StringBuilder outStr = new StringBuilder();
+		outStr.append(this.meMethod).append(' ').append(this.meTarget).append(' ').append(this.meVersion).append("\r\n");
+		for (Map.Entry<String, String> tmpHead : this.meHeaders.entrySet())
+			outStr.append(tmpHead.getKey()).append(": ").append(tmpHead.getValue()).append("\r\n");
+		if (this.meBodyLen > 0)
+			outStr.append("\r\n[").append(this.meBodyLen).append(" body bytes]");
+		return outStr.toString();
+	}
+}
@@ -0,0 +1,107 @@
+package httpServer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A class that holds the server's startup options. Options are given as 'name=value' command line
+ * arguments (a leading '--' is allowed), or as 'httpServer.name' system properties.
+ */
+public class ServerConfig {
+	// Fields
+	private static final String me_PROPERTY_PREFIX = "httpServer.";
+	private static final Map<String, String> meOptions = new HashMap<>();
+
+	private ServerConfig() {} // Static holder only
+
+	/**
+	 * Parses the command line arguments into startup options.
+	 * @param args	the command line arguments (in 'name=value' form)
+	 */
+	protected static void parseArguments(String[] args) {
+		for (String tmpArg : args) {
+			String tmpStr = tmpArg.startsWith("--") ? tmpArg.substring(2) : tmpArg;
+			int tmpInd = tmpStr.indexOf('=');
+			if (tmpInd < 1) {
+				HttpServerMain.printErrWarning("Ignoring malformed startup option '" + tmpArg + "' (expected 'name=value').", false);
+				continue;
+			}
+			meOptions.put(tmpStr.substring(0, tmpInd).trim().toLowerCase(), tmpStr.substring(tmpInd + 1).trim());
+		}
+	}
+
+	/**
+	 * Returns a startup option as a string.
+	 * @param name		the option's name
+	 * @param defValue	the value to return if the option is not specified
+	 * @return			the option's value
+	 */
+	protected static String getString(String name, String defValue) {
+		String outVal = meOptions.get(name.toLowerCase());
+		if (outVal == null)
+			outVal = System.getProperty(me_PROPERTY_PREFIX + name);
+		return outVal == null || outVal.isEmpty() ? defValue : outVal;
+	}
+
+	/**
+	 * Returns a startup option as an integer (terminates execution if the option is not a valid number, and warns
+	 * if it is too big for an integer, then the default value is used).
+	 * @param name		the option's name
+	 * @param defValue	the value to return if the option is not specified
+	 * @return			the option's value
+	 */
+	protected static int getInt(String name, int defValue) {
+		long tmpVal = getLong(name, defValue);
+		if (tmpVal < Integer.MIN_VALUE || tmpVal > Integer.MAX_VALUE) {
+			HttpServerMain.printErrWarning("Startup option '" + name + "' is out of range (got '" + tmpVal + "'). Using " + defValue + ".", false);
+			return defValue;
+		}
+		return (int) tmpVal;
+	}
+
+	/**
+	 * Returns a startup option as a long (terminates execution if the option is not a valid number).
+	 * @param name		the option's name
+	 * @param defValue	the value to return if the option is not specified
+	 * @return			the option's value
+	 */
+	protected static long getLong(String name, long defValue) {
+		String tmpVal = getString(name, null);
+		if (tmpVal == null)
+			return defValue;
+		try {
+			return Long.parseLong(tmpVal);
+		} catch (NumberFormatException e) {
+			HttpServerMain.printErrWarning("Startup option '" + name + "' must be a number (got '" + tmpVal + "').", true);
+			return defValue;
+		}
+	}
+
+	/**
+	 * Returns a startup option as a boolean ('true', 'yes', 'on' or '1' are considered true, 'false', 'no', 'off'
+	 * or '0' false, anything else is warned about and the default value is used).
+	 * @param name		the option's name
+	 * @param defValue	the value to return if the option is not specified
+	 * @return			the option's value
+	 */
+	protected static boolean getBoolean(String name, boolean defValue) {
+		String tmpVal = getString(name, null);
+		if (tmpVal == null)
+			return defValue;
+		switch (tmpVal.toLowerCase()) {
+			case "true":
+			case "yes":
+			case "on":
+			case "1":
+				return true;
+			case "false":
+			case "no":
+			case "off":
+			case "0":
+				return false;
+			default:
+				HttpServerMain.printErrWarning("Startup option '" + name + "' must be 'on' or 'off' (got '" + tmpVal + "'). Using '" + (defValue ? "on" : "off") + "'.", false);
+				return defValue;
+		}
+	}
+}
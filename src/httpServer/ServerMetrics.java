@@ -0,0 +1,178 @@
+package httpServer;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import httpServer.MyRequest.RequestType;
+
+/**
+ * The server's metrics, exposed in the Prometheus text format on the metrics endpoint ('GET /metrics' by default):
+ * the requests by type and the responses by status, the bytes received and sent, the active connections, and
+ * histograms of the accept queue's wait, the parse time (the time spent in the parser, including passing the body
+ * to its sink) and the response time (from the complete request until its response is all sent). The counters are
+ * striped ('LongAdder') and the histograms lock-free, so the connections' threads never wait on each other to
+ * record, and recording costs a few increments and clock reads per request.
+ * Startup options: 'metrics' ('off' disables recording and the endpoint), 'metrics.path' (the endpoint's path).
+ */
+public class ServerMetrics {
+	// Constants
+	public static final boolean ENABLED = ServerConfig.getBoolean("metrics", true);
+	private static final String me_PATH = ServerConfig.getString("metrics.path", "/metrics");
+	private static final String me_BOUNDS[] = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"}; // Histogram buckets (seconds)
+	private static final LongAdder me_REQUESTS[] = new LongAdder[RequestType.values().length]; // By request type
+	private static final AtomicReferenceArray<LongAdder> me_STATUSES = new AtomicReferenceArray<>(600); // By status code (created when first used)
+	private static final LongAdder me_BYTES_IN = new LongAdder();
+	private static final LongAdder me_BYTES_OUT = new LongAdder();
+	private static final LongAdder me_CONNECTIONS = new LongAdder(); // Accepted so far
+	private static final LongAdder me_ACTIVE = new LongAdder(); // Being served now
+	private static final LatencyHistogram me_ACCEPT_WAIT = new LatencyHistogram(); // Nanoseconds
+	private static final LatencyHistogram me_PARSE = new LatencyHistogram();
+	private static final LatencyHistogram me_RESPONSE = new LatencyHistogram();
+
+	static {
+		for (int i = 0; i < me_REQUESTS.length; i++)
+			me_REQUESTS[i] = new LongAdder();
+	}
+
+	private ServerMetrics() {} // Static holder only
+
+	/**
+	 * Returns the time to measure a duration from (a clock read only if the metrics are enabled).
+	 * @return	the current time in nanoseconds (0 if disabled)
+	 */
+	public static long now() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Checks if a request's target is the metrics endpoint.
+	 * @param target	the request's target
+	 * @return			true if the metrics should be answered
+	 */
+	public static boolean isEndpoint(String target) {
+		return ENABLED && me_PATH.equals(target);
+	}
+
+	/**
+	 * Counts a created response.
+	 * @param type		the request's type
+	 * @param status	the response's status code
+	 */
+	public static void countResponse(RequestType type, int status) {
+		if (!ENABLED)
+			return;
+		me_REQUESTS[type.ordinal()].increment();
+		countStatus(status);
+	}
+
+	/**
+	 * Counts a response sent to reject a client before its request was created (see 'ClientLimits').
+	 * @param status	the response's status code
+	 */
+	public static void countRejected(int status) {
+		if (ENABLED)
+			countStatus(status);
+	}
+
+	private static void countStatus(int status) {
+		if (status < 100 || status >= me_STATUSES.length())
+			return;
+		LongAdder tmpCounter = me_STATUSES.get(status);
+		if (tmpCounter == null) { // The first response with this status
+			me_STATUSES.compareAndSet(status, null, new LongAdder());
+			tmpCounter = me_STATUSES.get(status);
+		}
+		tmpCounter.increment();
+	}
+
+	public static void addBytesIn(long bytesNum) {
+		if (ENABLED && bytesNum > 0)
+			me_BYTES_IN.add(bytesNum);
+	}
+
+	public static void addBytesOut(long bytesNum) {
+		if (ENABLED && bytesNum > 0)
+			me_BYTES_OUT.add(bytesNum);
+	}
+
+	/**
+	 * Counts a connection that starts being served (after waiting in the accept queue since it was accepted).
+	 * @param acceptedAt	the time it was accepted (from 'now()')
+	 */
+	public static void connectionOpened(long acceptedAt) {
+		if (!ENABLED)
+			return;
+		me_CONNECTIONS.increment();
+		me_ACTIVE.increment();
+		me_ACCEPT_WAIT.record(System.nanoTime() - acceptedAt);
+	}
+
+	public static void connectionClosed() {
+		if (ENABLED)
+			me_ACTIVE.decrement();
+	}
+
+	/**
+	 * Records the time a request spent in the parser.
+	 * @param nanos	the duration (nanoseconds)
+	 */
+	public static void recordParse(long nanos) {
+		if (ENABLED)
+			me_PARSE.record(nanos);
+	}
+
+	/**
+	 * Records the time from a complete request until its response was all sent.
+	 * @param startedAt	the time the request was complete (from 'now()')
+	 */
+	public static void recordResponse(long startedAt) {
+		if (ENABLED)
+			me_RESPONSE.record(System.nanoTime() - startedAt);
+	}
+
+	/**
+	 * Returns all the metrics in the Prometheus text format (version 0.0.4).
+	 * @return	the metrics' text
+	 */
+	public static String toPrometheus() {
+		StringBuilder outText = new StringBuilder(4096);
+		outText.append("# HELP httpserver_requests_total Requests by type.\n# TYPE httpserver_requests_total counter\n");
+		for (RequestType tmpType : RequestType.values())
+			outText.append("httpserver_requests_total{type=\"").append(tmpType).append("\"} ").append(me_REQUESTS[tmpType.ordinal()].sum()).append('\n');
+		outText.append("# HELP httpserver_responses_total Responses by status code.\n# TYPE httpserver_responses_total counter\n");
+		for (int i = 0; i < me_STATUSES.length(); i++) {
+			LongAdder tmpCounter = me_STATUSES.get(i);
+			if (tmpCounter != null)
+				outText.append("httpserver_responses_total{status=\"").append(i).append("\"} ").append(tmpCounter.sum()).append('\n');
+		}
+		appendValue(outText, "httpserver_received_bytes_total", "counter", "Bytes received from the clients.", me_BYTES_IN.sum());
+		appendValue(outText, "httpserver_sent_bytes_total", "counter", "Bytes sent to the clients.", me_BYTES_OUT.sum());
+		appendValue(outText, "httpserver_connections_total", "counter", "Connections served.", me_CONNECTIONS.sum());
+		appendValue(outText, "httpserver_connections_active", "gauge", "Connections being served now.", me_ACTIVE.sum());
+		appendValue(outText, "httpserver_shedding_percent", "gauge", "Percent of the new requests shed because of overload.", OverloadControl.getSheddingPercent());
+		appendValue(outText, "httpserver_access_log_dropped_total", "counter", "Access log lines dropped because the log's ring was full.", AccessLog.getDropped());
+		appendHistogram(outText, "httpserver_accept_queue_wait_seconds", "Time from accepting a connection until it starts being served.", me_ACCEPT_WAIT);
+		appendHistogram(outText, "httpserver_request_parse_seconds", "Time spent parsing a request (with passing its body to its sink).", me_PARSE);
+		appendHistogram(outText, "httpserver_response_seconds", "Time from a complete request until its response is all sent.", me_RESPONSE);
+		return outText.toString();
+	}
+
+	private static void appendValue(StringBuilder theText, String name, String type, String help, long value) {
+		theText.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(' ').append(type).append('\n');
+		theText.append(name).append(' ').append(value).append('\n');
+	}
+
+	// The cumulative buckets of a nanoseconds histogram, in seconds
+	private static void appendHistogram(StringBuilder theText, String name, String help, LatencyHistogram theHist) {
+		theText.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" histogram\n");
+		long tmpCount = 0;
+		for (String tmpBound : me_BOUNDS) {
+			tmpCount = theHist.getCountUpTo((long) (Double.parseDouble(tmpBound) * 1e9));
+			theText.append(name).append("_bucket{le=\"").append(tmpBound).append("\"} ").append(tmpCount).append('\n');
+		}
+		tmpCount = Math.max(tmpCount, theHist.getCount()); // Read later, so it can only be bigger (never decreasing buckets)
+		theText.append(name).append("_bucket{le=\"+Inf\"} ").append(tmpCount).append('\n');
+		theText.append(name).append("_sum ").append(theHist.getSum() / 1e9).append('\n');
+		theText.append(name).append("_count ").append(tmpCount).append('\n');
+	}
+}
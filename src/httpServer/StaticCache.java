@@ -0,0 +1,242 @@
+package httpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of the hot static files, holding their ready-made responses (the headers, and the body in an off-heap
+ * buffer), so a cached GET needs no path checks and no file reading. Entries are kept by the file's canonical path
+ * (up to a total byte budget, the least recently used are evicted first), and a file is dropped when it is
+ * written through the server or when its modification time changes (checked at most every 'cache.revalidate' ms).
+ * Startup options: 'cache.size' (total bytes, 0 disables the cache), 'cache.maxfile' (the biggest cached file)
+ * and 'cache.revalidate'.
+ */
+public class StaticCache {
+
+	/**
+	 * A cached file with its ready-made response.
+	 */
+	public static class Entry {
+		// Fields
+		private String mePath; // The file's canonical absolute path
+		private ByteBuffer meBody; // The file's bytes (off-heap, never changed after creation)
+		private byte[] meHeadClose; // The response's headers with 'Connection: close'
+		private byte[] meHeadKeepAlive; // The response's headers with 'Connection: keep-alive'
+		private String meContent; // The response's content headers part (for responses other than the ready-made ones)
+		private long meModified; // The file's modification time when it was read
+		private volatile long meCheckedAt; // The last time the modification time was checked
+		private List<String> meTargets = new ArrayList<>(); // The request targets that lead to this file (ex: '/' and '/index.htm')
+
+		/**
+		 * Constructor.
+		 * @param absPath		the file's canonical absolute path
+		 * @param body			the file's bytes
+		 * @param headClose		the response's headers to close the connection
+		 * @param headKeepAlive	the response's headers to keep the connection open
+		 * @param content		the response's content headers part (ex: 'Content-Type')
+		 * @param modified		the file's modification time (in ms) before it was read
+		 */
+		public Entry(String absPath, ByteBuffer body, byte[] headClose, byte[] headKeepAlive, String content, long modified) {
+			this.mePath = absPath;
+			this.meBody = body;
+			this.meHeadClose = headClose;
+			this.meHeadKeepAlive = headKeepAlive;
+			this.meContent = content;
+			this.meModified = modified;
+			this.meCheckedAt = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the file's canonical absolute path.
+		 * @return	the file's path
+		 */
+		public String getPath() {
+			return this.mePath;
+		}
+
+		/**
+		 * Returns the response's headers.
+		 * @param keepAlive	true if the connection stays open after the response
+		 * @return			the headers' bytes
+		 */
+		public byte[] getHeaders(boolean keepAlive) {
+			return keepAlive ? this.meHeadKeepAlive : this.meHeadClose;
+		}
+
+		/**
+		 * Returns the response's content headers part (to build responses other than the ready-made ones).
+		 * @return	the content headers part
+		 */
+		public String getContent() {
+			return this.meContent;
+		}
+
+		/**
+		 * Returns the file's modification time when it was read.
+		 * @return	the modification time (in ms)
+		 */
+		public long getModified() {
+			return this.meModified;
+		}
+
+		/**
+		 * Returns the file's bytes (a new view every time, so every response has its own position).
+		 * @return	a read-only view of the file's bytes
+		 */
+		public ByteBuffer getBody() {
+			return this.meBody.asReadOnlyBuffer();
+		}
+
+		// The bytes counted against the cache's budget
+		private long getSize() {
+			return this.meBody.capacity() + this.meHeadClose.length + this.meHeadKeepAlive.length;
+		}
+	}
+
+	// Constants
+	private static final long me_MAX_BYTES = ServerConfig.getLong("cache.size", 32L * 1024 * 1024); // The total budget of the cache
+	private static final long me_MAX_FILE = ServerConfig.getLong("cache.maxfile", 1024L * 1024); // The biggest file that is cached
+	private static final long me_REVALIDATE = ServerConfig.getLong("cache.revalidate", 1000L); // How long (ms) a file is trusted before checking its modification time again
+	private static final int me_MAX_TARGETS = 8; // The most request targets remembered for one file
+	// Fields
+	private static final LinkedHashMap<String, Entry> meEntries = new LinkedHashMap<>(64, 0.75f, true); // By canonical path (in access order)
+	private static final Map<String, Entry> meTargets = new HashMap<>(); // By request target (as received, without the query)
+	private static long meBytes; // The bytes held by the entries
+
+	private StaticCache() {} // Static holder only
+
+	/**
+	 * Checks if a file with the given size can be cached.
+	 * @param fileSize	the file's size
+	 * @return			true if caching is enabled and the file is small enough
+	 */
+	public static boolean isCacheable(long fileSize) {
+		return me_MAX_BYTES > 0 && fileSize <= me_MAX_FILE && fileSize <= me_MAX_BYTES;
+	}
+
+	/**
+	 * Returns the cached file that the request target leads to. Only once in a while (see 'cache.revalidate') the
+	 * file's modification time is checked, otherwise no file system call is made at all.
+	 * @param target	the request's target (without its query, which does not change the file)
+	 * @return			the cached file, or null if it is not cached (or has changed)
+	 */
+	public static Entry get(String target) {
+		Entry outEntry;
+		synchronized (meEntries) {
+			outEntry = meTargets.get(target);
+			if (outEntry == null)
+				return null;
+			meEntries.get(outEntry.mePath); // Marks it as recently used
+		}
+		long tmpNow = System.currentTimeMillis();
+		if (tmpNow - outEntry.meCheckedAt > me_REVALIDATE) {
+			long tmpModified;
+			try {
+				tmpModified = Files.getLastModifiedTime(Paths.get(outEntry.mePath)).toMillis();
+			} catch (IOException | SecurityException e) { // Deleted or not readable anymore
+				tmpModified = -1;
+			}
+			if (tmpModified != outEntry.meModified) {
+				invalidate(outEntry.mePath);
+				return null;
+			}
+			outEntry.meCheckedAt = tmpNow;
+		}
+		return outEntry;
+	}
+
+	/**
+	 * Returns the cached file at a canonical path if it is the same version (ex: another target that leads to it,
+	 * like '//index.htm' for '/index.htm'), and remembers the new target for it, so the file is not read again.
+	 * @param target	the request's target that led to the file (without its query)
+	 * @param absPath	the file's canonical absolute path
+	 * @param modified	the file's current modification time (in ms)
+	 * @return			the cached file, or null if it is not cached (or is an older version)
+	 */
+	public static Entry get(String target, String absPath, long modified) {
+		synchronized (meEntries) {
+			Entry outEntry = meEntries.get(absPath); // Marks it as recently used
+			if (outEntry == null || outEntry.meModified != modified)
+				return null;
+			addTarget(target, outEntry); // Unless it has too many already (then it is still served from here)
+			return outEntry;
+		}
+	}
+
+	/**
+	 * Caches a file (replacing an older copy of it), and evicts the least recently used files if the budget is exceeded.
+	 * @param target	the request's target that led to the file (without its query)
+	 * @param theEntry	the file with its ready-made response
+	 */
+	public static void put(String target, Entry theEntry) {
+		if (theEntry.getSize() > me_MAX_BYTES)
+			return;
+		synchronized (meEntries) {
+			Entry tmpOld = meEntries.get(theEntry.mePath);
+			if (tmpOld != null && tmpOld.meModified == theEntry.meModified) { // Another request cached it meanwhile
+				addTarget(target, tmpOld);
+				return;
+			}
+			if (tmpOld != null)
+				remove(tmpOld);
+			meEntries.put(theEntry.mePath, theEntry);
+			meBytes += theEntry.getSize();
+			addTarget(target, theEntry);
+			Iterator<Entry> tmpIter = meEntries.values().iterator(); // The least recently used first
+			while (meBytes > me_MAX_BYTES && tmpIter.hasNext()) {
+				Entry tmpEntry = tmpIter.next();
+				tmpIter.remove();
+				removeTargets(tmpEntry);
+			}
+		}
+	}
+
+	/**
+	 * Drops a file from the cache (to be called when the file is written).
+	 * @param absPath	the file's canonical absolute path
+	 */
+	public static void invalidate(String absPath) {
+		synchronized (meEntries) {
+			Entry tmpEntry = meEntries.get(absPath);
+			if (tmpEntry != null)
+				remove(tmpEntry);
+			if (absPath.endsWith("/index.htm")) { // A new 'index.htm' takes the directory's target over from 'index.html'
+				tmpEntry = meEntries.get(absPath + "l");
+				if (tmpEntry != null)
+					remove(tmpEntry);
+			}
+		}
+	}
+
+	// Removes an entry and its targets (the caller holds the lock)
+	private static void remove(Entry theEntry) {
+		meEntries.remove(theEntry.mePath);
+		removeTargets(theEntry);
+	}
+
+	// Forgets the targets of a removed entry (the caller holds the lock)
+	private static void removeTargets(Entry theEntry) {
+		meBytes -= theEntry.getSize();
+		for (String tmpTarget : theEntry.meTargets)
+			meTargets.remove(tmpTarget);
+		theEntry.meTargets.clear();
+	}
+
+	// Remembers another target that leads to a cached file (the caller holds the lock)
+	private static void addTarget(String target, Entry theEntry) {
+		if (meTargets.get(target) == theEntry || theEntry.meTargets.size() >= me_MAX_TARGETS)
+			return;
+		Entry tmpOther = meTargets.put(target, theEntry);
+		if (tmpOther != null) // The target led to another file before (ex: a new 'index.htm' was added)
+			tmpOther.meTargets.remove(target);
+		theEntry.meTargets.add(target);
+	}
+}
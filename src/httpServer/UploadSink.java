@@ -0,0 +1,144 @@
+package httpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * A request body sink that streams an uploaded body straight into a temporary file (in the upload's target
+ * directory, so it can be moved in place later). Multipart bodies are scanned on the fly and only the first
+ * part's content is written, so the memory used stays the same whatever the upload's size.
+ */
+public class UploadSink implements RequestParser.BodySink {
+	// Constants
+	public static final String TEMP_PREFIX = ".upload-"; // The temporary files' names start with it
+	// Fields
+	private Path meFile; // The temporary file
+	private FileChannel meChannel;
+	private MultipartScanner meScanner; // Only for multipart bodies
+	private boolean meIsToCrlf; // Replace LF with CRLF (for the small POST texts)
+	private byte meLastByte; // The last received byte (for the LF replacement)
+	private ByteBuffer meOut; // Holds the scanned or converted bytes before writing them (not needed for plain uploads)
+	private boolean meIsFailed; // Writing failed, so the rest of the body is just dropped
+
+	/**
+	 * Constructor (the temporary file is created immediately).
+	 * @param uploadDir	the directory of the upload's target
+	 * @param boundary	the multipart boundary, or null if the body is not multipart
+	 * @param toCrlf	true to replace every bare LF with CRLF (ignored for multipart bodies)
+	 */
+	public UploadSink(Path uploadDir, String boundary, boolean toCrlf) {
+		try {
+			this.meFile = uploadDir.resolve(TEMP_PREFIX + UUID.randomUUID().toString() + ".tmp");
+			this.meChannel = FileChannel.open(this.meFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (IOException | SecurityException e) { // Ex: the directory does not exist or writing is forbidden
+			this.meIsFailed = true;
+			this.meFile = null;
+			return;
+		}
+		if (boundary != null) {
+			this.meScanner = new MultipartScanner(boundary);
+		} else {
+			this.meIsToCrlf = toCrlf;
+		}
+		if (this.meScanner != null || this.meIsToCrlf)
+			this.meOut = ByteBuffer.allocate(HttpServerMain.BUFSIZE * 16);
+	}
+
+	@Override
+	public void write(ByteBuffer data) {
+		try {
+			if (this.meIsFailed) {
+				data.position(data.limit());
+			} else if (this.meScanner != null) {
+				while (data.hasRemaining()) {
+					this.meScanner.scan(data, this.meOut);
+					if (data.hasRemaining()) // The output is full
+						this.flush();
+				}
+			} else if (this.meIsToCrlf) {
+				while (data.hasRemaining()) {
+					if (this.meOut.remaining() < 2)
+						this.flush();
+					byte tmpByte = data.get();
+					if (tmpByte == '\n' && this.meLastByte != '\r') //Replace LF with CRLF for Windows readability
+						this.meOut.put((byte) '\r');
+					this.meOut.put(tmpByte);
+					this.meLastByte = tmpByte;
+				}
+			} else {
+				while (data.hasRemaining())
+					this.meChannel.write(data);
+			}
+		} catch (IOException e) {
+			HttpServerMain.printErrWarning("Writing an uploaded body failed.", false);
+			this.meIsFailed = true;
+			data.position(data.limit());
+		}
+	}
+
+	// Writes the held output bytes into the file
+	private void flush() throws IOException {
+		this.meOut.flip();
+		while (this.meOut.hasRemaining())
+			this.meChannel.write(this.meOut);
+		this.meOut.clear();
+	}
+
+	/**
+	 * Writes what is left and closes the temporary file (to be called when the whole body is received).
+	 * @return	true if the file holds the whole upload (false if writing failed or the multipart body is broken)
+	 */
+	public boolean finish() {
+		if (this.meChannel == null)
+			return false;
+		try {
+			if (!this.meIsFailed && this.meOut != null)
+				this.flush();
+			this.meChannel.close();
+		} catch (IOException e) {
+			this.meIsFailed = true;
+		}
+		return !this.meIsFailed && (this.meScanner == null || this.meScanner.isPartComplete());
+	}
+
+	/**
+	 * Returns the headers of the multipart body's first part.
+	 * @return	the part's headers, or null if the body is not multipart (or broken)
+	 */
+	public String getPartHeaders() {
+		return this.meScanner == null ? null : this.meScanner.getPartHeaders();
+	}
+
+	/**
+	 * Checks if writing the upload failed.
+	 * @return	true if the temporary file could not be created or written
+	 */
+	public boolean isFailed() {
+		return this.meIsFailed;
+	}
+
+	/**
+	 * Returns the temporary file that holds the upload.
+	 * @return	the temporary file, or null if it could not be created
+	 */
+	public Path getFile() {
+		return this.meFile;
+	}
+
+	/**
+	 * Closes and deletes the temporary file (if it was not moved to its target).
+	 */
+	public void discard() {
+		try {
+			if (this.meChannel != null)
+				this.meChannel.close();
+			if (this.meFile != null)
+				Files.deleteIfExists(this.meFile);
+		} catch (IOException e) {/* Can be safely ignored */}
+	}
+}
@@ -0,0 +1,110 @@
+package httpServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of 'FileWrites': the appends (small, big and concurrent ones, never interleaved), the failed appends, and
+ * the overwrites.
+ */
+public class FileWritesTest {
+
+	@TempDir
+	Path meDir;
+
+	@Test
+	public void appendsInOrder() throws IOException {
+		Path tmpTarget = Files.write(this.meDir.resolve("a.txt"), bytes(3, 'a'));
+		FileWrites.append(tmpTarget, this.payload(bytes(2, 'b')));
+		FileWrites.append(tmpTarget, this.payload(bytes(100 * 1024, 'c'))); // Transferred from its file
+		FileWrites.append(tmpTarget, this.payload(new byte[0]));
+		assertArrayEquals(concat(bytes(3, 'a'), bytes(2, 'b'), bytes(100 * 1024, 'c')), Files.readAllBytes(tmpTarget));
+	}
+
+	@Test
+	public void appendsConcurrently() throws Exception {
+		Path tmpTarget = Files.createFile(this.meDir.resolve("a.txt"));
+		int tmpThreads = 8;
+		int tmpCount = 40; // Per thread
+		ExecutorService tmpExec = Executors.newFixedThreadPool(tmpThreads);
+		List<Future<?>> tmpDone = new ArrayList<>();
+		for (int t = 0; t < tmpThreads; t++) {
+			byte tmpBody[] = bytes(1000 + t * 10000, (char) ('a' + t)); // Some are bigger than what is gathered
+			Path tmpPayload = this.payload(tmpBody);
+			tmpDone.add(tmpExec.submit(() -> {
+				for (int i = 0; i < tmpCount; i++)
+					FileWrites.append(tmpTarget, tmpPayload);
+				return null;
+			}));
+		}
+		for (Future<?> tmpFuture : tmpDone)
+			tmpFuture.get();
+		tmpExec.shutdown();
+		byte tmpFile[] = Files.readAllBytes(tmpTarget);
+		int tmpPos = 0;
+		int tmpBodies = 0;
+		while (tmpPos < tmpFile.length) { // Each body is whole: its length is given by its letter
+			int tmpLen = 1000 + (tmpFile[tmpPos] - 'a') * 10000;
+			assertArrayEquals(bytes(tmpLen, (char) tmpFile[tmpPos]), Arrays.copyOfRange(tmpFile, tmpPos, tmpPos + tmpLen));
+			tmpPos += tmpLen;
+			tmpBodies++;
+		}
+		assertEquals(tmpThreads * tmpCount, tmpBodies);
+	}
+
+	@Test
+	public void failsOnlyItsOwnAppend() throws IOException {
+		Path tmpTarget = Files.write(this.meDir.resolve("a.txt"), bytes(3, 'a'));
+		assertThrows(IOException.class, () -> FileWrites.append(tmpTarget, this.meDir.resolve("missing")));
+		assertThrows(IOException.class, () -> FileWrites.append(this.meDir.resolve("missing.txt"), this.payload(bytes(2, 'b'))));
+		FileWrites.append(tmpTarget, this.payload(bytes(2, 'b')));
+		assertArrayEquals(concat(bytes(3, 'a'), bytes(2, 'b')), Files.readAllBytes(tmpTarget));
+	}
+
+	@Test
+	public void replaces() throws IOException {
+		Path tmpTarget = Files.write(this.meDir.resolve("a.txt"), bytes(3, 'a'));
+		Path tmpPayload = this.payload(bytes(2, 'b'));
+		FileWrites.replace(tmpTarget, tmpPayload);
+		assertArrayEquals(bytes(2, 'b'), Files.readAllBytes(tmpTarget));
+		assertFalse(Files.exists(tmpPayload)); // Moved in place
+	}
+
+	private Path payload(byte[] body) throws IOException {
+		return Files.write(Files.createTempFile(this.meDir, "upload-", ".tmp"), body);
+	}
+
+	private static byte[] bytes(int len, char letter) {
+		byte outBytes[] = new byte[len];
+		Arrays.fill(outBytes, (byte) letter);
+		return outBytes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int tmpLen = 0;
+		for (byte tmpPart[] : parts)
+			tmpLen += tmpPart.length;
+		byte outBytes[] = new byte[tmpLen];
+		int tmpPos = 0;
+		for (byte tmpPart[] : parts) {
+			System.arraycopy(tmpPart, 0, outBytes, tmpPos, tmpPart.length);
+			tmpPos += tmpPart.length;
+		}
+		return outBytes;
+	}
+}
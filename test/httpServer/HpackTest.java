@@ -0,0 +1,131 @@
+package httpServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of 'Hpack': the examples of RFC 7541 (Appendix C), the encoder's round trip through a decoder, and the
+ * malformed header blocks that must be refused.
+ */
+public class HpackTest {
+	// Constants
+	private static final int me_MAX_LIST = 64 * 1024; // The decoded header list's limit
+
+	@Test
+	public void decodesRequestsWithoutHuffman() { // RFC 7541, C.3
+		Hpack tmpHpack = new Hpack(4096);
+		assertFields(tmpHpack.decode(fromHex("828684410f7777772e6578616d706c652e636f6d"), me_MAX_LIST),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertFields(tmpHpack.decode(fromHex("828684be58086e6f2d6361636865"), me_MAX_LIST),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+		assertFields(tmpHpack.decode(fromHex("828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"), me_MAX_LIST),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+	}
+
+	@Test
+	public void decodesRequestsWithHuffman() { // RFC 7541, C.4
+		Hpack tmpHpack = new Hpack(4096);
+		assertFields(tmpHpack.decode(fromHex("828684418cf1e3c2e5f23a6ba0ab90f4ff"), me_MAX_LIST),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertFields(tmpHpack.decode(fromHex("828684be5886a8eb10649cbf"), me_MAX_LIST),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+		assertFields(tmpHpack.decode(fromHex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"), me_MAX_LIST),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+	}
+
+	@Test
+	public void evictsOldestEntries() { // RFC 7541, C.5 (a 256 bytes table)
+		Hpack tmpHpack = new Hpack(256);
+		tmpHpack.decode(fromHex("4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d"), me_MAX_LIST);
+		assertFields(tmpHpack.decode(fromHex("4803333037c1c0bf"), me_MAX_LIST), // ':status: 302' is evicted by ':status: 307'
+				":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+		assertNull(tmpHpack.decode(fromHex("c2"), me_MAX_LIST)); // Only 4 entries are left (62 to 65)
+	}
+
+	@Test
+	public void encodesLikeRfc() { // RFC 7541, C.4.1 (the encoder indexes ':authority' and Huffman codes it)
+		Hpack tmpHpack = new Hpack(4096);
+		assertArrayEquals(fromHex("828684418cf1e3c2e5f23a6ba0ab90f4ff").array(),
+				tmpHpack.encode(toFields(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com")));
+	}
+
+	@Test
+	public void roundTrips() {
+		Hpack tmpEncoder = new Hpack(4096);
+		Hpack tmpDecoder = new Hpack(4096);
+		String tmpFields[] = {":status", "200", "server", "AmazingServer", "content-type", "text/html", "etag", "\"10-1a14ae93e10\"",
+				"content-length", "16", "x-bytes", "é\u0001ÿ~"};
+		byte tmpFirst[] = tmpEncoder.encode(toFields(tmpFields));
+		assertFields(tmpDecoder.decode(ByteBuffer.wrap(tmpFirst), me_MAX_LIST), tmpFields);
+		byte tmpSecond[] = tmpEncoder.encode(toFields(tmpFields));
+		assertFields(tmpDecoder.decode(ByteBuffer.wrap(tmpSecond), me_MAX_LIST), tmpFields);
+		assertTrue(tmpSecond.length < tmpFirst.length / 2, "The repeated fields are indexed");
+	}
+
+	@Test
+	public void signalsTableSizeChange() {
+		Hpack tmpEncoder = new Hpack(4096);
+		Hpack tmpDecoder = new Hpack(4096);
+		String tmpFields[] = {"server", "AmazingServer", "vary", "Accept-Encoding"};
+		assertFields(tmpDecoder.decode(ByteBuffer.wrap(tmpEncoder.encode(toFields(tmpFields))), me_MAX_LIST), tmpFields);
+		tmpEncoder.setMaxSize(0); // The table is emptied, and the next block starts with the size update
+		byte tmpBlock[] = tmpEncoder.encode(toFields(tmpFields));
+		assertEquals(0x20, tmpBlock[0]);
+		assertFields(tmpDecoder.decode(ByteBuffer.wrap(tmpBlock), me_MAX_LIST), tmpFields);
+	}
+
+	@Test
+	public void refusesMalformedBlocks() {
+		assertNull(new Hpack(4096).decode(fromHex("80"), me_MAX_LIST)); // Index 0
+		assertNull(new Hpack(4096).decode(fromHex("be"), me_MAX_LIST)); // An empty dynamic table
+		assertNull(new Hpack(4096).decode(fromHex("3fe21f"), me_MAX_LIST)); // A size update over the limit
+		assertNull(new Hpack(4096).decode(fromHex("823f00"), me_MAX_LIST)); // A size update after a field
+		assertNull(new Hpack(4096).decode(fromHex("400a6375"), me_MAX_LIST)); // A truncated string
+		assertNull(new Hpack(4096).decode(fromHex("4081ff0161"), me_MAX_LIST)); // A Huffman string with EOS, or a padding longer than 7 bits
+		assertNull(new Hpack(4096).decode(fromHex("41ff"), me_MAX_LIST)); // A truncated integer
+		assertNotNull(new Hpack(4096).decode(fromHex(""), me_MAX_LIST));
+	}
+
+	@Test
+	public void refusesExpandingBlocks() { // A 4 KB field indexed once, then referenced from every byte of a small block
+		byte tmpBlock[] = new byte[6 + 4096 + 16 * 1024];
+		System.arraycopy(fromHex("4001787f811f").array(), 0, tmpBlock, 0, 6); // A new 'x' field with a 4096 bytes value, indexed
+		Arrays.fill(tmpBlock, 6, 6 + 4096, (byte) 'a');
+		Arrays.fill(tmpBlock, 6 + 4096, tmpBlock.length, (byte) 0xbe); // Index 62 (the new field) again and again
+		assertEquals(15, new Hpack(8192).decode(ByteBuffer.wrap(tmpBlock, 0, 6 + 4096 + 14), me_MAX_LIST).size()); // 4129 bytes a field
+		assertNull(new Hpack(8192).decode(ByteBuffer.wrap(tmpBlock, 0, 6 + 4096 + 15), me_MAX_LIST));
+		assertNull(new Hpack(8192).decode(ByteBuffer.wrap(tmpBlock), me_MAX_LIST));
+	}
+
+	private static void assertFields(List<String[]> fields, String... expected) {
+		assertNotNull(fields);
+		List<String> tmpFlat = new ArrayList<>();
+		for (String tmpField[] : fields)
+			tmpFlat.addAll(Arrays.asList(tmpField));
+		assertEquals(Arrays.asList(expected), tmpFlat);
+	}
+
+	private static List<String[]> toFields(String... namesValues) {
+		List<String[]> outFields = new ArrayList<>();
+		for (int i = 0; i < namesValues.length; i += 2)
+			outFields.add(new String[] {namesValues[i], namesValues[i + 1]});
+		return outFields;
+	}
+
+	private static ByteBuffer fromHex(String theHex) {
+		byte outBytes[] = new byte[theHex.length() / 2];
+		for (int i = 0; i < outBytes.length; i++)
+			outBytes[i] = (byte) Integer.parseInt(theHex.substring(i * 2, i * 2 + 2), 16);
+		return ByteBuffer.wrap(outBytes);
+	}
+}
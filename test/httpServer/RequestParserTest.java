@@ -0,0 +1,141 @@
+package httpServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of 'RequestParser': the request's framing (also when it arrives a byte at a time), its bodies, and the
+ * malformed requests that must be refused.
+ */
+public class RequestParserTest {
+
+	@Test
+	public void parsesGet() {
+		RequestParser tmpParser = new RequestParser();
+		assertTrue(tmpParser.parse(toBuffer("GET /a/b.htm?x=1 HTTP/1.1\r\nHost: localhost\r\nAccept:  */* \r\nCookie: a=1\r\nCookie: b=2\r\n\r\n")));
+		assertEquals(RequestParser.State.DONE, tmpParser.getState());
+		assertEquals("GET", tmpParser.getMethod());
+		assertEquals("/a/b.htm?x=1", tmpParser.getTarget());
+		assertEquals("HTTP/1.1", tmpParser.getVersion());
+		assertEquals("localhost", tmpParser.getHeaders().get("host"));
+		assertEquals("*/*", tmpParser.getHeaders().get("accept")); // Without the surrounding white space
+		assertEquals("a=1, b=2", tmpParser.getHeaders().get("cookie")); // Repeated headers are combined
+	}
+
+	@Test
+	public void parsesByteByByte() {
+		RequestParser tmpParser = new RequestParser();
+		byte tmpReq[] = "PUT /put/a.txt HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello".getBytes(StandardCharsets.ISO_8859_1);
+		int i = 0;
+		while (i < tmpReq.length && !tmpParser.parse(ByteBuffer.wrap(tmpReq, i, 1)))
+			i++;
+		assertEquals(RequestParser.State.BODY, tmpParser.getState()); // Waiting for the body's receiver
+		tmpParser.setBodySink(null);
+		for (i++; i < tmpReq.length; i++)
+			tmpParser.parse(ByteBuffer.wrap(tmpReq, i, 1));
+		assertEquals(RequestParser.State.DONE, tmpParser.getState());
+		assertEquals("localhost", tmpParser.getHeaders().get("host"));
+		assertArrayEquals("hello".getBytes(StandardCharsets.ISO_8859_1), tmpParser.getBody());
+	}
+
+	@Test
+	public void leavesPipelinedRequest() {
+		RequestParser tmpParser = new RequestParser();
+		ByteBuffer tmpData = toBuffer("GET /a HTTP/1.1\r\nHost: a\r\n\r\nGET /b HTTP/1.1\r\nHost: a\r\n\r\n");
+		assertTrue(tmpParser.parse(tmpData));
+		assertEquals("/a", tmpParser.getTarget());
+		tmpParser.reset();
+		assertTrue(tmpParser.parse(tmpData));
+		assertEquals("/b", tmpParser.getTarget());
+		assertFalse(tmpData.hasRemaining());
+	}
+
+	@Test
+	public void sendsBodyToSink() {
+		RequestParser tmpParser = new RequestParser();
+		ByteBuffer tmpData = toBuffer("POST /post/a.txt HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123456789GET / HTTP/1.1\r\n\r\n");
+		assertTrue(tmpParser.parse(tmpData));
+		ByteArrayOutputStream tmpBody = new ByteArrayOutputStream();
+		tmpParser.setBodySink(tmpBuf -> {
+			while (tmpBuf.hasRemaining())
+				tmpBody.write(tmpBuf.get());
+		});
+		assertTrue(tmpParser.parse(tmpData));
+		assertEquals(RequestParser.State.DONE, tmpParser.getState());
+		assertEquals("0123456789", tmpBody.toString(StandardCharsets.ISO_8859_1));
+		assertEquals(0, tmpParser.getBody().length);
+		assertEquals("GET / HTTP/1.1\r\n\r\n", StandardCharsets.ISO_8859_1.decode(tmpData).toString()); // Only this request's bytes are taken
+	}
+
+	@Test
+	public void decodesChunkedBody() {
+		RequestParser tmpParser = parse("PUT /put/a.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3;ext=1\r\nabc\r\n2\r\nde\r\n0\r\nX-Trailer: 1\r\n\r\n");
+		assertEquals(RequestParser.State.DONE, tmpParser.getState());
+		assertArrayEquals("abcde".getBytes(StandardCharsets.ISO_8859_1), tmpParser.getBody());
+	}
+
+	@Test
+	public void refusesBadChunks() {
+		assertError("PUT /put/a.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\nabc\r\n0\r\n\r\n"); // Not a size
+		assertError("PUT /put/a.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabc\r\n0\r\n\r\n"); // Longer than its size
+		assertError("PUT /put/a.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n-1\r\n\r\n");
+		assertError("PUT /put/a.txt HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n");
+	}
+
+	@Test
+	public void refusesSmuggling() {
+		assertError("POST /post/a HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 3\r\n\r\n0\r\n\r\n");
+		assertError("POST /post/a HTTP/1.1\r\nTransfer-Encoding : chunked\r\n\r\n0\r\n\r\n"); // White space before the ':'
+		assertError("POST /post/a HTTP/1.1\r\nX-A: 1\r\n Content-Length: 3\r\n\r\nabc"); // A folded line
+		assertError("POST /post/a HTTP/1.1\r\nContent-Length: +3\r\n\r\nabc");
+		assertError("POST /post/a HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 4\r\n\r\nabcd");
+	}
+
+	@Test
+	public void refusesMalformedHeads() {
+		assertError("GET\r\n\r\n");
+		assertError("GET  HTTP/1.1\r\n\r\n");
+		assertError("GET / HTTP/1.1\r\nNo colon\r\n\r\n");
+		assertError("GET / HTTP/1.1\r\n: empty name\r\n\r\n");
+		assertError("GET / HTTP/1.1\r\nX-Long: " + "a".repeat(9000) + "\r\n\r\n");
+		StringBuilder tmpReq = new StringBuilder("GET / HTTP/1.1\r\n");
+		for (int i = 0; i <= 100; i++)
+			tmpReq.append("X-").append(i).append(": 1\r\n");
+		assertError(tmpReq.append("\r\n").toString());
+	}
+
+	@Test
+	public void toleratesBareLineFeeds() {
+		RequestParser tmpParser = parse("\r\nGET / HTTP/1.0\nHost: a\n\n"); // And an empty line before the request
+		assertEquals(RequestParser.State.DONE, tmpParser.getState());
+		assertEquals("HTTP/1.0", tmpParser.getVersion());
+		assertEquals("a", tmpParser.getHeaders().get("host"));
+	}
+
+	// Parses a whole request (its body, if any, held in memory)
+	private static RequestParser parse(String theReq) {
+		RequestParser outParser = new RequestParser();
+		ByteBuffer tmpData = toBuffer(theReq);
+		if (outParser.parse(tmpData) && outParser.getState() == RequestParser.State.BODY) {
+			outParser.setBodySink(null);
+			outParser.parse(tmpData);
+		}
+		return outParser;
+	}
+
+	private static void assertError(String theReq) {
+		assertEquals(RequestParser.State.ERROR, parse(theReq).getState(), theReq);
+	}
+
+	private static ByteBuffer toBuffer(String theStr) {
+		return ByteBuffer.wrap(theStr.getBytes(StandardCharsets.ISO_8859_1));
+	}
+}